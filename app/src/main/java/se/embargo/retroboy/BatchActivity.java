@@ -0,0 +1,147 @@
+package se.embargo.retroboy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import se.embargo.core.concurrent.ProgressTask;
+import android.app.Activity;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.util.Log;
+import android.widget.Toast;
+
+/**
+ * Applies the current filter to a batch of images shared from another app.
+ */
+public class BatchActivity extends Activity {
+	private static final String TAG = "BatchActivity";
+
+	private BatchTask _task = null;
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+
+		// Read the images from the intent
+		List<Uri> uris = new ArrayList<Uri>();
+		ArrayList<Parcelable> streams = null;
+		if (Intent.ACTION_SEND.equals(getIntent().getAction())) {
+			Parcelable stream = getIntent().getParcelableExtra(Intent.EXTRA_STREAM);
+			if (stream != null) {
+				streams = new ArrayList<Parcelable>();
+				streams.add(stream);
+			}
+		}
+		else {
+			streams = getIntent().getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+		}
+
+		if (streams != null) {
+			for (Parcelable stream : streams) {
+				if (stream instanceof Uri) {
+					uris.add((Uri)stream);
+				}
+			}
+		}
+
+		if (uris.isEmpty()) {
+			finish();
+			return;
+		}
+
+		_task = new BatchTask(uris);
+		_task.execute();
+	}
+
+	@Override
+	protected void onDestroy() {
+		if (_task != null) {
+			_task.cancel(true);
+			_task = null;
+		}
+
+		super.onDestroy();
+	}
+
+	private class BatchTask extends ProgressTask<Void, Integer, Integer> {
+		private final List<Uri> _uris;
+
+		public BatchTask(List<Uri> uris) {
+			super(BatchActivity.this, R.string.title_batch, R.string.msg_batch);
+			setMaxProgress(uris.size());
+			setCancelable();
+			_uris = uris;
+		}
+
+		@Override
+		protected Integer doInBackground(Void... params) {
+			long ts = System.currentTimeMillis();
+			BatchRenderer renderer = new BatchRenderer(BatchActivity.this, Runtime.getRuntime().maxMemory() / 2);
+			int count = 0;
+
+			try {
+				// Images are rendered concurrently while videos are rendered one at a time below
+				List<Future<File>> results = new ArrayList<Future<File>>();
+				for (Uri uri : _uris) {
+					results.add(renderer.isVideo(uri) ? null : renderer.submit(uri));
+				}
+
+				for (int i = 0; i < results.size() && !isCancelled(); i++) {
+					try {
+						if (results.get(i) != null) {
+							results.get(i).get();
+						}
+						else {
+							renderer.renderVideo(_uris.get(i));
+						}
+
+						count++;
+					}
+					catch (ExecutionException e) {
+						Log.w(TAG, "Failed to render " + _uris.get(i), e.getCause());
+					}
+					catch (IOException e) {
+						Log.w(TAG, "Failed to render " + _uris.get(i), e);
+					}
+
+					publishProgress(i + 1);
+				}
+			}
+			catch (InterruptedException e) {
+				Log.w(TAG, "Batch was interrupted");
+			}
+			finally {
+				renderer.shutdown();
+				Pictures.flushImageCount(BatchActivity.this);
+			}
+
+			long elapsed = Math.max(1, System.currentTimeMillis() - ts);
+			Log.i(TAG, "Rendered " + count + " images in " + elapsed + " ms (" + (count * 60000L / elapsed) + " images/min)");
+			return count;
+		}
+
+		@Override
+		protected void onProgressUpdate(Integer... progress) {
+			setProgress(progress[0]);
+		}
+
+		@Override
+		protected void onCancelled() {
+			super.onCancelled();
+			finish();
+		}
+
+		@Override
+		protected void onPostExecute(Integer result) {
+			super.onPostExecute(result);
+			Toast.makeText(BatchActivity.this, getString(R.string.msg_batch_done, result, _uris.size()), Toast.LENGTH_LONG).show();
+			finish();
+		}
+	}
+}
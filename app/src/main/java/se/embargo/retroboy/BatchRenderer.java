@@ -0,0 +1,373 @@
+package se.embargo.retroboy;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import se.embargo.core.concurrent.Parallel;
+import se.embargo.core.graphic.Bitmaps;
+import se.embargo.core.graphic.color.IPalette;
+import se.embargo.retroboy.filter.CompositeFilter;
+import se.embargo.retroboy.filter.IImageFilter;
+import se.embargo.retroboy.filter.MonochromeFilter;
+import se.embargo.retroboy.filter.RgbFilter;
+import se.embargo.retroboy.filter.TransformFilter;
+import se.embargo.retroboy.filter.VideoProcessor;
+import se.embargo.retroboy.filter.YuvFilter;
+import se.embargo.retroboy.graphic.GifWriter;
+import se.embargo.retroboy.graphic.PixelTransform;
+import se.embargo.retroboy.graphic.Y4mReader;
+import se.embargo.retroboy.graphic.Y4mWriter;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Images;
+import android.util.Log;
+
+/**
+ * Applies the current filter configuration to many images concurrently.
+ *
+ * Images are rendered on one worker per core and each worker keeps its own effect filter. The
+ * image buffers in flight are bounded by a memory budget so large batches can't exhaust the heap.
+ */
+public class BatchRenderer {
+	private static final String TAG = "BatchRenderer";
+
+	/**
+	 * Estimated number of bytes per pixel held while an image is processed, covering the
+	 * decoded bitmap, the image buffer and the rotation scratch buffer.
+	 */
+	private static final int BYTES_PER_PIXEL = 12;
+
+	/**
+	 * Number of video frames read ahead of the workers.
+	 */
+	private static final int VIDEO_READAHEAD = 2;
+
+	/**
+	 * Mime type of YUV4MPEG2 video.
+	 */
+	private static final String MIME_Y4M = "video/x-yuv4mpeg";
+
+	private final Context _context;
+	private final SharedPreferences _prefs;
+
+	/**
+	 * True if the effect filter carries state between images and can't be reused for another image.
+	 */
+	private final boolean _stateful;
+	private final ExecutorService _executor = Executors.newFixedThreadPool(Parallel.getNumberOfCores());
+
+	/**
+	 * Kilobytes of image buffers that may be allocated.
+	 */
+	private final Semaphore _budget;
+	private final int _budgetsize;
+
+	/**
+	 * Effect filter of each worker thread.
+	 */
+	private final ThreadLocal<IImageFilter> _effect = new ThreadLocal<IImageFilter>() {
+		@Override
+		protected IImageFilter initialValue() {
+			return Pictures.createEffectFilter(_context);
+		}
+	};
+
+	/**
+	 * @param	context		Context to use
+	 * @param	maxbytes	Max number of bytes of image buffers in flight
+	 */
+	public BatchRenderer(Context context, long maxbytes) {
+		_context = context.getApplicationContext();
+		_prefs = _context.getSharedPreferences(Pictures.PREFS_NAMESPACE, Context.MODE_PRIVATE);
+		_stateful = Pictures.isStatefulFilter(Pictures.getFilterType(_context));
+		_budgetsize = (int)Math.max(1, Math.min(maxbytes / 1024, Integer.MAX_VALUE));
+		_budget = new Semaphore(_budgetsize);
+	}
+
+	/**
+	 * Queues an image to be rendered and written to the gallery.
+	 * @param	uri		Image to render
+	 * @return			The written file once the image has been rendered
+	 */
+	public Future<File> submit(Uri uri) {
+		return _executor.submit(new RenderTask(uri));
+	}
+
+	/**
+	 * @param	uri		Shared item
+	 * @return			True if the item is a YUV4MPEG2 video to render with {@link #renderVideo(Uri)}.
+	 */
+	public boolean isVideo(Uri uri) {
+		String path = uri.getPath();
+		return MIME_Y4M.equals(_context.getContentResolver().getType(uri)) || (path != null && path.toLowerCase().endsWith(".y4m"));
+	}
+
+	/**
+	 * Renders a YUV4MPEG2 video into an animated GIF, or into raw YUV4MPEG2 if selected in 
+	 * preferences, filtering several frames at a time.
+	 * @param	uri		Video to render
+	 * @return			The written file
+	 */
+	public File renderVideo(Uri uri) throws IOException, InterruptedException {
+		final Pictures.Resolution resolution = Pictures.getResolution(_context, _prefs);
+		final int contrast = Pictures.getContrast(_context, _prefs);
+		String autoexposurevalue = _prefs.getString(Pictures.PREF_AUTOEXPOSURE, _context.getResources().getString(R.string.pref_autoexposure_default));
+		final boolean autoexposure = "auto".equals(autoexposurevalue);
+		final IImageFilter effect = _effect.get();
+		final boolean y4m = Pictures.PREF_VIDEOFORMAT_Y4M.equals(_prefs.getString(Pictures.PREF_VIDEOFORMAT, _context.getResources().getString(R.string.pref_videoformat_default)));
+
+		InputStream is = _context.getContentResolver().openInputStream(uri);
+		if (is == null) {
+			throw new IOException("Failed to open " + uri);
+		}
+
+		final Y4mReader reader = new Y4mReader(is);
+		final File file = Pictures.createOutputFile(_context, uri.getLastPathSegment(), y4m ? "y4m" : "gif");
+		final OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+		final IVideoWriter writer = y4m ? 
+			new Y4mFrameWriter(os, reader.getRateNumerator(), reader.getRateDenominator()) : 
+			new GifFrameWriter(os, effect.getPalette(), (int)(reader.getFrameDuration() / 1000000));
+		boolean success = false;
+
+		try {
+			// Each worker converts and filters whole frames, and a filter that carries state between 
+			// frames runs on a single worker so it sees every frame in order
+			VideoProcessor processor = new VideoProcessor(new VideoProcessor.IFilterFactory() {
+				@Override
+				public IImageFilter create() {
+					CompositeFilter filter = new CompositeFilter();
+					filter.add(new YuvFilter(resolution.width, resolution.height, contrast, effect.isColorFilter(), autoexposure));
+					filter.add(Pictures.createEffectFilter(_context));
+					return filter;
+				}
+			}, _stateful ? 1 : Parallel.getNumberOfCores(), VIDEO_READAHEAD);
+
+			processor.process(reader, writer);
+			writer.finish();
+			os.close();
+			success = true;
+		}
+		finally {
+			reader.close();
+
+			if (!success) {
+				writer.abort();
+
+				try {
+					os.close();
+				}
+				catch (IOException e) {}
+
+				file.delete();
+			}
+		}
+
+		// Tell the gallery about the image, raw video isn't something it can show
+		if (!y4m) {
+			ContentValues values = new ContentValues();
+			values.put(MediaStore.Images.Media.DATA, file.getAbsolutePath());
+			values.put(MediaStore.Images.Media.MIME_TYPE, "image/gif");
+			values.put(MediaStore.Images.Media.DATE_TAKEN, System.currentTimeMillis());
+			_context.getContentResolver().insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+		}
+
+		Log.i(TAG, "Rendered " + uri + " to " + file);
+		return file;
+	}
+
+	/**
+	 * Stops the workers, abandoning any queued images.
+	 */
+	public void shutdown() {
+		_executor.shutdownNow();
+	}
+
+	/**
+	 * Writes filtered video frames to an output file.
+	 */
+	private interface IVideoWriter extends VideoProcessor.IFrameWriter {
+		/**
+		 * Completes the output once all frames have been written.
+		 */
+		public void finish() throws IOException;
+
+		/**
+		 * Releases any resources of an incomplete output.
+		 */
+		public void abort();
+	}
+
+	/**
+	 * Encodes filtered video frames into an animated GIF.
+	 */
+	private static class GifFrameWriter implements IVideoWriter {
+		private final OutputStream _os;
+		private final IPalette _palette;
+		private final int _delay;
+		private GifWriter _encoder = null;
+
+		public GifFrameWriter(OutputStream os, IPalette palette, int delay) {
+			_os = os;
+			_palette = palette;
+			_delay = delay;
+		}
+
+		@Override
+		public void write(IImageFilter.ImageBuffer buffer) throws IOException {
+			// The frame size is known once the first frame has been filtered
+			if (_encoder == null) {
+				_encoder = new GifWriter(_os, buffer.imagewidth, buffer.imageheight, _palette, 0, Parallel.getNumberOfCores(), true);
+			}
+
+			_encoder.addFrame(buffer.image.array(), _delay);
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if (_encoder == null) {
+				throw new IOException("Video has no frames");
+			}
+
+			_encoder.finish();
+		}
+
+		@Override
+		public void abort() {
+			if (_encoder != null) {
+				_encoder.abort();
+			}
+		}
+	}
+
+	/**
+	 * Writes filtered video frames as raw YUV4MPEG2, keeping the frame rate of the input.
+	 */
+	private static class Y4mFrameWriter implements IVideoWriter {
+		private final OutputStream _os;
+		private final int _ratenum, _rateden;
+		private Y4mWriter _writer = null;
+
+		public Y4mFrameWriter(OutputStream os, int ratenum, int rateden) {
+			_os = os;
+			_ratenum = ratenum;
+			_rateden = rateden;
+		}
+
+		@Override
+		public void write(IImageFilter.ImageBuffer buffer) throws IOException {
+			// The frame size is known once the first frame has been filtered
+			if (_writer == null) {
+				_writer = new Y4mWriter(_os, buffer.imagewidth, buffer.imageheight, _ratenum, _rateden);
+			}
+
+			_writer.write(buffer.image.array());
+		}
+
+		@Override
+		public void finish() throws IOException {
+			if (_writer == null) {
+				throw new IOException("Video has no frames");
+			}
+
+			_writer.finish();
+		}
+
+		@Override
+		public void abort() {}
+	}
+
+	private class RenderTask implements Callable<File> {
+		private final Uri _uri;
+
+		public RenderTask(Uri uri) {
+			_uri = uri;
+		}
+
+		@Override
+		public File call() throws Exception {
+			Pictures.Resolution resolution = Pictures.getResolution(_context, _prefs);
+			int contrast = Pictures.getContrast(_context, _prefs);
+			String autoexposurevalue = _prefs.getString(Pictures.PREF_AUTOEXPOSURE, _context.getResources().getString(R.string.pref_autoexposure_default));
+			boolean autoexposure = "auto".equals(autoexposurevalue);
+
+			// Wait until the image fits within the memory budget
+			final int cost = (int)Math.min(_budgetsize, (long)resolution.width * resolution.height * BYTES_PER_PIXEL / 1024 + 1);
+			_budget.acquire(cost);
+
+			try {
+				long ts = System.currentTimeMillis();
+				String filename = _uri.getLastPathSegment();
+				int orientation = 0;
+
+				// Find the image name and orientation
+				Cursor cursor = null;
+				try {
+					cursor = _context.getContentResolver().query(_uri, new String[] {Images.Media.DISPLAY_NAME, Images.Media.ORIENTATION}, null, null, null);
+					if (cursor != null && cursor.moveToFirst()) {
+						filename = cursor.getString(0);
+						orientation = cursor.getInt(1);
+					}
+				}
+				catch (IllegalArgumentException e) {
+					// Not a media store image
+				}
+				finally {
+					if (cursor != null) {
+						cursor.close();
+					}
+				}
+
+				// Read the image from disk
+				Bitmap input = Bitmaps.decodeUri(_context.getContentResolver(), _uri, resolution.width, resolution.height);
+				if (input == null) {
+					throw new IOException("Failed to decode " + _uri);
+				}
+
+				IImageFilter.ImageBuffer buffer = new IImageFilter.ImageBuffer(input);
+				buffer.bitmap = null;
+				input.recycle();
+
+				// Rotate the image as needed
+				if (orientation != 0) {
+					new TransformFilter(PixelTransform.create(
+						buffer.imagewidth, buffer.imageheight,
+						buffer.imagewidth, buffer.imageheight,
+						false, orientation, false)).accept(buffer);
+				}
+
+				// Apply the filters, with a fresh effect filter if its state would carry over from other images
+				IImageFilter effect = _stateful ? Pictures.createEffectFilter(_context) : _effect.get();
+				if (effect.isColorFilter()) {
+					new RgbFilter(contrast, autoexposure).accept(buffer);
+				}
+				else {
+					new MonochromeFilter(contrast, autoexposure).accept(buffer);
+				}
+
+				effect.accept(buffer);
+
+				// Write the image to disk
+				File result = Pictures.compress(_context, filename, null, buffer, effect.getPalette());
+				Log.i(TAG, "Rendered " + _uri + " in " + (System.currentTimeMillis() - ts) + " ms to " + result);
+				return result;
+			}
+			finally {
+				_budget.release(cost);
+			}
+		}
+	}
+}
@@ -1,9 +1,11 @@
 package se.embargo.retroboy;
 
+import java.io.File;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import se.embargo.core.graphic.Bitmaps;
+import se.embargo.core.graphic.color.IPalette;
 import se.embargo.retroboy.filter.IImageFilter;
 import se.embargo.retroboy.filter.YuvFilter;
 import android.content.Context;
@@ -35,6 +37,11 @@ public class CameraPreview extends FrameLayout implements Camera.PreviewCallback
 	private IImageFilter _filter;
 	private Bitmaps.Transform _transform, _prevTransform;
 	
+	/**
+	 * Adjusts the processing resolution to the frame rate, or null if disabled.
+	 */
+	private ResolutionGovernor _governor = null;
+	
 	/**
 	 * Statistics for framerate calculation
 	 */
@@ -57,6 +64,44 @@ public class CameraPreview extends FrameLayout implements Camera.PreviewCallback
 	 */
 	private long _generation = 0;
 	
+	/**
+	 * Receives filtered frames while capturing.
+	 */
+	private CaptureListener _captureListener = null;
+	
+	/**
+	 * Number of frames left to capture.
+	 */
+	private int _captureCount = 0;
+	
+	/**
+	 * Sequence number of the first frame that may be captured.
+	 */
+	private long _captureFrame = 0;
+	
+	/**
+	 * Sequence number of the last frame handed to the filter.
+	 */
+	private long _frameNumber = 0;
+	
+	/**
+	 * Records the raw preview frames, or null if not recording.
+	 */
+	private FrameRecorder _frameRecorder = null;
+	
+	/**
+	 * Receives filtered preview frames that should be saved.
+	 */
+	public interface CaptureListener {
+		/**
+		 * Called on the filter thread with a filtered frame, the buffer must be copied before returning.
+		 * @param	buffer	Filtered frame
+		 * @param	palette	Palette used by the filter
+		 * @return			False to stop capturing further frames
+		 */
+		public boolean onCapture(IImageFilter.ImageBuffer buffer, IPalette palette);
+	}
+	
 	public CameraPreview(Context context) {
 		this(context, null);
 	}
@@ -97,6 +142,8 @@ public class CameraPreview extends FrameLayout implements Camera.PreviewCallback
 			_dummy.setVisibility(INVISIBLE);
 		}
 		
+		// The frame size may change along with the camera
+		recordFrames(null);
 		_cameraHandle = handle;
 		
 		if (_cameraHandle != null) {
@@ -113,7 +160,7 @@ public class CameraPreview extends FrameLayout implements Camera.PreviewCallback
 			_cameraHandle.camera.setPreviewDisplay(_dummy.getHolder());
 
 			initPreviewCallback();
-			initTransform();
+			initTransform(true);
 
 			// Begin the preview
 			_framestat = 0;
@@ -137,13 +184,56 @@ public class CameraPreview extends FrameLayout implements Camera.PreviewCallback
 		}
 	}
 	
+	/**
+	 * Captures the next filtered preview frames without pausing the preview.
+	 * @param	listener	Listener to receive the frames
+	 * @param	count		Number of consecutive frames to capture
+	 */
+	public synchronized void capture(CaptureListener listener, int count) {
+		_captureListener = listener;
+		_captureCount = count;
+		_captureFrame = 0;
+		
+		// Capture at the resolution selected by the user rather than a lowered preview resolution,
+		// skipping the frame that is already being filtered at the lower resolution
+		if (_governor != null && _governor.restore()) {
+			_captureFrame = _frameNumber + 1;
+			initTransform(false);
+		}
+	}
+	
+	/**
+	 * Records the raw preview frames of the current camera for replay, stopping any previous recording.
+	 * @param	file	File to write the frame log to, or null to stop recording
+	 */
+	public synchronized void recordFrames(File file) {
+		if (_frameRecorder != null) {
+			_frameRecorder.close();
+			_frameRecorder = null;
+		}
+		
+		if (file != null && _cameraHandle != null) {
+			_frameRecorder = new FrameRecorder(file, _previewSize.width, _previewSize.height);
+		}
+	}
+	
 	/**
 	 * Sets the active image filter
 	 * @param filter	Image filter to use
 	 */
 	public synchronized void setFilter(IImageFilter filter) {
+		setFilter(filter, null);
+	}
+	
+	/**
+	 * Sets the active image filter
+	 * @param filter	Image filter to use
+	 * @param governor	Governor that adjusts the resolution of the filter, or null
+	 */
+	public synchronized void setFilter(IImageFilter filter, ResolutionGovernor governor) {
 		_filter = filter;
-		initTransform();
+		_governor = governor;
+		initTransform(true);
 	}
 	
 	/**
@@ -153,7 +243,10 @@ public class CameraPreview extends FrameLayout implements Camera.PreviewCallback
 		return _filter;
 	}
 	
-	private synchronized void initTransform() {
+	/**
+	 * @param	clear	Clear the surface if the transform changed
+	 */
+	private synchronized void initTransform(boolean clear) {
 		Log.i(TAG, "Initializing the transform matrix");
 		
 		if (_cameraHandle != null && _previewSize != null) {
@@ -179,7 +272,7 @@ public class CameraPreview extends FrameLayout implements Camera.PreviewCallback
 				Bitmaps.FLAG_ENLARGE);
 		
 			// Clear all the canvas buffers
-			if (!_transform.equals(_prevTransform)) {
+			if (clear && !_transform.equals(_prevTransform)) {
 				for (int i = 0; i < 3; i++) {
 					Canvas canvas = _holder.lockCanvas();
 					if (canvas != null) {
@@ -212,7 +305,7 @@ public class CameraPreview extends FrameLayout implements Camera.PreviewCallback
 		@Override
 		public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
 			Log.d(TAG, "Preview surface changed");
-			initTransform();
+			initTransform(true);
 		}
 	}
 	
@@ -241,6 +334,10 @@ public class CameraPreview extends FrameLayout implements Camera.PreviewCallback
 		
 		// data may be null if buffer was too small
 		if (handle != null && data != null && data.length == _buffersize) {
+			if (_frameRecorder != null) {
+				_frameRecorder.offer(data, System.nanoTime());
+			}
+			
 			handle.camera.addCallbackBuffer(_input);
 			_input = data;
 			_inputState = State.READY;
@@ -250,9 +347,10 @@ public class CameraPreview extends FrameLayout implements Camera.PreviewCallback
 	
 	private class FilterTask implements Runnable {
 		private IImageFilter _taskFilter;
+		private ResolutionGovernor _taskGovernor;
 		private IImageFilter.ImageBuffer _buffer;
 		private final Paint _paint = new Paint(Paint.FILTER_BITMAP_FLAG);
-		private long _taskGeneration;
+		private long _taskGeneration, _taskFrame;
 		
 		public void tryProcess() {
 			if (_taskState != State.READY || _inputState != State.READY) {
@@ -267,6 +365,7 @@ public class CameraPreview extends FrameLayout implements Camera.PreviewCallback
 			
 			// Reinitialize the buffer with the new data
 			_taskFilter = _filter;
+			_taskGovernor = _governor;
 			_buffer.reset(_input);
 			_input = _output;
 			_taskState = State.WORKING;
@@ -274,15 +373,38 @@ public class CameraPreview extends FrameLayout implements Camera.PreviewCallback
 			
 			// Start processing
 			_taskGeneration = _generation;
+			_taskFrame = ++_frameNumber;
 			_executor.submit(this);
 		}
 		
 		@Override
 		public void run() {
+			long start = System.nanoTime();
+			
 			try {
 				// Filter the preview image
 				_taskFilter.accept(_buffer);
 				
+				// Hand over the frame if it's being captured
+				CaptureListener listener = null;
+				synchronized (CameraPreview.this) {
+					if (_captureCount > 0 && _taskGeneration == _generation && _taskFrame >= _captureFrame) {
+						listener = _captureListener;
+						if (--_captureCount == 0) {
+							_captureListener = null;
+						}
+					}
+				}
+				
+				if (listener != null && !listener.onCapture(_buffer, _taskFilter.getPalette())) {
+					synchronized (CameraPreview.this) {
+						if (_captureListener == listener) {
+							_captureListener = null;
+							_captureCount = 0;
+						}
+					}
+				}
+				
 				// Check frame sequence number and drop out-of-sequence frames
 				synchronized (CameraPreview.this) {
 					// Check if camera has been switched
@@ -317,6 +439,12 @@ public class CameraPreview extends FrameLayout implements Camera.PreviewCallback
 							_holder.unlockCanvasAndPost(canvas);
 						}
 					}
+					
+					// Change the resolution between frames, unless frames are being captured at the current size
+					if (_taskGovernor != null && _captureCount == 0 && _taskGovernor.onFrame(System.nanoTime() - start)) {
+						// Draw the next frame over the current one rather than flashing black
+						initTransform(false);
+					}
 				}
 			}
 			catch (Exception e) {
@@ -0,0 +1,164 @@
+package se.embargo.retroboy;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import se.embargo.core.graphic.color.IPalette;
+import se.embargo.retroboy.filter.IImageFilter;
+import se.embargo.retroboy.filter.TransformFilter;
+import se.embargo.retroboy.graphic.PixelTransform;
+import android.app.Activity;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Saves captured frames to disk on a background thread.
+ *
+ * Shots are copied into the queue and the caller continues immediately. The total
+ * size of the queued images is bounded and further shots are rejected until enough
+ * of them have been written.
+ */
+public class CaptureQueue {
+	private static final String TAG = "CaptureQueue";
+
+	/**
+	 * Receives notifications when shots have been saved.
+	 */
+	public interface Listener {
+		/**
+		 * Called on the UI thread after a shot has been written.
+		 * @param	file	The written file
+		 */
+		public void onSaved(File file);
+	}
+
+	private final Activity _activity;
+	private final Context _context;
+	private final Listener _listener;
+
+	/**
+	 * Max number of bytes of images waiting to be saved.
+	 */
+	private final long _maxQueuedBytes;
+
+	/**
+	 * Number of bytes of images waiting to be saved.
+	 */
+	private long _queuedBytes = 0;
+
+	/**
+	 * Number of shots waiting to be saved.
+	 */
+	private int _queuedShots = 0;
+
+	private final ExecutorService _executor = Executors.newFixedThreadPool(1);
+
+	/**
+	 * @param	activity		Activity to notify on
+	 * @param	maxQueuedBytes	Max number of bytes of images waiting to be saved
+	 * @param	listener		Listener to notify when shots have been saved
+	 */
+	public CaptureQueue(Activity activity, long maxQueuedBytes, Listener listener) {
+		_activity = activity;
+		_context = activity.getApplicationContext();
+		_maxQueuedBytes = maxQueuedBytes;
+		_listener = listener;
+	}
+
+	/**
+	 * Queue a filtered frame to be transformed and saved.
+	 * @param	buffer		Filtered frame, the image is copied
+	 * @param	palette		Palette the frame was rendered with
+	 * @param	transform	Transform to apply before saving, e.g. rotation
+	 * @return				False if the queue is full and the shot was dropped
+	 */
+	public boolean offer(IImageFilter.ImageBuffer buffer, IPalette palette, PixelTransform transform) {
+		final long bytes = ((long)buffer.imagewidth * buffer.imageheight + buffer.imagewidth * 4) * 4;
+
+		synchronized (this) {
+			if (_executor.isShutdown()) {
+				return false;
+			}
+
+			// Always accept one shot so huge resolutions can be captured at all
+			if (_queuedShots > 0 && _queuedBytes + bytes > _maxQueuedBytes) {
+				Log.w(TAG, "Dropped shot with " + _queuedShots + " shots (" + _queuedBytes + " bytes) waiting to be saved");
+				return false;
+			}
+
+			_queuedBytes += bytes;
+			_queuedShots++;
+		}
+
+		// Copy the filtered image
+		_executor.submit(new SaveTask(buffer.copy(), palette, transform, bytes));
+		return true;
+	}
+
+	/**
+	 * Stops the thread once the queued shots have been saved, further shots are rejected.
+	 */
+	public synchronized void shutdown() {
+		_executor.shutdown();
+	}
+
+	/**
+	 * @return	Number of shots waiting to be saved.
+	 */
+	public synchronized int getQueuedShots() {
+		return _queuedShots;
+	}
+
+	private class SaveTask implements Runnable {
+		private final IImageFilter.ImageBuffer _buffer;
+		private final IPalette _palette;
+		private final PixelTransform _transform;
+		private final long _bytes;
+
+		public SaveTask(IImageFilter.ImageBuffer buffer, IPalette palette, PixelTransform transform, long bytes) {
+			_buffer = buffer;
+			_palette = palette;
+			_transform = transform;
+			_bytes = bytes;
+		}
+
+		@Override
+		public void run() {
+			File file = null;
+
+			try {
+				long ts = System.currentTimeMillis();
+				new TransformFilter(_transform).accept(_buffer);
+				file = Pictures.compress(_context, null, null, _buffer, _palette);
+				Log.i(TAG, "Saved shot in " + (System.currentTimeMillis() - ts) + " ms to " + file);
+			}
+			catch (Exception e) {
+				Log.e(TAG, "Failed to save shot", e);
+			}
+			finally {
+				boolean drained;
+				synchronized (CaptureQueue.this) {
+					_queuedBytes -= _bytes;
+					_queuedShots--;
+					drained = _queuedShots == 0;
+				}
+
+				// Persist the image counter once the burst has been written
+				if (drained) {
+					Pictures.flushImageCount(_context);
+				}
+			}
+
+			if (file != null) {
+				final File result = file;
+				_activity.runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						_listener.onSaved(result);
+					}
+				});
+			}
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package se.embargo.retroboy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import se.embargo.retroboy.filter.AbstractColorFilter;
+import se.embargo.retroboy.filter.EffectFilters;
+import se.embargo.retroboy.filter.IImageFilter;
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Builds the filters next to the selected one in the filter list ahead of time.
+ *
+ * Filters such as the Amstrad CPC464 and Commodore 64 take seconds to compute their mixing plans
+ * the first time they're selected. Once the preview has settled the neighbouring filters are created
+ * on a single lowest priority thread and put in the {@link FilterRegistry}, so that switching to them
+ * is instant. The lookup tables are then built serially on that thread, leaving the worker threads
+ * to the preview frames.
+ */
+public class FilterPrewarmer {
+	private static final String TAG = "FilterPrewarmer";
+
+	/**
+	 * Time in milliseconds to wait after a filter change before prewarming.
+	 */
+	private static final long PREWARM_DELAY = 1500;
+
+	private final Context _context;
+	private final ScheduledExecutorService _executor = new ScheduledThreadPoolExecutor(1);
+	private Future<?> _task = null;
+
+	public FilterPrewarmer(Context context) {
+		_context = context.getApplicationContext();
+	}
+
+	/**
+	 * Schedules the filters next to the selected one to be built, cancelling any previous run.
+	 */
+	public synchronized void prewarm() {
+		if (_executor.isShutdown()) {
+			return;
+		}
+
+		if (_task != null) {
+			_task.cancel(true);
+		}
+
+		// Capture the configuration now since preferences may change before the task runs
+		List<FilterConfig> configs = new ArrayList<FilterConfig>();
+		for (String filtertype : getNeighbours(Pictures.getFilterType(_context))) {
+			configs.add(new FilterConfig(filtertype));
+		}
+
+		_task = _executor.schedule(new PrewarmTask(configs), PREWARM_DELAY, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops building filters, the prewarmer can't be used afterwards.
+	 */
+	public synchronized void shutdown() {
+		_executor.shutdownNow();
+		_task = null;
+	}
+
+	/**
+	 * @return	The closest shareable filters before and after the given one in the filter list.
+	 */
+	private List<String> getNeighbours(String filtertype) {
+		String[] values = _context.getResources().getStringArray(R.array.pref_filter_values);
+		List<String> result = new ArrayList<String>();
+
+		int index = -1;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i].equals(filtertype)) {
+				index = i;
+				break;
+			}
+		}
+
+		if (index < 0) {
+			return result;
+		}
+
+		for (int i = index + 1; i < values.length; i++) {
+			if (!Pictures.isStatefulFilter(values[i])) {
+				result.add(values[i]);
+				break;
+			}
+		}
+
+		for (int i = index - 1; i >= 0; i--) {
+			if (!Pictures.isStatefulFilter(values[i])) {
+				result.add(values[i]);
+				break;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Settings of a filter as they were when the prewarm was scheduled, so the filter that's built 
+	 * matches the key it's registered under.
+	 */
+	private class FilterConfig {
+		private final String _filtertype, _key, _palette;
+		private final int _matrixsize, _rasterlevel;
+		private final int[] _custompalette;
+
+		public FilterConfig(String filtertype) {
+			_filtertype = filtertype;
+			_key = Pictures.getEffectFilterKey(_context, filtertype);
+			_palette = Pictures.getGameboyPalette(_context);
+			_matrixsize = Pictures.getMatrixSize(_context);
+			_rasterlevel = Pictures.getRasterLevel(_context);
+			_custompalette = Pictures.PREF_FILTER_CUSTOM.equals(filtertype) ? Pictures.getCustomPalette(_context) : null;
+		}
+
+		public IImageFilter create() {
+			return EffectFilters.create(_context, _filtertype, _matrixsize, _rasterlevel, _palette, _custompalette, true, AbstractColorFilter.InitMode.Synchronous);
+		}
+	}
+
+	private class PrewarmTask implements Runnable {
+		private final List<FilterConfig> _configs;
+
+		public PrewarmTask(List<FilterConfig> configs) {
+			_configs = configs;
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+			FilterRegistry registry = FilterRegistry.getInstance();
+
+			for (int i = 0; i < _configs.size() && !Thread.currentThread().isInterrupted(); i++) {
+				FilterConfig config = _configs.get(i);
+				String key = config._key;
+				if (registry.contains(key)) {
+					continue;
+				}
+
+				try {
+					long ts = System.nanoTime();
+					IImageFilter filter = config.create();
+					registry.put(key, filter);
+
+					Log.i(TAG, "Prewarmed " + key + " in " + ((System.nanoTime() - ts) / 1000000) + "ms");
+				}
+				catch (Exception e) {
+					Log.e(TAG, "Failed to prewarm filter " + key, e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package se.embargo.retroboy;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import se.embargo.retroboy.filter.AbstractFilter;
+import se.embargo.retroboy.filter.IImageFilter;
+import android.util.Log;
+
+/**
+ * Keeps recently used effect filters along with their lookup tables.
+ *
+ * Filters are keyed by their full configuration and evicted in least recently used order once
+ * the estimated size of their lookup tables exceeds the memory bound. The most recently used
+ * filter is always kept. Only filters without state between frames may be registered since
+ * a cached instance is handed out again as is.
+ */
+public class FilterRegistry {
+	private static final String TAG = "FilterRegistry";
+
+	/**
+	 * Estimated number of bytes held by a filter besides its lookup tables.
+	 */
+	private static final long ENTRY_OVERHEAD = 4096;
+
+	private static FilterRegistry _instance = null;
+
+	private final LinkedHashMap<String, IImageFilter> _filters = new LinkedHashMap<String, IImageFilter>(16, 0.75f, true);
+	private final long _maxbytes;
+	private long _bytes = 0;
+
+	/**
+	 * @param	maxbytes	Max number of bytes of filters to keep
+	 */
+	public FilterRegistry(long maxbytes) {
+		_maxbytes = maxbytes;
+	}
+
+	/**
+	 * @return	The application wide registry.
+	 */
+	public static synchronized FilterRegistry getInstance() {
+		if (_instance == null) {
+			_instance = new FilterRegistry(Runtime.getRuntime().maxMemory() / 16);
+		}
+
+		return _instance;
+	}
+
+	/**
+	 * @param	key		Configuration of the filter
+	 * @return			The registered filter, or null if none
+	 */
+	public synchronized IImageFilter get(String key) {
+		return _filters.get(key);
+	}
+
+	/**
+	 * Checks for a filter without marking it as recently used.
+	 * @param	key		Configuration of the filter
+	 * @return			True if a filter is registered for the key
+	 */
+	public synchronized boolean contains(String key) {
+		return _filters.containsKey(key);
+	}
+
+	/**
+	 * Registers a filter, evicting the least recently used ones if needed.
+	 * @param	key		Configuration of the filter
+	 * @param	filter	Filter to register
+	 */
+	public synchronized void put(String key, IImageFilter filter) {
+		IImageFilter previous = _filters.put(key, filter);
+		if (previous != null) {
+			_bytes -= getSize(previous);
+		}
+
+		_bytes += getSize(filter);
+
+		// Evict the least recently used filters
+		Iterator<Map.Entry<String, IImageFilter>> it = _filters.entrySet().iterator();
+		while (_bytes > _maxbytes && _filters.size() > 1 && it.hasNext()) {
+			Map.Entry<String, IImageFilter> entry = it.next();
+			Log.d(TAG, "Evicting filter " + entry.getKey());
+			_bytes -= getSize(entry.getValue());
+			it.remove();
+		}
+	}
+
+	/**
+	 * Releases all filters.
+	 */
+	public synchronized void clear() {
+		_filters.clear();
+		_bytes = 0;
+	}
+
+	private static long getSize(IImageFilter filter) {
+		if (filter instanceof AbstractFilter) {
+			return ((AbstractFilter)filter).getMemoryUsage() + ENTRY_OVERHEAD;
+		}
+
+		return ENTRY_OVERHEAD;
+	}
+}
@@ -0,0 +1,138 @@
+package se.embargo.retroboy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import se.embargo.retroboy.graphic.FrameLogWriter;
+import android.util.Log;
+
+/**
+ * Records raw camera preview frames to a frame log on a background thread.
+ *
+ * Only used by debuggable builds so that the exact preview workload of a device can be replayed
+ * with {@link se.embargo.retroboy.filter.FrameReplay}. Frames are dropped rather than stalling the
+ * preview when the disk can't keep up.
+ */
+public class FrameRecorder {
+	private static final String TAG = "FrameRecorder";
+
+	/**
+	 * Max number of frames waiting to be written.
+	 */
+	private static final int MAX_QUEUED_FRAMES = 4;
+
+	/**
+	 * Max number of frames to record.
+	 */
+	private static final int MAX_RECORDED_FRAMES = 900;
+
+	private final File _file;
+	private final int _width, _height, _framesize;
+
+	/**
+	 * Frame buffers available for new frames.
+	 */
+	private final Queue<byte[]> _bufferpool = new ArrayBlockingQueue<byte[]>(MAX_QUEUED_FRAMES);
+	private int _buffercount = 0;
+
+	private final ExecutorService _executor = Executors.newFixedThreadPool(1);
+	private FrameLogWriter _writer = null;
+	private int _framecount = 0, _dropcount = 0;
+	private boolean _closed = false;
+
+	/**
+	 * @param	file	File to write the frame log to
+	 * @param	width	Width of the preview frames
+	 * @param	height	Height of the preview frames
+	 */
+	public FrameRecorder(File file, int width, int height) {
+		_file = file;
+		_width = width;
+		_height = height;
+		_framesize = width * height * 3 / 2;
+	}
+
+	/**
+	 * Queue a preview frame to be recorded.
+	 * @param	data		NV21 frame data, the array is copied
+	 * @param	timestamp	Time the frame was received in nanoseconds
+	 */
+	public synchronized void offer(byte[] data, long timestamp) {
+		if (_closed || _framecount >= MAX_RECORDED_FRAMES) {
+			return;
+		}
+
+		byte[] frame = _bufferpool.poll();
+		if (frame == null) {
+			if (_buffercount >= MAX_QUEUED_FRAMES) {
+				_dropcount++;
+				return;
+			}
+
+			frame = new byte[_framesize];
+			_buffercount++;
+		}
+
+		System.arraycopy(data, 0, frame, 0, _framesize);
+		_framecount++;
+		_executor.submit(new WriteTask(frame, timestamp));
+	}
+
+	/**
+	 * Write the queued frames and close the frame log.
+	 */
+	public synchronized void close() {
+		if (!_closed) {
+			_closed = true;
+			_executor.submit(new CloseTask());
+			_executor.shutdown();
+		}
+	}
+
+	private class WriteTask implements Runnable {
+		private final byte[] _frame;
+		private final long _timestamp;
+
+		public WriteTask(byte[] frame, long timestamp) {
+			_frame = frame;
+			_timestamp = timestamp;
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (_writer == null) {
+					_writer = new FrameLogWriter(new FileOutputStream(_file), _width, _height);
+					Log.i(TAG, "Recording " + _width + "x" + _height + " preview frames to " + _file);
+				}
+
+				_writer.write(_frame, _timestamp);
+			}
+			catch (Exception e) {
+				Log.e(TAG, "Failed to record frame to " + _file, e);
+			}
+			finally {
+				_bufferpool.offer(_frame);
+			}
+		}
+	}
+
+	private class CloseTask implements Runnable {
+		@Override
+		public void run() {
+			if (_writer != null) {
+				try {
+					_writer.close();
+					Log.i(TAG, "Recorded " + _writer.getFrameCount() + " frames to " + _file + " (" + _dropcount + " dropped)");
+				}
+				catch (Exception e) {
+					Log.e(TAG, "Failed to close frame log " + _file, e);
+				}
+			}
+		}
+	}
+}
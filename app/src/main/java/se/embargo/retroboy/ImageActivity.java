@@ -1,15 +1,22 @@
 package se.embargo.retroboy;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-import se.embargo.core.concurrent.ProgressTask;
 import se.embargo.core.graphic.Bitmaps;
+import se.embargo.core.graphic.color.IPalette;
 import se.embargo.core.widget.ListPreferenceDialog;
 import se.embargo.retroboy.filter.CompositeFilter;
 import se.embargo.retroboy.filter.IImageFilter;
 import se.embargo.retroboy.filter.ImageBitmapFilter;
 import se.embargo.retroboy.filter.MonochromeFilter;
 import se.embargo.retroboy.filter.RgbFilter;
+import se.embargo.retroboy.filter.StripProcessor;
+import se.embargo.retroboy.filter.TransformFilter;
+import se.embargo.retroboy.graphic.PixelTransform;
 import se.embargo.retroboy.widget.PreferenceListAdapter;
 import android.app.Activity;
 import android.content.Intent;
@@ -18,6 +25,7 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -49,8 +57,8 @@ public class ImageActivity extends Activity {
 	 */
 	private PreferencesListener _prefsListener = new PreferencesListener();
 
-	private ImageInfo _inputinfo;
-	private String _outputpath;
+	private volatile ImageInfo _inputinfo;
+	private volatile String _outputpath;
 	
 	private ImageView _imageview;
 	
@@ -59,6 +67,36 @@ public class ImageActivity extends Activity {
 	
 	private ProcessImageTask _task = null;
 	
+	/**
+	 * Latest save, cancelled when a newer image is queued so only the latest one is written.
+	 */
+	private SaveImageTask _saveTask = null;
+	
+	/**
+	 * Stages of the image processing pipeline.
+	 */
+	private static final int STAGE_DECODED = 0, STAGE_ADJUSTED = 1, STAGE_RENDERED = 2, STAGE_COUNT = 3;
+	
+	/**
+	 * Downscaling of the proxy image shown while the full image is rendered.
+	 */
+	private static final int PROXY_SCALE = 4;
+	
+	/**
+	 * Min width and height of a proxy image, smaller images are rendered directly.
+	 */
+	private static final int PROXY_MIN_SIZE = 64;
+	
+	/**
+	 * Last output of each stage, reused when the inputs of a stage haven't changed.
+	 */
+	private final Stage[] _stages = new Stage[STAGE_COUNT];
+	
+	/**
+	 * Writes processed images to disk in order.
+	 */
+	private final ExecutorService _saveExecutor = Executors.newFixedThreadPool(1);
+	
 	@Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -88,6 +126,10 @@ public class ImageActivity extends Activity {
 			Pictures.PREF_RESOLUTION, R.string.pref_resolution_default, R.string.menu_option_resolution, 
 			R.array.pref_resolution_labels, R.array.pref_resolution_values));
 
+		_detailedPreferenceAdapter.add(new PreferenceListAdapter.ArrayPreferenceItem(this, _prefs,
+			Pictures.PREF_SAVERESOLUTION, R.string.pref_saveresolution_default, R.string.menu_option_saveresolution, 
+			R.array.pref_saveresolution_labels, R.array.pref_saveresolution_values));
+
 		_detailedPreferenceAdapter.add(new PreferenceListAdapter.ArrayPreferenceItem(this, _prefs,
 			Pictures.PREF_CONTRAST, R.string.pref_contrast_default, R.string.menu_option_contrast, 
 			R.array.pref_contrast_labels, R.array.pref_contrast_values));
@@ -189,7 +231,7 @@ public class ImageActivity extends Activity {
 		
 		// Process image in background
 		if (_outputpath == null && _inputinfo != null) {
-			new ProcessImageTask(_inputinfo, _outputpath).execute();
+			new ProcessImageTask(_inputinfo).execute();
 		}
 	}
 
@@ -225,7 +267,7 @@ public class ImageActivity extends Activity {
 
 		// Cancel any image processing tasks
 		if (_task != null) {
-			_task.cancel(false);
+			_task.abort();
 			_task = null;
 		}
 	}
@@ -245,6 +287,9 @@ public class ImageActivity extends Activity {
 	@Override
 	protected void onDestroy() {
 		stop();
+		
+		// Let the latest save complete, then stop its thread
+		_saveExecutor.shutdown();
 		super.onDestroy();
 	}
 	
@@ -404,10 +449,11 @@ public class ImageActivity extends Activity {
 				Pictures.PREF_MATRIXSIZE.equals(key) ||
 				Pictures.PREF_RASTERLEVEL.equals(key) ||
 				Pictures.PREF_AUTOEXPOSURE.equals(key) ||
-				Pictures.PREF_PALETTE.equals(key)) {
+				Pictures.PREF_PALETTE.equals(key) ||
+				Pictures.PREF_SAVERESOLUTION.equals(key)) {
 				// Process image in background
 				if (_inputinfo != null) {
-					new ProcessImageTask(_inputinfo, _outputpath).execute();
+					new ProcessImageTask(_inputinfo).execute();
 				}
 			}
 			
@@ -415,95 +461,333 @@ public class ImageActivity extends Activity {
 		}
 	}
 
+	private synchronized Stage getStage(int stage, String key) {
+		Stage result = _stages[stage];
+		return result != null && result.key.equals(key) ? result : null;
+	}
+	
+	private synchronized void putStage(int stage, Stage value) {
+		_stages[stage] = value;
+	}
+	
+	/**
+	 * Output of one stage of the image processing pipeline.
+	 */
+	private static class Stage {
+		/**
+		 * Identifies the inputs this stage was produced from.
+		 */
+		public final String key;
+		
+		/**
+		 * Output of the stage, must not be modified.
+		 */
+		public final IImageFilter.ImageBuffer buffer;
+		
+		/**
+		 * Palette of the output image.
+		 */
+		public final IPalette palette;
+		
+		public Stage(String key, IImageFilter.ImageBuffer buffer, IPalette palette) {
+			this.key = key;
+			this.buffer = buffer;
+			this.palette = palette;
+		}
+	}
+
 	/**
-	 * Process an image read from disk
+	 * Process an image read from disk, showing a low resolution proxy while the full image is rendered
 	 */
-	private class ProcessImageTask extends ProgressTask<Void, Void, File> {
+	private class ProcessImageTask extends AsyncTask<Void, Bitmap, Stage> {
 		private final ImageInfo _inputinfo;
-		private final String _previouspath;
+		
+		/**
+		 * Image currently being filtered.
+		 */
+		private volatile IImageFilter.ImageBuffer _buffer = null;
 
-		public ProcessImageTask(ImageInfo inputinfo, String outputpath) {
-			super(ImageActivity.this, R.string.title_saving_image, R.string.msg_saving_image);
+		public ProcessImageTask(ImageInfo inputinfo) {
 			_inputinfo = inputinfo;
-			_previouspath = outputpath;
+			
+			// Stop rendering superseded settings
+			if (_task != null) {
+				_task.abort();
+			}
+			
 			_task = this;
 		}
+		
+		/**
+		 * Cancels the task and stops filtering the current image.
+		 */
+		public void abort() {
+			cancel(false);
+			
+			IImageFilter.ImageBuffer buffer = _buffer;
+			if (buffer != null) {
+				buffer.cancelled = true;
+			}
+		}
 
 		@Override
-		protected File doInBackground(Void... params) {
+		protected Stage doInBackground(Void... params) {
 			// Get the resolution and contrast from preferences
 			Pictures.Resolution resolution = Pictures.getResolution(ImageActivity.this, _prefs);
 			int contrast = Pictures.getContrast(ImageActivity.this, _prefs);
 
-			// Read the image from disk
-			Log.i(TAG, "Reading image: " + _inputinfo.uri);
-			Bitmap input = Bitmaps.decodeUri(getContentResolver(), _inputinfo.uri, resolution.width, resolution.height);
-
-			// Rotate the image as needed
-			if (_inputinfo.orientation != 0) {
-				Bitmaps.Transform transform = Bitmaps.createTransform(
-					input.getWidth(), input.getHeight(),
-					input.getWidth(), input.getHeight(),
-					0, _inputinfo.orientation, false);
-				input = Bitmaps.transform(input, transform);
-			}
-			
 			// Check the auto exposure setting
 			String autoexposurevalue = _prefs.getString(Pictures.PREF_AUTOEXPOSURE, getResources().getString(R.string.pref_autoexposure_default));
 			boolean autoexposure = "auto".equals(autoexposurevalue);
 			
-			// Create the image filter pipeline
-			IImageFilter.ImageBuffer buffer = new IImageFilter.ImageBuffer(input);
-			CompositeFilter filter = new CompositeFilter();
-			
+			// Keys of each stage include the keys of the previous stages
 			IImageFilter effect = Pictures.createEffectFilter(ImageActivity.this);
-			if (effect.isColorFilter()) {
-				filter.add(new RgbFilter(contrast, autoexposure));
+			String decodedkey = _inputinfo.uri + "/" + _inputinfo.orientation + "/" + resolution.width + "x" + resolution.height;
+			String adjustedkey = decodedkey + "/" + contrast + "/" + autoexposure + "/" + effect.isColorFilter();
+			String renderedkey = adjustedkey + "/" + Pictures.getEffectFilterKey(ImageActivity.this);
+			
+			Stage rendered = getStage(STAGE_RENDERED, renderedkey);
+			if (rendered != null) {
+				Log.i(TAG, "Reusing rendered image");
+				return rendered;
 			}
-			else {
-				filter.add(new MonochromeFilter(contrast, autoexposure));
+			
+			Stage decoded = getStage(STAGE_DECODED, decodedkey);
+			if (decoded == null) {
+				// Read the image from disk
+				Log.i(TAG, "Reading image: " + _inputinfo.uri);
+				Bitmap input = Bitmaps.decodeUri(getContentResolver(), _inputinfo.uri, resolution.width, resolution.height);
+				IImageFilter.ImageBuffer buffer = new IImageFilter.ImageBuffer(input);
+				buffer.bitmap = null;
+				
+				// Rotate the image as needed
+				if (_inputinfo.orientation != 0 && !accept(new TransformFilter(PixelTransform.create(
+						input.getWidth(), input.getHeight(),
+						input.getWidth(), input.getHeight(),
+						false, _inputinfo.orientation, false)), buffer)) {
+					return null;
+				}
+				
+				decoded = new Stage(decodedkey, buffer, null);
+				putStage(STAGE_DECODED, decoded);
+			}
+			
+			Stage adjusted = getStage(STAGE_ADJUSTED, adjustedkey);
+			IImageFilter adjust = effect.isColorFilter() ? 
+				new RgbFilter(contrast, autoexposure) : new MonochromeFilter(contrast, autoexposure);
+			
+			// Show a proxy through the same pipeline while the full image is rendered
+			IImageFilter.ImageBuffer source = adjusted != null ? adjusted.buffer : decoded.buffer;
+			if (source.imagewidth / PROXY_SCALE >= PROXY_MIN_SIZE && source.imageheight / PROXY_SCALE >= PROXY_MIN_SIZE) {
+				long ts = System.currentTimeMillis();
+				IImageFilter.ImageBuffer proxy = createProxy(source);
+				CompositeFilter filter = new CompositeFilter();
+				if (adjusted == null) {
+					filter.add(adjust);
+				}
+				
+				filter.add(effect);
+				filter.add(new ImageBitmapFilter());
+				
+				if (!accept(filter, proxy)) {
+					return null;
+				}
+				
+				Log.i(TAG, "Rendered proxy in " + (System.currentTimeMillis() - ts) + " ms");
+				publishProgress(proxy.bitmap);
 			}
 			
+			if (adjusted == null) {
+				// Adjust the contrast and exposure
+				IImageFilter.ImageBuffer buffer = decoded.buffer.copy();
+				if (!accept(adjust, buffer)) {
+					return null;
+				}
+				
+				adjusted = new Stage(adjustedkey, buffer, null);
+				putStage(STAGE_ADJUSTED, adjusted);
+			}
+			
+			// Apply the effect and convert the result for display
+			long ts = System.currentTimeMillis();
+			IImageFilter.ImageBuffer buffer = adjusted.buffer.copy();
+			CompositeFilter filter = new CompositeFilter();
 			filter.add(effect);
 			filter.add(new ImageBitmapFilter());
+			if (!accept(filter, buffer)) {
+				return null;
+			}
 
-			// Apply the image filter to the current image			
+			Log.i(TAG, "Rendered image in " + (System.currentTimeMillis() - ts) + " ms");
+			rendered = new Stage(renderedkey, buffer, effect.getPalette());
+			putStage(STAGE_RENDERED, rendered);
+			return rendered;
+		}
+		
+		/**
+		 * Applies a filter unless the task has been cancelled.
+		 * @return	False if the task was cancelled before or during filtering
+		 */
+		private boolean accept(IImageFilter filter, IImageFilter.ImageBuffer buffer) {
+			_buffer = buffer;
+			if (isCancelled()) {
+				buffer.cancelled = true;
+			}
+			
 			filter.accept(buffer);
+			_buffer = null;
 			
-			// Write the image to disk
-			File result = Pictures.compress(ImageActivity.this, _inputinfo.filename, _previouspath, buffer.bitmap);
-			Log.i(TAG, "Wrote image: " + result);
+			if (buffer.cancelled) {
+				Log.i(TAG, "Stopped rendering superseded image");
+				return false;
+			}
+			
+			return true;
+		}
+		
+		/**
+		 * Scales down an image using nearest neighbor sampling.
+		 */
+		private IImageFilter.ImageBuffer createProxy(IImageFilter.ImageBuffer source) {
+			final int width = source.imagewidth / PROXY_SCALE, height = source.imageheight / PROXY_SCALE;
+			PixelTransform transform = new PixelTransform(source.imagewidth, source.imageheight, width, height, 0, false);
+
+			IImageFilter.ImageBuffer result = new IImageFilter.ImageBuffer(source.framewidth, source.frameheight);
+			result.image = IntBuffer.wrap(new int[width * height + width * 4]);
+			result.imagewidth = width;
+			result.imageheight = height;
+			result.threshold = source.threshold;
+			transform.apply(source.image.array(), result.image.array());
 			return result;
 		}
 		
 		@Override
-		protected void onCancelled(File result) {
+		protected void onProgressUpdate(Bitmap... values) {
+			if (!isCancelled()) {
+				_imageview.setImageBitmap(values[0]);
+			}
+		}
+		
+		@Override
+		protected void onCancelled(Stage result) {
 			if (_task == this) {
 				_task = null;
 			}
-
-			super.onCancelled(result);
 		}
 		
 		@Override
-		protected void onPostExecute(File result) {
+		protected void onPostExecute(Stage result) {
+			if (_task == this) {
+				_task = null;
+			}
+			
+			// Show the processed image directly from memory
+			_imageview.setImageBitmap(result.buffer.bitmap);
+			
+			// Write the image to disk in the background, superseding a save that hasn't completed
+			if (_saveTask != null) {
+				_saveTask.abort();
+			}
+			
+			_saveTask = new SaveImageTask(_inputinfo, result);
+			_saveTask.executeOnExecutor(_saveExecutor);
+		}
+	}
+	
+	/**
+	 * Writes a processed image to disk
+	 */
+	private class SaveImageTask extends AsyncTask<Void, Void, File> {
+		private final ImageInfo _inputinfo;
+		private final Stage _image;
+		
+		/**
+		 * Filters the original image, or null if not filtering.
+		 */
+		private volatile StripProcessor _processor = null;
+		
+		public SaveImageTask(ImageInfo inputinfo, Stage image) {
+			_inputinfo = inputinfo;
+			_image = image;
+		}
+		
+		/**
+		 * Cancels the save if it hasn't started, or stops filtering the original image.
+		 */
+		public void abort() {
+			cancel(false);
+			
+			StripProcessor processor = _processor;
+			if (processor != null) {
+				processor.cancel();
+			}
+		}
+		
+		@Override
+		protected File doInBackground(Void... params) {
+			// Overwrite the previously written file unless another image has been picked
+			boolean current = _inputinfo == ImageActivity.this._inputinfo;
+			String previouspath = current ? _outputpath : null;
+			
+			File result = null;
+			String saveresolution = _prefs.getString(Pictures.PREF_SAVERESOLUTION, getResources().getString(R.string.pref_saveresolution_default));
+			if (Pictures.PREF_SAVERESOLUTION_ORIGINAL.equals(saveresolution) && Pictures.isStripFilter(ImageActivity.this)) {
+				result = compressOriginal(previouspath);
+			}
+			
+			if (result == null) {
+				result = Pictures.compress(ImageActivity.this, _inputinfo.filename, previouspath, _image.buffer, _image.palette);
+			}
+			
+			// A superseded save that was stopped leaves no file, the newer save writes the image instead
+			if (!result.exists()) {
+				Log.i(TAG, "Stopped writing superseded image: " + result);
+				return null;
+			}
+			
+			Log.i(TAG, "Wrote image: " + result);
+			
 			// Remember the written file in case the filter or contrast is changed
-			_outputpath = result.toString();
+			if (current && _inputinfo == ImageActivity.this._inputinfo) {
+				_outputpath = result.toString();
+			}
 			
-			// Show the processed image
-			Bitmap bm = BitmapFactory.decodeFile(result.toString());
-			if (bm != null) {
-				_imageview.setImageBitmap(bm);
+			return result;
+		}
+		
+		/**
+		 * Filters the original image in strips to keep memory use bounded.
+		 * @return	The written file, or null if the image couldn't be decoded 
+		 */
+		private File compressOriginal(String previouspath) {
+			ImageRegionSource source;
+			try {
+				source = new ImageRegionSource(getContentResolver(), _inputinfo.uri, _inputinfo.orientation);
 			}
-			else {
-				Log.w(TAG, "Failed to read created image " + result.toString());
+			catch (IOException e) {
+				Log.w(TAG, "Failed to open original image " + _inputinfo.uri, e);
+				return null;
 			}
 			
-			if (_task == this) {
-				_task = null;
+			try {
+				// Use the threshold measured on the rendered image for all strips
+				int contrast = Pictures.getContrast(ImageActivity.this, _prefs);
+				IImageFilter effect = Pictures.createEffectFilter(ImageActivity.this);
+				IImageFilter adjust = effect.isColorFilter() ? 
+					new RgbFilter(contrast, false) : new MonochromeFilter(contrast, false);
+				
+				Log.i(TAG, "Filtering original image of " + source.getWidth() + "x" + source.getHeight() + " pixels");
+				_processor = new StripProcessor(adjust, effect, _image.buffer.threshold);
+				if (isCancelled()) {
+					_processor.cancel();
+				}
+				
+				return Pictures.compress(ImageActivity.this, _inputinfo.filename, previouspath, source, _processor, effect.getPalette());
+			}
+			finally {
+				_processor = null;
+				source.close();
 			}
-
-			super.onPostExecute(result);
 		}
 	}
 }
@@ -0,0 +1,117 @@
+package se.embargo.retroboy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.IntBuffer;
+
+import se.embargo.retroboy.filter.StripProcessor;
+import se.embargo.retroboy.graphic.PixelTransform;
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.net.Uri;
+
+/**
+ * Decodes rows of an image at its original resolution without decoding the whole image.
+ */
+public class ImageRegionSource implements StripProcessor.IRowSource {
+	private final BitmapRegionDecoder _decoder;
+	private final BitmapFactory.Options _options = new BitmapFactory.Options();
+
+	/**
+	 * Clockwise rotation to apply to the decoded image.
+	 */
+	private final int _orientation;
+
+	/**
+	 * Size of the image before and after rotation.
+	 */
+	private final int _inputwidth, _inputheight, _width, _height;
+
+	/**
+	 * Decoded region before rotation.
+	 */
+	private int[] _scratch = null;
+
+	/**
+	 * @param	resolver	Resolver used to open the image
+	 * @param	uri			Image to read
+	 * @param	orientation	Clockwise rotation in degrees, a multiple of 90
+	 */
+	public ImageRegionSource(ContentResolver resolver, Uri uri, int orientation) throws IOException {
+		InputStream is = resolver.openInputStream(uri);
+		if (is == null) {
+			throw new IOException("Failed to open " + uri);
+		}
+
+		try {
+			_decoder = BitmapRegionDecoder.newInstance(is, false);
+		}
+		finally {
+			is.close();
+		}
+
+		_options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		_orientation = ((orientation % 360) + 360) % 360;
+		_inputwidth = _decoder.getWidth();
+		_inputheight = _decoder.getHeight();
+
+		final boolean transpose = _orientation == 90 || _orientation == 270;
+		_width = transpose ? _inputheight : _inputwidth;
+		_height = transpose ? _inputwidth : _inputheight;
+	}
+
+	@Override
+	public int getWidth() {
+		return _width;
+	}
+
+	@Override
+	public int getHeight() {
+		return _height;
+	}
+
+	@Override
+	public void read(int y, int rows, int[] image) throws IOException {
+		// Region of the unrotated image that becomes the requested rows
+		Rect rect;
+		switch (_orientation) {
+			case 90: rect = new Rect(y, 0, y + rows, _inputheight); break;
+			case 180: rect = new Rect(0, _inputheight - y - rows, _inputwidth, _inputheight - y); break;
+			case 270: rect = new Rect(_inputwidth - y - rows, 0, _inputwidth - y, _inputheight); break;
+			default: rect = new Rect(0, y, _inputwidth, y + rows); break;
+		}
+
+		Bitmap region = _decoder.decodeRegion(rect, _options);
+		if (region == null) {
+			throw new IOException("Failed to decode region " + rect);
+		}
+
+		try {
+			if (_orientation == 0) {
+				region.copyPixelsToBuffer(IntBuffer.wrap(image, 0, _width * rows));
+				return;
+			}
+
+			final int regionsize = rect.width() * rect.height();
+			if (_scratch == null || _scratch.length < regionsize) {
+				_scratch = new int[regionsize];
+			}
+
+			region.copyPixelsToBuffer(IntBuffer.wrap(_scratch, 0, regionsize));
+			new PixelTransform(rect.width(), rect.height(), _width, rows, _orientation, false).apply(_scratch, image);
+		}
+		finally {
+			region.recycle();
+		}
+	}
+
+	/**
+	 * Releases the decoder.
+	 */
+	public void close() {
+		_decoder.recycle();
+	}
+}
@@ -1,26 +1,28 @@
 package se.embargo.retroboy;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
-import se.embargo.core.concurrent.ProgressTask;
+import se.embargo.core.Strings;
 import se.embargo.core.databinding.PreferenceProperties;
 import se.embargo.core.databinding.observable.ChangeEvent;
 import se.embargo.core.databinding.observable.IChangeListener;
 import se.embargo.core.databinding.observable.IObservableValue;
 import se.embargo.core.databinding.observable.WritableValue;
-import se.embargo.core.graphic.Bitmaps;
-import se.embargo.core.graphic.color.IIndexedPalette;
 import se.embargo.core.graphic.color.IPalette;
 import se.embargo.core.widget.ListPreferenceDialog;
 import se.embargo.core.widget.SeekBarDialog;
 import se.embargo.retroboy.filter.CompositeFilter;
+import se.embargo.retroboy.filter.FrameReplay;
 import se.embargo.retroboy.filter.IImageFilter;
 import se.embargo.retroboy.filter.ImageBitmapFilter;
-import se.embargo.retroboy.filter.TransformFilter;
 import se.embargo.retroboy.filter.YuvFilter;
+import se.embargo.retroboy.graphic.FrameLogReader;
+import se.embargo.retroboy.graphic.PixelTransform;
 import se.embargo.retroboy.widget.PreferenceListAdapter;
 import se.embargo.retroboy.widget.PreferenceListAdapter.ArrayPreferenceItem;
 import se.embargo.retroboy.widget.PreferenceListAdapter.PreferenceItem;
@@ -32,13 +34,13 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.ImageFormat;
 import android.hardware.Camera;
-import android.hardware.Camera.PreviewCallback;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
@@ -71,6 +73,18 @@ public class MainActivity extends Activity {
 	private static final String PREF_AUTOFOCUS = "autofocus";
 	private static final String PREF_AUTOFOCUS_AUTO = "auto";
 	
+	/**
+	 * Records raw preview frames for replay, only available in debuggable builds.
+	 */
+	private static final String PREF_FRAMELOG = "framelog";
+	private static final String PREF_FRAMELOG_RECORD = "record";
+	private static final String PREF_FRAMELOG_REPLAY = "replay";
+	
+	/**
+	 * Preview frame rate to maintain by lowering the processing resolution.
+	 */
+	private static final float PREVIEW_TARGET_FPS = 15.0f;
+	
 	/**
 	 * Radians per second required to trigger movement detection
 	 */
@@ -148,9 +162,9 @@ public class MainActivity extends Activity {
 	private IObservableValue<Float> _zoomLevel = new WritableValue<Float>(0.0f);
 	
 	/**
-	 * Currently running image processing task
+	 * Saves captured photos in the background
 	 */
-	private ProcessFrameTask _task = null;
+	private CaptureQueue _captureQueue;
 
 	/**
 	 * Tracks if a single finger is touching the screen.
@@ -181,6 +195,16 @@ public class MainActivity extends Activity {
 	 */
 	private IImageFilter _effectFilter;
 	
+	/**
+	 * Adjusts the preview resolution to maintain the frame rate.
+	 */
+	private ResolutionGovernor _governor;
+	
+	/**
+	 * Builds the neighbouring filters in the background.
+	 */
+	private FilterPrewarmer _prewarmer;
+	
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
@@ -208,6 +232,18 @@ public class MainActivity extends Activity {
 		View previewLayout = findViewById(R.id.cameraPreviewLayout);
 		_focusManager = new FocusManager(this, _prefs, _cameraHandle, previewLayout);
 		_videoRecorder = new VideoRecorder(this, previewLayout);
+		_prewarmer = new FilterPrewarmer(this);
+		_videoRecorder.setStreaming(true);
+		_captureQueue = new CaptureQueue(this, Runtime.getRuntime().maxMemory() / 4, new CaptureQueue.Listener() {
+			@Override
+			public void onSaved(File file) {
+				// Callback after captured media
+				onMediaCaptured();
+				
+				// Update the last photo thumbnail
+				new GetLastThumbnailTask().execute();
+			}
+		});
 		_videoRecorder.setStateChangeListener(new VideoRecorder.StateChangeListener() {
 			@Override
 			public void onRecord() {
@@ -217,6 +253,7 @@ public class MainActivity extends Activity {
 			@Override
 			public void onStop() {
 				_cameraState.setValue(CameraState.Video);
+				unlockResolution();
 
 				// Stop preview while image is processed
 				CameraHandle handle = _cameraHandle.getValue();
@@ -228,6 +265,7 @@ public class MainActivity extends Activity {
 			@Override
 			public void onFinish() {
 				_cameraState.setValue(CameraState.Video);
+				unlockResolution();
 			
 				// Callback after captured media
 				onMediaCaptured();
@@ -255,6 +293,10 @@ public class MainActivity extends Activity {
 		
 		_detailedPreferenceAdapter.add(new SceneModePreferenceItem());
 		
+		_detailedPreferenceAdapter.add(new PreferenceListAdapter.ArrayPreferenceItem(this, _prefs,
+			Pictures.PREF_BURST, R.string.pref_burst_default, R.string.menu_option_burst, 
+			R.array.pref_burst_labels, R.array.pref_burst_values));
+
 		_detailedPreferenceAdapter.add(new PreferenceListAdapter.ArrayPreferenceItem(this, _prefs,
 			Pictures.PREF_CONTRAST, R.string.pref_contrast_default, R.string.menu_option_contrast, 
 			R.array.pref_contrast_labels, R.array.pref_contrast_values));
@@ -302,6 +344,16 @@ public class MainActivity extends Activity {
 			Pictures.PREF_ORIENTATION, R.string.pref_orientation_default, R.string.menu_option_orientation, 
 			R.array.pref_orientation_labels, R.array.pref_orientation_values));
 		
+		_detailedPreferenceAdapter.add(new PreferenceListAdapter.ArrayPreferenceItem(this, _prefs,
+			Pictures.PREF_VIDEOFORMAT, R.string.pref_videoformat_default, R.string.menu_option_videoformat, 
+			R.array.pref_videoformat_labels, R.array.pref_videoformat_values));
+		
+		if (isDebuggable()) {
+			_detailedPreferenceAdapter.add(new PreferenceListAdapter.ArrayPreferenceItem(this, _prefs,
+				PREF_FRAMELOG, R.string.pref_framelog_default, R.string.menu_option_framelog, 
+				R.array.pref_framelog_labels, R.array.pref_framelog_values));
+		}
+		
 		// Set the adapter after populating to ensure list height measure is done properly
 		_detailedPreferences.setAdapter(_detailedPreferenceAdapter);
 
@@ -445,6 +497,7 @@ public class MainActivity extends Activity {
 	@Override
 	protected void onPause() {
 		stop();
+		Pictures.flushImageCount(this);
 		super.onPause();
 	}
 	
@@ -457,12 +510,16 @@ public class MainActivity extends Activity {
 	@Override
 	protected void onDestroy() {
 		stop();
+		_prewarmer.shutdown();
+		_videoRecorder.shutdown();
+		_captureQueue.shutdown();
 		super.onDestroy();
 	}
 	
 	@Override
 	public void onLowMemory() {
 		_videoRecorder.stop();
+		FilterRegistry.getInstance().clear();
 		super.onLowMemory();
 	}
 	
@@ -596,6 +653,33 @@ public class MainActivity extends Activity {
 			Log.i(TAG, "Starting preview");
 			_cameraHandle.setValue(handle);
 			_preview.setCamera(handle);
+			initFrameLog();
+		}
+	}
+	
+	/**
+	 * @return	True if this is a debuggable build.
+	 */
+	private boolean isDebuggable() {
+		return (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0;
+	}
+	
+	private void initFrameLog() {
+		String framelog = _prefs.getString(PREF_FRAMELOG, getString(R.string.pref_framelog_default));
+		if (isDebuggable() && PREF_FRAMELOG_RECORD.equals(framelog)) {
+			// Pull the frame log from the app's external files directory for replay
+			File file = new File(getExternalFilesDir(null), "frames-" + System.currentTimeMillis() + ".rbf");
+			_preview.recordFrames(file);
+		}
+		else {
+			_preview.recordFrames(null);
+			
+			if (isDebuggable() && PREF_FRAMELOG_REPLAY.equals(framelog)) {
+				// Replaying is a one-off action so the preference goes back to its default
+				_prefs.edit().putString(PREF_FRAMELOG, getString(R.string.pref_framelog_default)).apply();
+				Toast.makeText(this, R.string.msg_replay_frames, Toast.LENGTH_SHORT).show();
+				new ReplayFramesTask().execute();
+			}
 		}
 	}
 	
@@ -610,21 +694,32 @@ public class MainActivity extends Activity {
 
 		// Create the image filter pipeline
 		CompositeFilter filter = new CompositeFilter();
-		_effectFilter = Pictures.createEffectFilter(this);
-		filter.add(new YuvFilter(resolution.width, resolution.height, contrast, _effectFilter.isColorFilter(), autoexposure));
+		_effectFilter = Pictures.getEffectFilter(this);
+		YuvFilter yuvFilter = new YuvFilter(resolution.width, resolution.height, contrast, _effectFilter.isColorFilter(), autoexposure);
+		filter.add(yuvFilter);
 		filter.add(_effectFilter);
 		filter.add(new ImageBitmapFilter());
 		filter.add(_videoRecorder);
-		_preview.setFilter(filter);
+		
+		// Lower the resolution when the device can't keep up
+		_governor = new ResolutionGovernor(yuvFilter, Pictures.getResolutions(this), resolution, PREVIEW_TARGET_FPS);
+		_governor.setLocked(_videoRecorder.isRecording());
+		_preview.setFilter(filter, _governor);
+		
+		// Prepare the filters the user is likely to try next
+		_prewarmer.prewarm();
 	}
 	
-	private void stopPreview() {
-		// Cancel any image processing tasks
-		if (_task != null) {
-			_task.cancel(false);
-			_task = null;
+	/**
+	 * Allows the resolution to change again after a recording.
+	 */
+	private void unlockResolution() {
+		if (_governor != null) {
+			_governor.setLocked(false);
 		}
-		
+	}
+	
+	private void stopPreview() {
 		// Stop the preview and release the camera
 		CameraHandle handle = _cameraHandle.getValue();
 		if (handle != null) {
@@ -701,6 +796,73 @@ public class MainActivity extends Activity {
 		}
 	}
 	
+	/**
+	 * Filters the most recent frame log at maximum speed and shows the timings.
+	 */
+	private class ReplayFramesTask extends AsyncTask<Void, Void, String> {
+		private final File _dir = getExternalFilesDir(null);
+		private final IImageFilter _filter;
+		
+		public ReplayFramesTask() {
+			// Filter the frames like the preview does, up to the conversion to bitmap
+			Pictures.Resolution resolution = Pictures.getResolution(MainActivity.this, _prefs);
+			int contrast = Pictures.getContrast(MainActivity.this, _prefs);
+			String autoexposurevalue = _prefs.getString(Pictures.PREF_AUTOEXPOSURE, getResources().getString(R.string.pref_autoexposure_default));
+			boolean autoexposure = "auto".equals(autoexposurevalue);
+			
+			IImageFilter effect = Pictures.createEffectFilter(MainActivity.this);
+			CompositeFilter filter = new CompositeFilter();
+			filter.add(new YuvFilter(resolution.width, resolution.height, contrast, effect.isColorFilter(), autoexposure));
+			filter.add(effect);
+			_filter = filter;
+		}
+		
+		@Override
+		protected String doInBackground(Void... params) {
+			File[] files = _dir != null ? _dir.listFiles() : null;
+			File last = null;
+			if (files != null) {
+				for (File file : files) {
+					if (file.getName().endsWith(".rbf") && (last == null || file.lastModified() > last.lastModified())) {
+						last = file;
+					}
+				}
+			}
+			
+			if (last == null) {
+				return getString(R.string.error_replay_frames_none);
+			}
+			
+			try {
+				FrameLogReader reader = new FrameLogReader(new FileInputStream(last));
+				try {
+					FrameReplay replay = new FrameReplay(reader);
+					replay.replay(_filter, false);
+					
+					String summary = replay.getSummary();
+					Log.i(TAG, summary + " from " + last);
+					return summary;
+				}
+				finally {
+					reader.close();
+				}
+			}
+			catch (IOException e) {
+				Log.w(TAG, "Failed to replay " + last, e);
+			}
+			catch (InterruptedException e) {
+				Log.w(TAG, "Replay of " + last + " was interrupted");
+			}
+			
+			return getString(R.string.error_replay_frames);
+		}
+		
+		@Override
+		protected void onPostExecute(String result) {
+			Toast.makeText(MainActivity.this, result, Toast.LENGTH_LONG).show();
+		}
+	}
+	
 	private class PickImageListener implements View.OnClickListener {
 		@Override
 		public void onClick(View v) {
@@ -771,7 +933,12 @@ public class MainActivity extends Activity {
 		}
 	}
 	
-	private class TakePhotoListener implements View.OnTouchListener, PreviewCallback {
+	private class TakePhotoListener implements View.OnTouchListener, CameraPreview.CaptureListener {
+		/**
+		 * Transform to apply to captured frames.
+		 */
+		private volatile PixelTransform _transform;
+		
 		@Override
 		public boolean onTouch(View v, MotionEvent event) {
 			reset();
@@ -781,7 +948,11 @@ public class MainActivity extends Activity {
 				case MotionEvent.ACTION_POINTER_DOWN: {
 					CameraHandle handle = _cameraHandle.getValue();
 					if (handle != null) {
-						handle.camera.setPreviewCallbackWithBuffer(this);
+						// Capture the next preview frames while the preview keeps running
+						int count = Strings.parseInt(_prefs.getString(Pictures.PREF_BURST, 
+							getResources().getString(R.string.pref_burst_default)), 1);
+						_transform = getTransform(handle, Pictures.getResolution(MainActivity.this, _prefs));
+						_preview.capture(this, Math.max(count, 1));
 					}
 					
 					return true;
@@ -792,19 +963,28 @@ public class MainActivity extends Activity {
 		}
 
 		@Override
-		public void onPreviewFrame(byte[] data, Camera camera_) {
+		public boolean onCapture(IImageFilter.ImageBuffer buffer, IPalette palette) {
+			Log.d(TAG, "Captured frame to save");
+			
+			// The resolution may have changed since the shot was triggered
+			PixelTransform transform = _transform;
 			CameraHandle handle = _cameraHandle.getValue();
-
-			// data may be null if buffer was too small
-			if (handle != null && data != null) {
-				Log.d(TAG, "Captured frame to save");
-				
-				// Stop receiving camera frames
-				handle.camera.setPreviewCallbackWithBuffer(null);
+			if (handle != null && (transform.inputwidth != buffer.imagewidth || transform.inputheight != buffer.imageheight)) {
+				transform = _transform = getTransform(handle);
+			}
+			
+			if (!_captureQueue.offer(buffer, palette, transform)) {
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						Toast.makeText(MainActivity.this, R.string.error_capture_queue_full, Toast.LENGTH_SHORT).show();
+					}
+				});
 				
-				// Process and save the picture
-				new ProcessFrameTask(handle, data).execute();
+				return false;
 			}
+			
+			return true;
 		}
 	}
 	
@@ -822,9 +1002,12 @@ public class MainActivity extends Activity {
 					// Start recording if we're not currently doing so
 					CameraHandle handle = _cameraHandle.getValue();
 					if (handle != null && !_videoRecorder.isRecording()) {
-						IPalette palette = _preview.getFilter().getPalette();
-						IIndexedPalette indexed = (palette instanceof IIndexedPalette) ? (IIndexedPalette)palette : null;
-						_videoRecorder.record(getTransform(handle), indexed);
+						// All frames of the animation must have the same size
+						if (_governor != null) {
+							_governor.setLocked(true);
+						}
+						
+						_videoRecorder.record(getTransform(handle), _preview.getFilter().getPalette());
 						_prevEvent = System.currentTimeMillis();
 					}
 					else {
@@ -898,15 +1081,22 @@ public class MainActivity extends Activity {
 		}
 	}
 	
-	private Bitmaps.Transform getTransform(CameraHandle handle) {
+	private PixelTransform getTransform(CameraHandle handle) {
+		return getTransform(handle, _governor != null ? _governor.getResolution() : Pictures.getResolution(MainActivity.this, _prefs));
+	}
+	
+	/**
+	 * Creates the transform of preview frames.
+	 * @param	resolution	Resolution the frames are filtered at
+	 */
+	private PixelTransform getTransform(CameraHandle handle, Pictures.Resolution resolution) {
 		Camera.Size size = handle.camera.getParameters().getPreviewSize();
 		
 		// Get the current device orientation
 		WindowManager windowManager = (WindowManager)getSystemService(Context.WINDOW_SERVICE);
 		int rotation = _rotationListener.getCurrentRotation(windowManager.getDefaultDisplay().getRotation());
 		
-		// Get the resolution and contrast from preferences
-		Pictures.Resolution resolution = Pictures.getResolution(MainActivity.this, _prefs);
+		// Get the current contrast
 		int contrast = Pictures.getContrast(MainActivity.this, _prefs);
 
 		// Check for orientation override
@@ -914,7 +1104,7 @@ public class MainActivity extends Activity {
 		
 		// Create the image filter pipeline
 		YuvFilter yuvFilter = new YuvFilter(resolution.width, resolution.height, contrast, false, false);
-		Bitmaps.Transform transform = Pictures.createTransformMatrix(
+		PixelTransform transform = Pictures.createPixelTransform(
 			yuvFilter.getEffectiveWidth(size.width, size.height), 
 			yuvFilter.getEffectiveHeight(size.width, size.height), 
 			handle.info.facing, orientation, rotation,
@@ -923,86 +1113,6 @@ public class MainActivity extends Activity {
 		return transform;
 	}
 	
-	/**
-	 * Process an camera preview frame
-	 */
-	private class ProcessFrameTask extends ProgressTask<Void, Void, Void> {
-		private IImageFilter _filter;
-		private IImageFilter.ImageBuffer _buffer;
-
-		public ProcessFrameTask(CameraHandle handle, byte[] data) {
-			super(MainActivity.this, R.string.title_saving_image, R.string.msg_saving_image);
-			Camera.Size size = handle.camera.getParameters().getPreviewSize();
-			_buffer = new IImageFilter.ImageBuffer(data, size.width, size.height);
-			_task = this;
-			
-			// Get the resolution and contrast from preferences
-			Pictures.Resolution resolution = Pictures.getResolution(MainActivity.this, _prefs);
-			int contrast = Pictures.getContrast(MainActivity.this, _prefs);
-			
-			// Check the auto exposure setting
-			String autoexposurevalue = _prefs.getString(Pictures.PREF_AUTOEXPOSURE, getResources().getString(R.string.pref_autoexposure_default));
-			boolean autoexposure = "auto".equals(autoexposurevalue);
-			
-			// Create the image filter pipeline
-			IImageFilter effect = _effectFilter;
-			YuvFilter yuvFilter = new YuvFilter(resolution.width, resolution.height, contrast, effect.isColorFilter(), autoexposure);
-			Bitmaps.Transform transform = getTransform(handle);
-			
-			CompositeFilter filter = new CompositeFilter();
-			filter.add(yuvFilter);
-			filter.add(effect);
-			filter.add(new ImageBitmapFilter());
-			filter.add(new TransformFilter(transform));
-			_filter = filter;
-		}
-		
-		@Override
-		protected Void doInBackground(Void... params) {
-			Log.d(TAG, "Processing captured image");
-			
-			// Apply the image filter to the current image			
-			_filter.accept(_buffer);
-			
-			// Write the image to disk
-			File file = Pictures.compress(MainActivity.this, null, null, _buffer.bitmap);
-			Log.i(TAG, "Wrote image to disk: " + file);
-			
-			return null;
-		}
-		
-		@Override
-		protected void onCancelled() {
-			Log.w(TAG, "Image processing was cancelled");
-			
-			if (_task == this) {
-				_task = null;
-			}
-			
-			super.onCancelled();
-		}
-		
-		@Override
-		protected void onPostExecute(Void result) {
-			Log.i(TAG, "Successfully captured image");
-
-			// Callback after captured media
-			onMediaCaptured();
-
-			// Update the last photo thumbnail
-			new GetLastThumbnailTask().execute();
-			
-			// Restart preview
-			_preview.initPreviewCallback();
-
-			if (_task == this) {
-				_task = null;
-			}
-			
-			super.onPostExecute(result);
-		}
-	}
-	
 	/**
 	 * Listens for preference changes and applies updates
 	 */
@@ -1027,6 +1137,10 @@ public class MainActivity extends Activity {
 					// Change the active image filter
 					initFilter();
 				}
+				else if (PREF_FRAMELOG.equals(key)) {
+					// Start or stop recording preview frames
+					initFrameLog();
+				}
 				else if (Pictures.PREF_RESOLUTION.equals(key)) {
 					Log.i(TAG, "Resolution changed through preferences");
 
@@ -0,0 +1,138 @@
+package se.embargo.retroboy;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import se.embargo.core.concurrent.ProgressTask;
+import se.embargo.retroboy.color.PaletteReader;
+import se.embargo.retroboy.filter.AbstractColorFilter;
+import se.embargo.retroboy.filter.IImageFilter;
+import android.app.Activity;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.util.Log;
+import android.widget.Toast;
+
+/**
+ * Imports a palette file opened or shared from another app and selects the custom palette filter.
+ */
+public class PaletteActivity extends Activity {
+	private static final String TAG = "PaletteActivity";
+
+	/**
+	 * Milliseconds between progress updates while the mixing plans are computed.
+	 */
+	private static final long PROGRESS_INTERVAL = 250;
+
+	private ImportTask _task = null;
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+
+		// Read the palette from the intent
+		Uri uri = getIntent().getData();
+		if (Intent.ACTION_SEND.equals(getIntent().getAction())) {
+			Parcelable stream = getIntent().getParcelableExtra(Intent.EXTRA_STREAM);
+			uri = stream instanceof Uri ? (Uri)stream : null;
+		}
+
+		if (uri == null) {
+			finish();
+			return;
+		}
+
+		_task = new ImportTask(uri);
+		_task.execute();
+	}
+
+	@Override
+	protected void onDestroy() {
+		if (_task != null) {
+			_task.cancel(true);
+			_task = null;
+		}
+
+		super.onDestroy();
+	}
+
+	private class ImportTask extends ProgressTask<Void, Integer, int[]> {
+		private final Uri _uri;
+
+		public ImportTask(Uri uri) {
+			super(PaletteActivity.this, R.string.title_import_palette, R.string.msg_import_palette);
+			setMaxProgress(100);
+			setCancelable();
+			_uri = uri;
+		}
+
+		@Override
+		protected int[] doInBackground(Void... params) {
+			long ts = System.currentTimeMillis();
+			int[] colors;
+
+			try {
+				InputStream is = getContentResolver().openInputStream(_uri);
+				try {
+					colors = PaletteReader.read(is, _uri.getLastPathSegment());
+				}
+				finally {
+					is.close();
+				}
+			}
+			catch (IOException e) {
+				Log.w(TAG, "Failed to read palette " + _uri, e);
+				return null;
+			}
+
+			Pictures.setCustomPalette(PaletteActivity.this, colors);
+
+			// Leave the mixing plans to the background sweep of the filter rather than computing them
+			// on this thread, and keep the filter registered so the camera picks up the finished tables
+			IImageFilter filter = Pictures.createEffectFilter(PaletteActivity.this, Pictures.PREF_FILTER_CUSTOM, true, AbstractColorFilter.InitMode.Background);
+			FilterRegistry.getInstance().put(Pictures.getEffectFilterKey(PaletteActivity.this, Pictures.PREF_FILTER_CUSTOM), filter);
+
+			if (filter instanceof AbstractColorFilter) {
+				AbstractColorFilter colorfilter = (AbstractColorFilter)filter;
+				try {
+					for (int progress; (progress = colorfilter.getProgress()) < 100 && !isCancelled(); ) {
+						publishProgress(progress);
+						Thread.sleep(PROGRESS_INTERVAL);
+					}
+				}
+				catch (InterruptedException e) {
+					Log.w(TAG, "Palette import was interrupted");
+				}
+			}
+
+			Log.i(TAG, "Imported " + colors.length + " colors in " + (System.currentTimeMillis() - ts) + " ms");
+			return colors;
+		}
+
+		@Override
+		protected void onProgressUpdate(Integer... progress) {
+			setProgress(progress[0]);
+		}
+
+		@Override
+		protected void onCancelled() {
+			super.onCancelled();
+			finish();
+		}
+
+		@Override
+		protected void onPostExecute(int[] result) {
+			super.onPostExecute(result);
+			if (result != null) {
+				Toast.makeText(PaletteActivity.this, getString(R.string.msg_import_palette_done, result.length), Toast.LENGTH_LONG).show();
+			}
+			else {
+				Toast.makeText(PaletteActivity.this, R.string.error_import_palette, Toast.LENGTH_LONG).show();
+			}
+
+			finish();
+		}
+	}
+}
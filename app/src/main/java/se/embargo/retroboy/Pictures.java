@@ -1,32 +1,34 @@
 package se.embargo.retroboy;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import se.embargo.core.Strings;
 import se.embargo.core.graphic.Bitmaps;
 import se.embargo.core.graphic.color.IPalette;
-import se.embargo.retroboy.color.BitPalette;
-import se.embargo.retroboy.color.DistancePalette;
-import se.embargo.retroboy.color.Distances;
 import se.embargo.retroboy.color.Palettes;
-import se.embargo.retroboy.filter.AtkinsonFilter;
-import se.embargo.retroboy.filter.BayerFilter;
-import se.embargo.retroboy.filter.CompositeFilter;
-import se.embargo.retroboy.filter.HalftoneFilter;
+import se.embargo.retroboy.filter.AbstractColorFilter;
+import se.embargo.retroboy.filter.EffectFilters;
 import se.embargo.retroboy.filter.IImageFilter;
-import se.embargo.retroboy.filter.Pxl2000Filter;
-import se.embargo.retroboy.filter.QuantizeFilter;
-import se.embargo.retroboy.filter.RasterFilter;
-import se.embargo.retroboy.graphic.DitherMatrixes;
+import se.embargo.retroboy.filter.StripProcessor;
+import se.embargo.retroboy.graphic.PixelTransform;
+import se.embargo.retroboy.graphic.PngWriter;
 import se.embargo.retroboy.widget.PreferenceListAdapter;
 import android.annotation.SuppressLint;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.graphics.Bitmap;
+import android.content.res.Resources;
 import android.hardware.Camera;
+import android.os.Build;
 import android.os.Environment;
 import android.provider.MediaStore;
 import android.util.Log;
@@ -39,14 +41,15 @@ public class Pictures {
 	
 	public static final String PREF_FILTER = "filter";
 	
-	public static final String PREF_FILTER_GAMEBOY_CAMERA = "nintendo_gameboy_camera";
-	public static final String PREF_FILTER_AMSTRAD_CPC464 = "amstrad_cpc464";
-	public static final String PREF_FILTER_COMMODORE_64 = "commodore_64";
-	public static final String PREF_FILTER_PXL_2000 = "pxl-2000";
-	public static final String PREF_FILTER_AMIGA_500 = "amiga_500";
-	public static final String PREF_FILTER_ATKINSON = "atkinson";
-	public static final String PREF_FILTER_HALFTONE = "halftone";
-	public static final String PREF_FILTER_NONE = "none";
+	public static final String PREF_FILTER_GAMEBOY_CAMERA = EffectFilters.GAMEBOY_CAMERA;
+	public static final String PREF_FILTER_AMSTRAD_CPC464 = EffectFilters.AMSTRAD_CPC464;
+	public static final String PREF_FILTER_COMMODORE_64 = EffectFilters.COMMODORE_64;
+	public static final String PREF_FILTER_PXL_2000 = EffectFilters.PXL_2000;
+	public static final String PREF_FILTER_AMIGA_500 = EffectFilters.AMIGA_500;
+	public static final String PREF_FILTER_ATKINSON = EffectFilters.ATKINSON;
+	public static final String PREF_FILTER_HALFTONE = EffectFilters.HALFTONE;
+	public static final String PREF_FILTER_CUSTOM = EffectFilters.CUSTOM;
+	public static final String PREF_FILTER_NONE = EffectFilters.NONE;
 
 	public static final String PREF_CONTRAST = "contrast";
 	public static final String PREF_RESOLUTION = "resolution";
@@ -54,11 +57,19 @@ public class Pictures {
 	public static final String PREF_EXPOSURE = "exposure";
 	public static final String PREF_AUTOEXPOSURE = "autoexposure";
 	public static final String PREF_PALETTE = "palette";
+	public static final String PREF_CUSTOMPALETTE = "custompalette";
 	public static final String PREF_MATRIXSIZE = "matrixsize";
 	public static final String PREF_RASTERLEVEL = "rasterlevel";
 	public static final String PREF_SCENEMODE = "scenemode";
 	
 	public static final String PREF_IMAGECOUNT = "imagecount";
+	public static final String PREF_BURST = "burst";
+	
+	public static final String PREF_SAVERESOLUTION = "saveresolution";
+	public static final String PREF_SAVERESOLUTION_ORIGINAL = "original";
+	
+	public static final String PREF_VIDEOFORMAT = "videoformat";
+	public static final String PREF_VIDEOFORMAT_Y4M = "y4m";
 	
 	public static final String PREF_FOCUSMARKER = "focusmarker";
 	public static final String PREF_FOCUSMARKER_NONE = "none";
@@ -66,6 +77,22 @@ public class Pictures {
 	private static final String DIRECTORY = "Retroboy";
 	private static final String FILENAME_PATTERN = "IMGR%04d";
 
+	/**
+	 * Number of allocated file names between persisting the image counter.
+	 */
+	private static final int IMAGECOUNT_BATCH = 10;
+	
+	/**
+	 * Names of files in the storage directory, including allocated names not yet written. Indexed 
+	 * once per process, so names are also checked on disk for files written by other apps since.
+	 */
+	private static Set<String> _filenames = null;
+	
+	/**
+	 * Next sequential image number and the number of allocations since it was persisted.
+	 */
+	private static int _imagecount = 0, _unflushedcount = 0;
+
 	public static class Resolution {
 		public final int width, height;
 		
@@ -112,6 +139,33 @@ public class Pictures {
 	 */
 	public static Resolution getResolution(Context context, SharedPreferences prefs) {
 		String resolution = prefs.getString(Pictures.PREF_RESOLUTION, context.getResources().getString(R.string.pref_resolution_default));
+		Resolution result = parseResolution(resolution);
+		if (result != null) {
+			return result;
+		}
+		
+		Log.w(TAG, "Failed to parse resolution " + resolution);
+		return new Resolution(480, 360);
+	}
+	
+	/**
+	 * @return	The selectable preview resolutions in increasing order
+	 */
+	public static Resolution[] getResolutions(Context context) {
+		String[] values = context.getResources().getStringArray(R.array.pref_resolution_values);
+		List<Resolution> result = new ArrayList<Resolution>();
+		
+		for (String value : values) {
+			Resolution resolution = parseResolution(value);
+			if (resolution != null) {
+				result.add(resolution);
+			}
+		}
+		
+		return result.toArray(new Resolution[result.size()]);
+	}
+	
+	private static Resolution parseResolution(String resolution) {
 		String[] components = resolution.split("x");
 		
 		if (components.length == 2) {
@@ -123,12 +177,57 @@ public class Pictures {
 			catch (NumberFormatException e) {}
 		}
 		
-		Log.w(TAG, "Failed to parse resolution " + resolution);
-		return new Resolution(480, 360);
+		return null;
+	}
+	
+	/**
+	 * Writes a filtered image to disk as a PNG file and adds it to the gallery.
+	 * @param	context		Context to use
+	 * @param	inputname	Name of the original image, or null to create a new name
+	 * @param	outputpath	Previously written file to overwrite, or null
+	 * @param	buffer		Filtered image
+	 * @param	palette		Palette the image was rendered with, or null if unknown
+	 * @return				The written file
+	 */
+	public static File compress(Context context, String inputname, String outputpath, final IImageFilter.ImageBuffer buffer, final IPalette palette) {
+		return compress(context, inputname, outputpath, new IImageWriter() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				// Deflating in parallel requires Deflater.SYNC_FLUSH
+				PngWriter.write(os, buffer.image.array(), buffer.imagewidth, buffer.imageheight, palette, 
+					Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT);
+			}
+		});
+	}
+	
+	/**
+	 * Filters an image in strips and writes it to disk as a PNG file, see {@link #compress(Context, String, String, IImageFilter.ImageBuffer, IPalette)}.
+	 * @param	source		Image to filter
+	 * @param	processor	Filters to apply
+	 * @param	palette		Palette the image is rendered with, or null if unknown
+	 * @return				The written file
+	 */
+	public static File compress(Context context, String inputname, String outputpath, 
+			final StripProcessor.IRowSource source, final StripProcessor processor, final IPalette palette) {
+		return compress(context, inputname, outputpath, new IImageWriter() {
+			@Override
+			public void write(OutputStream os) throws IOException {
+				PngWriter writer = PngWriter.open(os, source.getWidth(), source.getHeight(), palette);
+				processor.process(source, writer);
+				writer.finish();
+			}
+		});
+	}
+	
+	/**
+	 * Encodes an image to a stream.
+	 */
+	private interface IImageWriter {
+		public void write(OutputStream os) throws IOException;
 	}
 	
 	@SuppressLint("DefaultLocale")
-	public static File compress(Context context, String inputname, String outputpath, Bitmap bm) {
+	private static File compress(Context context, String inputname, String outputpath, IImageWriter writer) {
 		// Create path to output file
 		File file;
 		if (outputpath != null) {
@@ -150,33 +249,56 @@ public class Pictures {
 			file.delete();
 			
 			// Write the file to disk
-			FileOutputStream os = new FileOutputStream(file);
-			boolean written = bm.compress(Bitmap.CompressFormat.PNG, 75, os);
-			if (!written) {
-				Log.w(TAG, "Failed to write output image to " + file.toString());
+			long ts = System.currentTimeMillis();
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+			try {
+				writer.write(os);
+			}
+			finally {
+				os.close();
 			}
-			os.flush();
-			os.close();
+			
+			Log.i(TAG, "Wrote " + file.length() + " bytes in " + (System.currentTimeMillis() - ts) + " ms to " + file);
 			
 			// Tell the gallery about the image
-			if (written) {
-				ContentValues values = new ContentValues();
-				values.put(MediaStore.Images.Media.DATA, file.getAbsolutePath());
-				values.put(MediaStore.Images.Media.MIME_TYPE, "image/png");
-				values.put(MediaStore.Images.Media.DATE_TAKEN, System.currentTimeMillis());
-				context.getContentResolver().insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
-			}
+			ContentValues values = new ContentValues();
+			values.put(MediaStore.Images.Media.DATA, file.getAbsolutePath());
+			values.put(MediaStore.Images.Media.MIME_TYPE, "image/png");
+			values.put(MediaStore.Images.Media.DATE_TAKEN, System.currentTimeMillis());
+			context.getContentResolver().insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+		}
+		catch (IOException e) {
+			// Don't leave a truncated image behind
+			Log.w(TAG, "Failed to write output image to " + file.toString(), e);
+			file.delete();
 		}
-		catch (IOException e) {}
 		
 		return file;
 	}
 	
-	public static File createOutputFile(Context context, String inputname, String fileext) {
+	/**
+	 * Allocates a new output file name.
+	 * 
+	 * Names are allocated from an in-memory index of the storage directory so consecutive
+	 * shots don't have to wait for the disk. The image counter is persisted in batches and 
+	 * when {@link #flushImageCount(Context)} is called.
+	 */
+	public static synchronized File createOutputFile(Context context, String inputname, String fileext) {
 		SharedPreferences prefs = context.getSharedPreferences(PREFS_NAMESPACE, Context.MODE_PRIVATE);
+		File directory = getStorageDirectory();
+		
+		if (_filenames == null) {
+			// Index the existing files once
+			_filenames = new HashSet<String>();
+			String[] existing = directory.list();
+			if (existing != null) {
+				_filenames.addAll(Arrays.asList(existing));
+			}
+			
+			_imagecount = prefs.getInt(PREF_IMAGECOUNT, 0);
+		}
 		
 		String filename;
-		File file;
 		
 		do {
 			if (inputname != null) {
@@ -187,100 +309,203 @@ public class Pictures {
 			}
 			else {
 				// Create a new sequential name
-				int count = prefs.getInt(PREF_IMAGECOUNT, 0);
-				filename = String.format(FILENAME_PATTERN + "." + fileext, count);
+				filename = String.format(FILENAME_PATTERN + "." + fileext, _imagecount);
+				_imagecount++;
 				
-				// Increment the image count
-				SharedPreferences.Editor editor = prefs.edit();
-				editor.putInt(PREF_IMAGECOUNT, count + 1);
-				editor.commit();
+				// Persist the image count in batches
+				if (++_unflushedcount >= IMAGECOUNT_BATCH) {
+					flushImageCount(context);
+				}
 			}
 			
-			file = new File(getStorageDirectory(), filename);
 			inputname = null;
-		} while (file.exists());
+		} while (!_filenames.add(filename) || new File(directory, filename).exists());
 		
-		return file;
+		return new File(directory, filename);
+	}
+	
+	/**
+	 * Persists the image counter used by {@link #createOutputFile(Context, String, String)}.
+	 */
+	public static synchronized void flushImageCount(Context context) {
+		if (_unflushedcount > 0) {
+			SharedPreferences prefs = context.getSharedPreferences(PREFS_NAMESPACE, Context.MODE_PRIVATE);
+			SharedPreferences.Editor editor = prefs.edit();
+			editor.putInt(PREF_IMAGECOUNT, _imagecount);
+			editor.apply();
+			_unflushedcount = 0;
+		}
 	}
 	
 	public static IImageFilter createEffectFilter(Context context) {
+		return createEffectFilter(context, getFilterType(context));
+	}
+	
+	/**
+	 * Creates an effect filter of the given type configured from preferences, for rendering offline.
+	 * @param	context		Context to use
+	 * @param	filtertype	One of the PREF_FILTER_* values
+	 */
+	public static IImageFilter createEffectFilter(Context context, String filtertype) {
+		return createEffectFilter(context, filtertype, false);
+	}
+	
+	/**
+	 * Creates an effect filter of the given type configured from preferences.
+	 * @param	context		Context to use
+	 * @param	filtertype	One of the PREF_FILTER_* values
+	 * @param	preview		True if the filter runs on the camera preview, where it may adapt over several frames
+	 */
+	public static IImageFilter createEffectFilter(Context context, String filtertype, boolean preview) {
+		return createEffectFilter(context, filtertype, preview, AbstractColorFilter.InitMode.Background);
+	}
+	
+	/**
+	 * Creates an effect filter of the given type configured from preferences.
+	 * @param	context		Context to use
+	 * @param	filtertype	One of the PREF_FILTER_* values
+	 * @param	preview		True if the filter runs on the camera preview, where it may adapt over several frames
+	 * @param	initmode	How filters with mixing plans compute the plans that aren't cached
+	 */
+	public static IImageFilter createEffectFilter(Context context, String filtertype, boolean preview, AbstractColorFilter.InitMode initmode) {
+		int[] custompalette = PREF_FILTER_CUSTOM.equals(filtertype) ? getCustomPalette(context) : null;
+		return EffectFilters.create(context, filtertype, getMatrixSize(context), getRasterLevel(context), getGameboyPalette(context), custompalette, preview, initmode);
+	}
+	
+	/**
+	 * @return	The size of the dither matrix of the effect filters.
+	 */
+	public static int getMatrixSize(Context context) {
 		SharedPreferences prefs = context.getSharedPreferences(PREFS_NAMESPACE, Context.MODE_PRIVATE);
-		String filtertype = prefs.getString(PREF_FILTER, context.getResources().getString(R.string.pref_filter_default));
-		int[] matrix = getMatrix(context, prefs);
-		int rasterlevel = Strings.parseInt(prefs.getString(PREF_RASTERLEVEL, 
-			context.getResources().getString(R.string.pref_rasterlevel_default)), 4);
-		
-		if (PREF_FILTER_AMSTRAD_CPC464.equals(filtertype)) {
-			return new RasterFilter(context, Distances.LUV, Palettes.AMSTRAD_CPC464, matrix, rasterlevel);
-		}
-
-		if (PREF_FILTER_COMMODORE_64.equals(filtertype)) {
-			return new RasterFilter(context, Distances.LUV, Palettes.COMMODORE_64_GAMMA_ADJUSTED, matrix, rasterlevel);
-			//return new BayerFilter(new BucketPalette(new YuvPalette(Palettes.COMMODORE_64_GAMMA_ADJUSTED)), true);
-			//return new YliluomaTriFilter(context, Distances.LUV, Palettes.COMMODORE_64_GAMMA_ADJUSTED);
-		}
-
-		if (PREF_FILTER_AMIGA_500.equals(filtertype)) {
-			//IPalette palette = new BucketPalette(new DistancePalette(Distances.YUV, Palettes.AMSTRAD_CPC464));
-			IPalette palette = new BitPalette(4);
-			
-			CompositeFilter filter = new CompositeFilter();
-			BayerFilter effect = new BayerFilter(palette, matrix, BayerFilter.PaletteType.Color);
-			//PaletteFilter effect = new PaletteFilter(palette);
-			filter.add(new QuantizeFilter(palette, effect));
-			filter.add(effect);
-			return filter;
+		return Strings.parseInt(prefs.getString(PREF_MATRIXSIZE, context.getResources().getString(R.string.pref_matrixsize_default)), 4);
+	}
+	
+	/**
+	 * @return	The level of rastering of the palette filters.
+	 */
+	public static int getRasterLevel(Context context) {
+		SharedPreferences prefs = context.getSharedPreferences(PREFS_NAMESPACE, Context.MODE_PRIVATE);
+		return Strings.parseInt(prefs.getString(PREF_RASTERLEVEL, context.getResources().getString(R.string.pref_rasterlevel_default)), 4);
+	}
+	
+	/**
+	 * @return	The name of the palette of the Game Boy filter.
+	 */
+	public static String getGameboyPalette(Context context) {
+		SharedPreferences prefs = context.getSharedPreferences(PREFS_NAMESPACE, Context.MODE_PRIVATE);
+		return prefs.getString(PREF_PALETTE, context.getResources().getString(R.string.pref_gameboy_palette_default));
+	}
+	
+	/**
+	 * Returns the effect filter selected in preferences, reusing a previously created instance
+	 * along with its lookup tables when possible. The filter must only be used by one thread at
+	 * a time, e.g. by the camera preview.
+	 */
+	public static IImageFilter getEffectFilter(Context context) {
+		// Filters that carry state between frames can't be shared
+		String filtertype = getFilterType(context);
+		if (isStatefulFilter(filtertype)) {
+			return createEffectFilter(context, filtertype, true);
 		}
 		
-		if (PREF_FILTER_ATKINSON.equals(filtertype)) {
-			return new AtkinsonFilter();
-		}
+		FilterRegistry registry = FilterRegistry.getInstance();
+		String key = getEffectFilterKey(context, filtertype);
+		IImageFilter filter = registry.get(key);
 		
-		if (PREF_FILTER_PXL_2000.equals(filtertype)) {
-			return new Pxl2000Filter();
+		if (filter == null) {
+			filter = createEffectFilter(context, filtertype, true);
+			registry.put(key, filter);
 		}
-
-		if (PREF_FILTER_HALFTONE.equals(filtertype)) {
-			return new HalftoneFilter();
-		}
-
-		if (PREF_FILTER_NONE.equals(filtertype)) {
-			return new BayerFilter(new BitPalette(4), matrix, BayerFilter.PaletteType.Color);
-			//return new PaletteFilter(new BitPalette(4));
-		}
-
-		// Default to a Nintendo Game Boy filter
-		int[] palette;
-		String palettename = prefs.getString(PREF_PALETTE, context.getResources().getString(R.string.pref_gameboy_palette_default));
 		
-		if (palettename.equals("gameboy_screen")) {
-			palette = Palettes.GAMEBOY_SCREEN_DESAT;
-		}
-		else if (palettename.equals("binary")) {
-			palette = Palettes.BINARY;
+		return filter;
+	}
+	
+	/**
+	 * @return	The effect filter type selected in preferences, one of the PREF_FILTER_* values.
+	 */
+	public static String getFilterType(Context context) {
+		SharedPreferences prefs = context.getSharedPreferences(PREFS_NAMESPACE, Context.MODE_PRIVATE);
+		return prefs.getString(PREF_FILTER, context.getResources().getString(R.string.pref_filter_default));
+	}
+	
+	/**
+	 * @return	True if filters of the given type carry state between frames and can't be shared.
+	 */
+	public static boolean isStatefulFilter(String filtertype) {
+		return EffectFilters.isStateful(filtertype);
+	}
+	
+	/**
+	 * @return	True if the filter returned by {@link #createEffectFilter(Context)} can process images in strips.
+	 */
+	public static boolean isStripFilter(Context context) {
+		// The PXL-2000 border and blur and the Amiga palette depend on the whole image
+		return !isStatefulFilter(getFilterType(context));
+	}
+	
+	/**
+	 * @return	A key that identifies the filter returned by {@link #createEffectFilter(Context)}.
+	 */
+	public static String getEffectFilterKey(Context context) {
+		return getEffectFilterKey(context, getFilterType(context));
+	}
+	
+	/**
+	 * @return	A key that identifies the filter returned by {@link #createEffectFilter(Context, String)}.
+	 */
+	public static String getEffectFilterKey(Context context, String filtertype) {
+		SharedPreferences prefs = context.getSharedPreferences(PREFS_NAMESPACE, Context.MODE_PRIVATE);
+		Resources resources = context.getResources();
+		String key = filtertype + "/" +
+			prefs.getString(PREF_MATRIXSIZE, resources.getString(R.string.pref_matrixsize_default)) + "/" +
+			prefs.getString(PREF_RASTERLEVEL, resources.getString(R.string.pref_rasterlevel_default)) + "/" +
+			prefs.getString(PREF_PALETTE, resources.getString(R.string.pref_gameboy_palette_default));
+		
+		// Imported palettes are told apart by their content
+		int[] colors = PREF_FILTER_CUSTOM.equals(filtertype) ? getCustomPalette(context) : null;
+		return colors != null ? key + "/" + Palettes.getHash(colors) : key;
+	}
+	
+	/**
+	 * @return	The palette imported by the user, or null if none.
+	 */
+	public static int[] getCustomPalette(Context context) {
+		SharedPreferences prefs = context.getSharedPreferences(PREFS_NAMESPACE, Context.MODE_PRIVATE);
+		String value = prefs.getString(PREF_CUSTOMPALETTE, "");
+		if (value.length() == 0) {
+			return null;
 		}
-		else {
-			palette = Palettes.GAMEBOY_CAMERA;
+		
+		String[] items = value.split(",");
+		int[] colors = new int[items.length];
+		for (int i = 0; i < items.length; i++) {
+			colors[i] = (int)Long.parseLong(items[i], 16);
 		}
 		
-		return new BayerFilter(new DistancePalette(Distances.YUV, palette), matrix, BayerFilter.PaletteType.Threshold);
+		return colors;
 	}
 	
-	private static int[] getMatrix(Context context, SharedPreferences prefs) {
-		int matrixsize = Strings.parseInt(prefs.getString(PREF_MATRIXSIZE, 
-			context.getResources().getString(R.string.pref_matrixsize_default)), 4);
-		
-		switch (matrixsize) {
-			case 8: 
-				return DitherMatrixes.MATRIX_8x8;
+	/**
+	 * Stores an imported palette and selects the filter that uses it.
+	 * @param	colors	Colors of the palette
+	 */
+	public static void setCustomPalette(Context context, int[] colors) {
+		StringBuilder value = new StringBuilder();
+		for (int color : colors) {
+			if (value.length() > 0) {
+				value.append(',');
+			}
 			
-			case 2: 
-				return DitherMatrixes.MATRIX_2x2;
+			value.append(Integer.toHexString(color));
 		}
 		
-		return DitherMatrixes.MATRIX_4x4;
+		SharedPreferences prefs = context.getSharedPreferences(PREFS_NAMESPACE, Context.MODE_PRIVATE);
+		SharedPreferences.Editor editor = prefs.edit();
+		editor.putString(PREF_CUSTOMPALETTE, value.toString());
+		editor.putString(PREF_FILTER, PREF_FILTER_CUSTOM);
+		editor.commit();
 	}
-
+	
 	/**
 	 * Creates a matrix that rotates and scales an input frame to fit the preview surface.
 	 * @param	inputwidth		Input frame width 
@@ -296,26 +521,8 @@ public class Pictures {
 	public static Bitmaps.Transform createTransformMatrix(
 			int inputwidth, int inputheight, int facing, int orientation, int rotation, 
 			int outputwidth, int outputheight, int flags) {
-		// Check the current window rotation
-		int degrees = 0;
-		switch (rotation) {
-			case Surface.ROTATION_0: degrees = 0; break;
-			case Surface.ROTATION_90: degrees = 90; break;
-			case Surface.ROTATION_180: degrees = 180; break;
-			case Surface.ROTATION_270: degrees = 270; break;
-		}
-
-		int rotate;
-		boolean mirror;
-		if (facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-			rotate = (orientation + degrees) % 360;
-			mirror = true;
-		} 
-		else {
-			rotate = (orientation - degrees + 360) % 360;
-			mirror = false;
-		}
-		
+		int rotate = getFrameRotation(facing, orientation, rotation);
+		boolean mirror = facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
 		return Bitmaps.createTransform(inputwidth, inputheight, outputwidth, outputheight, flags, rotate, mirror);
 	}
 
@@ -345,6 +552,58 @@ public class Pictures {
 		return createTransformMatrix(inputwidth, inputheight, facing, orientation, rotation, maxwidth, maxheight, 0);
 	}
 
+	/**
+	 * Creates a pixel transform that rotates and mirrors a captured frame to match the display.
+	 * @param	inputwidth		Input frame width 
+	 * @param	inputheight		Input frame height
+	 * @param	facing			CameraInfo.facing 
+	 * @param	orientation		CameraInfo.orientation
+	 * @param	rotation		Display.getRotation()
+	 * @param	resolution		Output resolution
+	 * @return					A transform to apply on image buffers
+	 */
+	public static PixelTransform createPixelTransform(
+			int inputwidth, int inputheight, int facing, int orientation, int rotation,
+			Resolution resolution) {
+		int maxwidth, maxheight;
+		if (inputwidth >= inputheight) {
+			maxwidth = resolution.width;
+			maxheight = resolution.height;
+		}
+		else {
+			maxwidth = resolution.height;
+			maxheight = resolution.width;
+		}
+		
+		int rotate = getFrameRotation(facing, orientation, rotation);
+		boolean mirror = facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+		return PixelTransform.create(inputwidth, inputheight, maxwidth, maxheight, false, rotate, mirror);
+	}
+
+	/**
+	 * Calculates the clockwise rotation needed to display a camera frame upright.
+	 * @param	facing			CameraInfo.facing 
+	 * @param	orientation		CameraInfo.orientation
+	 * @param	rotation		Display.getRotation()
+	 * @return					Rotation in degrees
+	 */
+	private static int getFrameRotation(int facing, int orientation, int rotation) {
+		// Check the current window rotation
+		int degrees = 0;
+		switch (rotation) {
+			case Surface.ROTATION_0: degrees = 0; break;
+			case Surface.ROTATION_90: degrees = 90; break;
+			case Surface.ROTATION_180: degrees = 180; break;
+			case Surface.ROTATION_270: degrees = 270; break;
+		}
+
+		if (facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
+			return (orientation + degrees) % 360;
+		} 
+		
+		return (orientation - degrees + 360) % 360;
+	}
+
 	public static int getCameraOrientation(SharedPreferences prefs, Camera.CameraInfo info, int cameraId) {
 		int orientation = Strings.parseInt(prefs.getString(PREF_ORIENTATION + "_" + cameraId, "-1"), -1);
 		if (orientation < 0) {
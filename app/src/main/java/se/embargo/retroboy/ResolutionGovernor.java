@@ -0,0 +1,163 @@
+package se.embargo.retroboy;
+
+import se.embargo.retroboy.filter.YuvFilter;
+import android.util.Log;
+
+/**
+ * Lowers the preview processing resolution when frames take too long to filter.
+ *
+ * The average frame time is tracked over a window of frames. When it exceeds the frame budget the
+ * {@link YuvFilter} steps down to the next lower resolution, and it steps back up once the frame
+ * time scaled by the larger pixel count would still fit comfortably within the budget. Every change
+ * is followed by a cooldown so the filter settles before it's measured again.
+ */
+public class ResolutionGovernor {
+	private static final String TAG = "ResolutionGovernor";
+
+	/**
+	 * Number of frames to average the frame time over.
+	 */
+	private static final int WINDOW_FRAMES = 15;
+
+	/**
+	 * Number of frames to skip after a resolution change.
+	 */
+	private static final int COOLDOWN_FRAMES = 30;
+
+	/**
+	 * Fraction of the frame budget the next higher resolution must fit within to step up.
+	 */
+	private static final float STEP_UP_HEADROOM = 0.75f;
+
+	private final YuvFilter _filter;
+
+	/**
+	 * Available resolutions in increasing order.
+	 */
+	private final Pictures.Resolution[] _resolutions;
+
+	/**
+	 * Index of the highest resolution allowed, selected by the user.
+	 */
+	private final int _maxlevel;
+
+	/**
+	 * Time in nanoseconds available to process each frame.
+	 */
+	private final long _budget;
+
+	private int _level;
+	private long _windowtime = 0;
+	private int _windowframes = 0, _cooldown = COOLDOWN_FRAMES;
+	private boolean _locked = false;
+
+	/**
+	 * @param	filter		Filter to change the resolution of
+	 * @param	resolutions	Available resolutions in increasing order
+	 * @param	resolution	Resolution selected by the user, never exceeded
+	 * @param	targetfps	Frame rate to maintain
+	 */
+	public ResolutionGovernor(YuvFilter filter, Pictures.Resolution[] resolutions, Pictures.Resolution resolution, float targetfps) {
+		_filter = filter;
+		_budget = (long)(1000000000f / targetfps);
+
+		// Only consider resolutions up to the selected one
+		int count = 0;
+		while (count < resolutions.length && getPixels(resolutions[count]) < getPixels(resolution)) {
+			count++;
+		}
+
+		_resolutions = new Pictures.Resolution[count + 1];
+		System.arraycopy(resolutions, 0, _resolutions, 0, count);
+		_resolutions[count] = resolution;
+		_maxlevel = _level = count;
+	}
+
+	/**
+	 * @return	The resolution currently used by the filter.
+	 */
+	public synchronized Pictures.Resolution getResolution() {
+		return _resolutions[_level];
+	}
+
+	/**
+	 * Prevents resolution changes, e.g. while recording frames that must have the same size.
+	 * @param	locked	True to keep the current resolution
+	 */
+	public synchronized void setLocked(boolean locked) {
+		_locked = locked;
+		reset(COOLDOWN_FRAMES);
+	}
+
+	/**
+	 * Returns to the resolution selected by the user, e.g. before capturing a photo.
+	 * @return	True if the resolution was changed
+	 */
+	public synchronized boolean restore() {
+		reset(COOLDOWN_FRAMES);
+		if (_level == _maxlevel) {
+			return false;
+		}
+
+		Log.i(TAG, "Restoring resolution from " + _resolutions[_level] + " to " + _resolutions[_maxlevel]);
+		_level = _maxlevel;
+		_filter.setResolution(_resolutions[_maxlevel].width, _resolutions[_maxlevel].height);
+		return true;
+	}
+
+	/**
+	 * Called on the filter thread after each frame, a changed resolution applies from the next frame.
+	 * @param	elapsed	Time in nanoseconds spent processing the frame
+	 * @return			True if the resolution was changed
+	 */
+	public synchronized boolean onFrame(long elapsed) {
+		if (_locked) {
+			return false;
+		}
+
+		if (_cooldown > 0) {
+			_cooldown--;
+			return false;
+		}
+
+		_windowtime += elapsed;
+		if (++_windowframes < WINDOW_FRAMES) {
+			return false;
+		}
+
+		final long average = _windowtime / _windowframes;
+		int level = _level;
+
+		if (average > _budget && _level > 0) {
+			level--;
+		}
+		else if (_level < _maxlevel) {
+			// Predict the frame time from the increase in pixels
+			float ratio = (float)getPixels(_resolutions[_level + 1]) / getPixels(_resolutions[_level]);
+			if (average * ratio < _budget * STEP_UP_HEADROOM) {
+				level++;
+			}
+		}
+
+		if (level == _level) {
+			reset(0);
+			return false;
+		}
+
+		Log.i(TAG, "Changing resolution from " + _resolutions[_level] + " to " + _resolutions[level] + " at " + (average / 1000) + " us/frame");
+		_level = level;
+		_filter.setResolution(_resolutions[level].width, _resolutions[level].height);
+		reset(COOLDOWN_FRAMES);
+		return true;
+	}
+
+	private void reset(int cooldown) {
+		_windowtime = 0;
+		_windowframes = 0;
+		_cooldown = cooldown;
+	}
+
+	private static long getPixels(Pictures.Resolution resolution) {
+		return (long)resolution.width * resolution.height;
+	}
+}
@@ -9,20 +9,22 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
 
+import se.embargo.core.concurrent.Parallel;
 import se.embargo.core.concurrent.ProgressTask;
-import se.embargo.core.graphic.Bitmaps;
-import se.embargo.core.graphic.Bitmaps.Transform;
-import se.embargo.core.graphic.color.IIndexedPalette;
-import se.embargo.core.graphic.gif.GifEncoder;
+import se.embargo.core.graphic.color.IPalette;
 import se.embargo.retroboy.filter.AbstractFilter;
+import se.embargo.retroboy.graphic.GifWriter;
+import se.embargo.retroboy.graphic.PixelTransform;
 import android.app.Activity;
 import android.content.ContentValues;
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Paint;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.view.View;
@@ -36,11 +38,27 @@ public class VideoRecorder extends AbstractFilter {
 	private static final int MAX_CAPTURED_FRAMES = 250;
 	private static final int MIN_DELAY_MILLIS = 100;
 	
+	/**
+	 * Max number of frames waiting to be encoded when streaming, frames are dropped beyond this.
+	 */
+	private static final int MAX_STREAMED_FRAMES = 4;
+	
+	/**
+	 * Max size of a streamed GIF in bytes.
+	 */
+	private static final long MAX_STREAMED_BYTES = 16 * 1024 * 1024;
+	
+	/**
+	 * Max number of threads compressing frames when streaming, the other cores are left to the 
+	 * camera preview which is still running.
+	 */
+	private static final int MAX_STREAMED_THREADS = 2;
+	
 	private final Activity _context;
 	private final ProgressBar _recordProgressBar;
 	
-	private volatile Transform _transform = null;
-	private IIndexedPalette _palette;
+	private volatile PixelTransform _transform = null;
+	private IPalette _palette;
 	
 	private Queue<VideoFrame> _frames = new PriorityBlockingQueue<VideoFrame>();
 	private int _framecount = 0;
@@ -50,6 +68,21 @@ public class VideoRecorder extends AbstractFilter {
 	private File _framefile;
 	private long _framepos;
 	
+	/**
+	 * Encode frames in the background while recording instead of after stop.
+	 */
+	private boolean _streaming = false;
+	
+	/**
+	 * Encoder consuming frames for the current recording when streaming.
+	 */
+	private StreamTask _stream;
+	
+	/**
+	 * Thread running the stream encoders.
+	 */
+	private final ExecutorService _executor = Executors.newFixedThreadPool(1);
+	
 	/**
 	 * Timestamp of previous frame in nanoseconds.
 	 */
@@ -78,25 +111,43 @@ public class VideoRecorder extends AbstractFilter {
 		_listener = listener;
 	}
 	
+	/**
+	 * Selects between encoding frames while recording, or buffering them to a scratch file 
+	 * and encoding them after recording has stopped.
+	 * @param	streaming	True to encode frames as they arrive.
+	 */
+	public synchronized void setStreaming(boolean streaming) {
+		_streaming = streaming;
+	}
+	
 	/**
 	 * Start recording frames.
 	 * @param	transform	Transform to apply on frames, e.g. rotation.
-	 * @param	palette		Fixed indexed palette if one exists 
+	 * @param	palette		Palette of the active filter, or null if none
 	 */
-	public synchronized void record(Transform transform, IIndexedPalette palette) {
-		if (_transform == null) {
-			try {
-				_frameos = new RandomAccessFile(_framefile, "rw");
+	public synchronized void record(PixelTransform transform, IPalette palette) {
+		if (_transform == null && !_executor.isShutdown()) {
+			if (_streaming) {
+				// Encode frames on the background thread as they arrive
+				_stream = new StreamTask(_context, transform, palette, _listener);
+				_executor.submit(_stream);
+				_recordProgressBar.setMax((int)(MAX_STREAMED_BYTES / 1024));
 			}
-			catch (Exception e) {
-				Log.e(TAG, "Failed to open scratch file for output", e);
-				_framefile.delete();
-				return;
+			else {
+				try {
+					_frameos = new RandomAccessFile(_framefile, "rw");
+				}
+				catch (Exception e) {
+					Log.e(TAG, "Failed to open scratch file for output", e);
+					_framefile.delete();
+					return;
+				}
+	
+				_framechan = _frameos.getChannel();
+				_framepos = 0;
+				_recordProgressBar.setMax(MAX_CAPTURED_FRAMES);
 			}
 
-			_framechan = _frameos.getChannel();
-			_framepos = 0;
-
 			_palette = palette;
 			_transform = transform;
 			
@@ -120,22 +171,36 @@ public class VideoRecorder extends AbstractFilter {
 		}
 	}
 	
+	/**
+	 * Stops the encoder thread once a stream being finished has been written, the recorder can't 
+	 * record afterwards.
+	 */
+	public synchronized void shutdown() {
+		_executor.shutdown();
+	}
+	
 	/**
 	 * Abort recording without saving picture.
 	 */
 	public synchronized void abort() {
 		if (_transform != null) {
-			reset();
-			
-			try {
-				_framechan.close();
-				_frameos.close();
-				_framefile.delete();
+			if (_stream != null) {
+				_stream.abort();
+				reset();
 			}
-			catch (Exception e) {
-				Log.e(TAG, "Failed to open scratch file for output", e);
-				_framefile.delete();
-				return;
+			else {
+				reset();
+				
+				try {
+					_framechan.close();
+					_frameos.close();
+					_framefile.delete();
+				}
+				catch (Exception e) {
+					Log.e(TAG, "Failed to open scratch file for output", e);
+					_framefile.delete();
+					return;
+				}
 			}
 
 			_context.runOnUiThread(new Runnable() {
@@ -150,10 +215,28 @@ public class VideoRecorder extends AbstractFilter {
 	}
 	
 	private synchronized void finish() {
+		if (_stream != null) {
+			// Encoder thread flushes the remaining frames and notifies the listener
+			final StreamTask stream = _stream;
+			reset();
+
+			_context.runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					if (_listener != null) {
+						_listener.onStop();
+					}
+					
+					stream.finish();
+				}
+			});
+			return;
+		}
+		
 		final RandomAccessFile frameos = _frameos;
 		final FileChannel framechan = _framechan;
 		final File framefile = _framefile;
-		final Bitmaps.Transform transform = _transform;
+		final PixelTransform transform = _transform;
 		final Queue<VideoFrame> frames = _frames;
 		_frames = new PriorityQueue<VideoFrame>();
 		reset();
@@ -177,6 +260,7 @@ public class VideoRecorder extends AbstractFilter {
 		_frames = new PriorityQueue<VideoFrame>();
 		_recordProgressBar.setProgress(0);
 		_transform = null;
+		_stream = null;
 	}
 	
 	@Override
@@ -188,6 +272,26 @@ public class VideoRecorder extends AbstractFilter {
 				return;
 			}
 			
+			if (_stream != null) {
+				// Drop the frame if the encoder is lagging too far behind
+				if (!_stream.offer(buffer)) {
+					Log.d(TAG, "Dropped frame while encoder is busy");
+					return;
+				}
+				
+				// Report progress
+				_prevtimestamp = buffer.timestamp;
+				_framecount++;
+				_recordProgressBar.setProgress((int)(_stream.getOutputSize() / 1024));
+				
+				// Stop automatically once the output file is full
+				if (_stream.getOutputSize() >= MAX_STREAMED_BYTES) {
+					stop();
+				}
+				
+				return;
+			}
+			
 			// Map a memory block from the scratch file
 			int pixelcount = buffer.imagewidth * buffer.imageheight, 
 				bytes = pixelcount * 4;
@@ -221,6 +325,7 @@ public class VideoRecorder extends AbstractFilter {
 	
 	private static class VideoFrame implements Comparable<VideoFrame> {
 		public ByteBuffer block;
+		public int[] image;
 		public final int width, height;
 		public final long timestamp;
 		
@@ -230,6 +335,11 @@ public class VideoRecorder extends AbstractFilter {
 			this.height = height;
 			this.timestamp = timestamp;
 		}
+		
+		public VideoFrame(int[] image, int width, int height, long timestamp) {
+			this((ByteBuffer)null, width, height, timestamp);
+			this.image = image;
+		}
 
 		@Override
 		public int compareTo(VideoFrame other) {
@@ -237,19 +347,204 @@ public class VideoRecorder extends AbstractFilter {
 		}
 	}
 	
+	/**
+	 * Encodes frames on a background thread while they are being recorded.
+	 */
+	private static class StreamTask implements Runnable {
+		/**
+		 * Marks the end of the frame stream.
+		 */
+		private static final VideoFrame END = new VideoFrame((int[])null, 0, 0, 0);
+		
+		private final Activity _context;
+		private final PixelTransform _transform;
+		private final IPalette _palette;
+		private final StateChangeListener _listener;
+		
+		/**
+		 * Frames waiting to be encoded.
+		 */
+		private final BlockingQueue<VideoFrame> _frames = new LinkedBlockingQueue<VideoFrame>();
+		
+		/**
+		 * Pixel buffers available for new frames, limits how far the encoder may lag behind.
+		 */
+		private final Queue<int[]> _bufferpool = new ArrayBlockingQueue<int[]>(MAX_STREAMED_FRAMES);
+		private int _buffercount = 0;
+		
+		private volatile boolean _aborted = false;
+		private volatile long _outputsize = 0;
+		
+		public StreamTask(Activity context, PixelTransform transform, IPalette palette, StateChangeListener listener) {
+			_context = context;
+			_transform = transform;
+			_palette = palette;
+			_listener = listener;
+		}
+		
+		/**
+		 * Queue a frame for encoding.
+		 * @param	buffer	Frame to encode.
+		 * @return			False if the frame was dropped.
+		 */
+		public boolean offer(ImageBuffer buffer) {
+			final int pixelcount = buffer.imagewidth * buffer.imageheight;
+			int[] image = _bufferpool.poll();
+			
+			if (image == null || image.length < pixelcount) {
+				if (image == null && _buffercount >= MAX_STREAMED_FRAMES) {
+					return false;
+				}
+				
+				if (image == null) {
+					_buffercount++;
+				}
+				
+				image = new int[pixelcount];
+			}
+			
+			System.arraycopy(buffer.image.array(), 0, image, 0, pixelcount);
+			_frames.add(new VideoFrame(image, buffer.imagewidth, buffer.imageheight, buffer.timestamp));
+			return true;
+		}
+		
+		/**
+		 * @return	Number of bytes written to the output file so far.
+		 */
+		public long getOutputSize() {
+			return _outputsize;
+		}
+		
+		/**
+		 * Encode the remaining frames and close the output file.
+		 */
+		public void finish() {
+			_frames.add(END);
+		}
+		
+		/**
+		 * Stop encoding and discard the output file.
+		 */
+		public void abort() {
+			_aborted = true;
+			_frames.add(END);
+		}
+		
+		@Override
+		public void run() {
+			File file = Pictures.createOutputFile(_context, null, "gif");
+			FileOutputStream fileos = null;
+			OutputStream os = null;
+			long prevtimestamp = 0, firstts = 0, lastts = 0;
+			int framecount = 0;
+			GifWriter encoder = null;
+			boolean finished = false;
+			
+			try {
+				long ts = System.currentTimeMillis();
+				
+				// Create output encoder
+				fileos = new FileOutputStream(file);
+				os = new BufferedOutputStream(fileos); 
+				encoder = new GifWriter(os, _transform.width, _transform.height, _palette, 0, Math.min(Parallel.getNumberOfCores(), MAX_STREAMED_THREADS), true);
+				int[] outputimage = new int[_transform.width * _transform.height];
+				int delay = 0;
+				
+				// Encode frames as they arrive
+				for (VideoFrame frame = _frames.take(); frame != END && !_aborted; frame = _frames.take()) {
+					// Remember timestamps for framerate calculation
+					if (firstts == 0) {
+						firstts = frame.timestamp;
+					}
+					lastts = frame.timestamp;
+
+					// Transform the frame and release the pixels back to the pool
+					_transform.apply(frame.image, outputimage);
+					_bufferpool.offer(frame.image);
+					frame.image = null;
+					
+					// Calculate the frame delay in 1/100 seconds
+					long timestamp = frame.timestamp / 10000000L;
+					if (prevtimestamp != 0) {
+						delay = ((int)(timestamp - prevtimestamp)) * 10;
+					}
+					prevtimestamp = timestamp;
+					
+					// Encode the frame
+					encoder.addFrame(outputimage, delay);
+					_outputsize = fileos.getChannel().position();
+					framecount++;
+				}
+				
+				if (_aborted || framecount == 0) {
+					os.close();
+					os = null;
+					file.delete();
+					return;
+				}
+				
+				// Flush image to disk
+				finished = true;
+				encoder.finish();
+				os.flush();
+				os.close();
+				os = null;
+
+				Log.i(TAG, "Encoder lag after stop (ms): " + (System.currentTimeMillis() - ts - (lastts - firstts) / 1000000));
+				Log.i(TAG, "Output GIF framerate: " + ((double)framecount / ((double)(lastts - firstts) / 1000000000)));
+				
+				// Tell the gallery about the image
+				ContentValues values = new ContentValues();
+				values.put(MediaStore.Images.Media.DATA, file.getAbsolutePath());
+				values.put(MediaStore.Images.Media.MIME_TYPE, "image/gif");
+				values.put(MediaStore.Images.Media.DATE_TAKEN, System.currentTimeMillis());
+				_context.getContentResolver().insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values);
+			}
+			catch (Exception e) {
+				Log.e(TAG, "Failed to write GIF to:" + file, e);
+				file.delete();
+			}
+			finally {
+				// Stop the worker threads unless finish() did
+				if (encoder != null && !finished) {
+					encoder.abort();
+				}
+				
+				if (os != null) {
+					try {
+						os.close();
+					}
+					catch (Exception e) {}
+				}
+				
+				// Aborted recordings have already notified the listener
+				if (!_aborted) {
+					_context.runOnUiThread(new Runnable() {
+						@Override
+						public void run() {
+							if (_listener != null) {
+								_listener.onFinish();
+							}
+						}
+					});
+				}
+			}
+		}
+	}
+	
 	private static class EncodeTask extends ProgressTask<Void, Integer, Void> {
 		private final RandomAccessFile _frameos;
 		private final FileChannel _framechan;
 		private final File _framefile;
-		private final Bitmaps.Transform _transform;
+		private final PixelTransform _transform;
 		private final Queue<VideoFrame> _frames;
 		private final StateChangeListener _listener;
-		private final IIndexedPalette _palette;
+		private final IPalette _palette;
 		private File _file = null;
 		
 		public EncodeTask(
 				Context context, RandomAccessFile frameos, FileChannel framechan, File framefile, 
-				Bitmaps.Transform transform, Queue<VideoFrame> frames, StateChangeListener listener, IIndexedPalette palette) {
+				PixelTransform transform, Queue<VideoFrame> frames, StateChangeListener listener, IPalette palette) {
 			super(context, R.string.title_saving_image, R.string.msg_saving_image);
 			setMaxProgress(frames.size());
 			setCancelable();
@@ -269,20 +564,19 @@ public class VideoRecorder extends AbstractFilter {
 			_file = Pictures.createOutputFile(getContext(), null, "gif");
 			
 			OutputStream os = null;
-			Bitmap inputbm = null, outputbm = Bitmap.createBitmap(_transform.width, _transform.height, Bitmap.Config.ARGB_8888);
-			Canvas canvas = new Canvas(outputbm);
-			Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
-			int[] image = null;
+			int[] image = new int[_transform.inputwidth * _transform.inputheight];
 			long firstts = 0, lastts = 0;
+			GifWriter encoder = null;
+			boolean finished = false;
 			
 			try {
 				long ts = System.currentTimeMillis();
 				
 				// Create output encoder
 				os = new BufferedOutputStream(new FileOutputStream(_file)); 
-				GifEncoder encoder = new GifEncoder(_palette);
-				encoder.setRepeat(0);
-				encoder.start(os);
+				encoder = new GifWriter(os, _transform.width, _transform.height, _palette, 0, Parallel.getNumberOfCores(), true);
+				int[] outputimage = new int[_transform.width * _transform.height];
+				int delay = 0;
 				
 				// Encode all frames
 				for (VideoFrame frame : _frames) {
@@ -296,29 +590,22 @@ public class VideoRecorder extends AbstractFilter {
 					}
 					lastts = frame.timestamp;
 
-					// Buffers for reading and transforming the frame
-					if (inputbm == null || inputbm.getWidth() != frame.width || inputbm.getHeight() != frame.height) {
-						inputbm = Bitmap.createBitmap(frame.width, frame.height, Bitmap.Config.ARGB_8888);
-						image = new int[frame.width * frame.height];
-					}
-					
 					// Read input image
 					frame.block.rewind();
 					frame.block.asIntBuffer().get(image, 0, image.length);
 					
 					// Transform the frame
-					inputbm.setPixels(image, 0, frame.width, 0, 0, frame.width, frame.height);
-					canvas.drawBitmap(inputbm, _transform.matrix, paint);
+					_transform.apply(image, outputimage);
 					
 					// Calculate the frame delay in 1/100 seconds
 					long timestamp = frame.timestamp / 10000000L;
 					if (prevtimestamp != 0) {
-						encoder.setDelay(((int)(timestamp - prevtimestamp)) * 10);					
+						delay = ((int)(timestamp - prevtimestamp)) * 10;
 					}
 					prevtimestamp = timestamp;
 					
 					// Encode the frame
-					encoder.addFrame(outputbm);
+					encoder.addFrame(outputimage, delay);
 					frame.block = null;
 					
 					// Publish progress
@@ -327,12 +614,15 @@ public class VideoRecorder extends AbstractFilter {
 				}
 				
 				// Flush image to disk
+				finished = true;
 				encoder.finish();
 				os.flush();
 				os.close();
 				os = null;
 
 				Log.i(TAG, "Encoder performance (frames/sec): " + ((double)_frames.size() / ((double)(System.currentTimeMillis() - ts) / 1000)));
+				Log.i(TAG, "Encoder output (bytes/frame): " + (encoder.getOutputSize() / Math.max(encoder.getFrameCount(), 1)));
+				Log.i(TAG, "Encoder time (ms/frame): " + ((double)encoder.getEncodeTime() / Math.max(encoder.getFrameCount(), 1)));
 				Log.i(TAG, "Output GIF framerate: " + ((double)_frames.size() / ((double)(lastts - firstts) / 1000000000)));
 				
 				// Tell the gallery about the image
@@ -350,14 +640,11 @@ public class VideoRecorder extends AbstractFilter {
 				cancel(false);
 			}
 			finally {
-				outputbm.recycle();
-				outputbm = null;
-
-				if (inputbm != null) {
-					inputbm.recycle();
-					inputbm = null;
+				// Stop the worker threads unless finish() did
+				if (encoder != null && !finished) {
+					encoder.abort();
 				}
-
+				
 				if (os != null) {
 					try {
 						os.close();
@@ -0,0 +1,160 @@
+package se.embargo.retroboy.color;
+
+import java.util.Arrays;
+
+import se.embargo.core.graphic.color.IColorQuantizer;
+import se.embargo.core.graphic.color.IPalette;
+
+/**
+ * Quantizes a histogram of the image over 12-bit color buckets.
+ *
+ * Sampling only counts pixels, so the cost of building a palette depends on the number of buckets
+ * rather than the image size. Each palette is refined by one k-means step over the histogram, and
+ * the previous palette gets the same step and is kept when it fits the new image better. That keeps
+ * the colors steady while the scene is, and lets the fresh palette take over when it changes.
+ */
+public abstract class AbstractHistogramQuantizer implements IColorQuantizer {
+	/**
+	 * Number of bits per channel in the histogram.
+	 */
+	protected static final int HISTOGRAM_BITS = 4;
+
+	/**
+	 * Number of buckets in the histogram.
+	 */
+	protected static final int BUCKETS = 1 << (HISTOGRAM_BITS * 3);
+
+	/**
+	 * Number of bits to shift a color channel to its bucket coordinate.
+	 */
+	private static final int BUCKET_SHIFT = 8 - HISTOGRAM_BITS;
+
+	/**
+	 * Max number of colors to select, the color count of the sampled palette.
+	 */
+	protected int _maxcolors;
+
+	/**
+	 * Number of pixels in each bucket.
+	 */
+	protected final int[] _counts = new int[BUCKETS];
+
+	/**
+	 * Sum of the red, green and blue channels of the pixels in each bucket.
+	 */
+	protected final long[] _sums = new long[BUCKETS * 3];
+
+	/**
+	 * Indexes of the buckets that have pixels.
+	 */
+	protected final int[] _buckets = new int[BUCKETS];
+	protected int _bucketcount = 0;
+
+	/**
+	 * Mean color of each bucket.
+	 */
+	private final int[] _means = new int[BUCKETS];
+
+	/**
+	 * Palette selected by the last sample.
+	 */
+	private int[] _colors = null;
+
+	@Override
+	public void sample(IPalette palette, int[] image, int pixels, int quality) {
+		_maxcolors = Math.max(1, Math.min(palette.getColorCount(), BUCKETS));
+		Arrays.fill(_counts, 0);
+		Arrays.fill(_sums, 0);
+
+		final int step = Math.max(quality, 1);
+		for (int i = 0; i < pixels; i += step) {
+			final int pixel = image[i];
+			final int r = pixel & 0xff, g = (pixel >> 8) & 0xff, b = (pixel >> 16) & 0xff;
+			final int bucket = (r >> BUCKET_SHIFT) | ((g >> BUCKET_SHIFT) << HISTOGRAM_BITS) | ((b >> BUCKET_SHIFT) << (HISTOGRAM_BITS * 2));
+			_counts[bucket]++;
+			_sums[bucket * 3] += r;
+			_sums[bucket * 3 + 1] += g;
+			_sums[bucket * 3 + 2] += b;
+		}
+
+		_bucketcount = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			final int count = _counts[bucket];
+			if (count > 0) {
+				_buckets[_bucketcount++] = bucket;
+				_means[bucket] = getMean(_sums[bucket * 3], _sums[bucket * 3 + 1], _sums[bucket * 3 + 2], count);
+			}
+		}
+
+		if (_bucketcount == 0) {
+			return;
+		}
+
+		int[] colors = quantize();
+		long error = refine(colors);
+
+		// Warm start from the previous palette unless the number of colors differs
+		if (_colors != null && _colors.length == colors.length) {
+			int[] previous = _colors.clone();
+			if (refine(previous) <= error) {
+				colors = previous;
+			}
+		}
+
+		for (int i = 0; i < colors.length; i++) {
+			colors[i] = palette.getNearestColor(colors[i] & 0xff, (colors[i] >> 8) & 0xff, (colors[i] >> 16) & 0xff) & 0xffffff;
+		}
+
+		_colors = colors;
+	}
+
+	@Override
+	public int[] getPalette() {
+		return _colors != null ? _colors.clone() : new int[] {0};
+	}
+
+	/**
+	 * Selects colors from the buckets in {@link #_buckets}.
+	 * @return	At most {@link #_maxcolors} colors.
+	 */
+	protected abstract int[] quantize();
+
+	/**
+	 * @return	The mean color of pixels with the given channel sums.
+	 */
+	protected static int getMean(long r, long g, long b, long count) {
+		final long half = count / 2;
+		return (int)(((b + half) / count) << 16) | (int)(((g + half) / count) << 8) | (int)((r + half) / count);
+	}
+
+	/**
+	 * Moves each color to the mean of the buckets nearest to it.
+	 * @return	The error of the colors before moving them, as the sum of pixel counts times YUV ranks.
+	 */
+	private long refine(int[] colors) {
+		final DistancePalette palette = DistancePalette.create(Distances.YUV, colors);
+		final long[] sums = new long[colors.length * 4];
+		long error = 0;
+
+		for (int i = 0; i < _bucketcount; i++) {
+			final int bucket = _buckets[i], mean = _means[bucket];
+			final int r1 = mean & 0xff, g1 = (mean >> 8) & 0xff, b1 = (mean >> 16) & 0xff;
+			final int index = palette.getNearestIndex(r1, g1, b1), color = colors[index];
+			final int count = _counts[bucket];
+			error += count * Distances.YUV.rank(r1, g1, b1, color & 0xff, (color >> 8) & 0xff, (color >> 16) & 0xff);
+
+			sums[index * 4] += _sums[bucket * 3];
+			sums[index * 4 + 1] += _sums[bucket * 3 + 1];
+			sums[index * 4 + 2] += _sums[bucket * 3 + 2];
+			sums[index * 4 + 3] += count;
+		}
+
+		for (int i = 0; i < colors.length; i++) {
+			if (sums[i * 4 + 3] > 0) {
+				colors[i] = getMean(sums[i * 4], sums[i * 4 + 1], sums[i * 4 + 2], sums[i * 4 + 3]);
+			}
+		}
+
+		return error;
+	}
+}
@@ -1,75 +1,142 @@
 package se.embargo.retroboy.color;
 
-import se.embargo.core.concurrent.IForBody;
-import se.embargo.core.concurrent.Parallel;
+import java.util.Arrays;
+
 import se.embargo.core.graphic.color.IIndexedPalette;
 
 /**
  * Approximates an arbitrary palette by expanding it to a larger regular one.
+ *
+ * Each bucket corresponds to an RGB color truncated to the configured number of bits per channel
+ * and stores the index of the color the inner palette returned. Buckets are filled when a color
+ * first hits them, so building the table costs nothing up front and frames only pay for the
+ * colors they contain. Concurrent fills are safe since all threads write the same index.
  */
 public class BucketPalette implements IIndexedPalette {
+	/**
+	 * Supported number of bits per color channel.
+	 */
+	public static final int MIN_BITS = 4, MAX_BITS = 6;
+
+	/**
+	 * Marks a bucket that hasn't been filled yet.
+	 */
+	private static final int EMPTY_BUCKET = -1;
+
 	/**
 	 * Number of most significant bits to store per color channel.
 	 */
-	private static final int _bits = 4;
-	
+	private final int _bits;
+
 	/**
 	 * Number of bits to shift a color.
 	 */
-	private static final int _step = 8 - _bits;
-	
+	private final int _step;
+
 	/**
 	 * Palette to sample colors from.
 	 */
 	private final IIndexedPalette _palette;
-	
+
 	/**
-	 * Each bucket corresponds to an RGB color and stores the color the inner palette returned.
+	 * Colors of the inner palette.
 	 */
-	private final int[] _buckets = new int[1 << (_bits * 3)];
-	
+	private final int[] _colors;
+
+	/**
+	 * Palette index of each bucket for palettes of less than 256 colors.
+	 */
+	private final byte[] _bytes;
+
 	/**
-	 * Each bucket corresponds to an RGB color and stores the index the inner palette returned.
+	 * Palette index of each bucket for larger palettes.
 	 */
-	private final int[] _indexes = new int[1 << (_bits * 3)];
+	private final short[] _shorts;
 
 	/**
-	 * Number of bits to shift green and blue colors. 
+	 * Number of bits to shift green and blue colors.
 	 */
-	private final int _gsb = _bits, 
-					  _bsb = _bits * 2;
-	
+	private final int _gsb, _bsb;
+
 	/**
 	 * Red, green and blue bit masks.
 	 */
-	private final int _rm = (1 << _bits) - 1, 
-					  _gm = _rm << _gsb, 
-					  _bm = _rm << _bsb;
-	
+	private final int _rm, _gm, _bm;
+
 	public BucketPalette(IIndexedPalette palette) {
+		this(palette, getDefaultBits());
+	}
+
+	/**
+	 * @param	palette	Palette to sample colors from
+	 * @param	bits	Number of bits per color channel, between {@link #MIN_BITS} and {@link #MAX_BITS}
+	 */
+	public BucketPalette(IIndexedPalette palette, int bits) {
+		this(palette, bits, null);
+	}
+
+	/**
+	 * Takes over the lookup table of a palette that is no longer in use, which must not be used afterwards.
+	 * @param	palette		Palette to sample colors from
+	 * @param	recycled	Palette to take the table from, or null to allocate one
+	 */
+	public BucketPalette(IIndexedPalette palette, BucketPalette recycled) {
+		this(palette, recycled != null ? recycled._bits : getDefaultBits(), recycled);
+	}
+
+	private BucketPalette(IIndexedPalette palette, int bits, BucketPalette recycled) {
+		if (bits < MIN_BITS || bits > MAX_BITS) {
+			throw new IllegalArgumentException("Unsupported number of bits per channel: " + bits);
+		}
+
+		if (palette.getColorCount() > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many colors in palette: " + palette.getColorCount());
+		}
+
 		_palette = palette;
+		_colors = palette.getColors();
+		_bits = bits;
+		_step = 8 - bits;
+		_gsb = bits;
+		_bsb = bits * 2;
+		_rm = (1 << bits) - 1;
+		_gm = _rm << _gsb;
+		_bm = _rm << _bsb;
 
-		// Initialize the cached buckets
-		Parallel.forRange(new IForBody<int[]>() {
-			@Override
-			public void run(int[] item, int it, int last) {
-				for (int i = it; i < last; i++) {
-					final int r1 = (i & _rm) << _step,
-							  g1 = ((i & _gm) >> _gsb) << _step,
-							  b1 = ((i & _bm) >> _bsb) << _step;
-					
-					_buckets[i] = _palette.getNearestColor(r1, g1, b1);
-					_indexes[i] = _palette.getIndex(_buckets[i]);
-				}
-			}
-		}, _buckets, 0, _buckets.length);
+		// Index 255 is reserved to mark empty buckets
+		if (_colors.length < 256) {
+			_bytes = recycled != null && recycled._bytes != null && recycled._bits == bits ? recycled._bytes : new byte[1 << (bits * 3)];
+			_shorts = null;
+			Arrays.fill(_bytes, (byte)EMPTY_BUCKET);
+		}
+		else {
+			_bytes = null;
+			_shorts = recycled != null && recycled._shorts != null && recycled._bits == bits ? recycled._shorts : new short[1 << (bits * 3)];
+			Arrays.fill(_shorts, (short)EMPTY_BUCKET);
+		}
+	}
+
+	/**
+	 * @return	Number of bits per channel suitable for the memory available to the device.
+	 */
+	public static int getDefaultBits() {
+		long maxmemory = Runtime.getRuntime().maxMemory();
+		if (maxmemory >= 128L * 1024 * 1024) {
+			return 6;
+		}
+
+		if (maxmemory >= 48L * 1024 * 1024) {
+			return 5;
+		}
+
+		return 4;
 	}
-	
+
 	@Override
 	public int getNearestColor(final int r1, final int g1, final int b1) {
-		return _buckets[(r1 >> _step) | ((g1 >> _step) << _gsb) | ((b1 >> _step) << _bsb)];
+		return _colors[getBucketIndex((r1 >> _step) | ((g1 >> _step) << _gsb) | ((b1 >> _step) << _bsb))];
 	}
-	
+
 	@Override
 	public int getColorCount() {
 		return _palette.getColorCount();
@@ -77,10 +144,62 @@ public class BucketPalette implements IIndexedPalette {
 
 	@Override
 	public int[] getColors() {
-		return _palette.getColors();
+		return _colors;
+	}
+
+	/**
+	 * @return	Number of bits per color channel.
+	 */
+	public int getBits() {
+		return _bits;
+	}
+
+	/**
+	 * @return	Number of bytes used by the lookup tables.
+	 */
+	public long getMemoryUsage() {
+		return _bytes != null ? _bytes.length : _shorts.length * 2L;
 	}
 
 	public int getIndex(final int color) {
-		return _indexes[((color & 0xff) >> _step) | ((((color >> 8)  & 0xff) >> _step) << _gsb) | ((((color >> 16)  & 0xff) >> _step) << _bsb)];
+		return getBucketIndex(((color & 0xff) >> _step) | ((((color >> 8)  & 0xff) >> _step) << _gsb) | ((((color >> 16)  & 0xff) >> _step) << _bsb));
+	}
+
+	/**
+	 * @return	Palette index stored in a bucket, filling it if needed.
+	 */
+	private int getBucketIndex(final int bucket) {
+		if (_bytes != null) {
+			final int index = _bytes[bucket] & 0xff;
+			if (index != (EMPTY_BUCKET & 0xff)) {
+				return index;
+			}
+		}
+		else {
+			final int index = _shorts[bucket];
+			if (index != EMPTY_BUCKET) {
+				return index;
+			}
+		}
+
+		return fillBucket(bucket);
+	}
+
+	private int fillBucket(final int bucket) {
+		final int r1 = (bucket & _rm) << _step,
+				  g1 = ((bucket & _gm) >> _gsb) << _step,
+				  b1 = ((bucket & _bm) >> _bsb) << _step;
+
+		final int index = _palette instanceof DistancePalette ? 
+			((DistancePalette)_palette).getNearestIndex(r1, g1, b1) : 
+			_palette.getIndex(_palette.getNearestColor(r1, g1, b1));
+		if (_bytes != null) {
+			_bytes[bucket] = (byte)index;
+		}
+		else {
+			_shorts[bucket] = (short)index;
+		}
+
+		return index;
 	}
 }
@@ -0,0 +1,171 @@
+package se.embargo.retroboy.color;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import se.embargo.core.graphic.color.IIndexedPalette;
+import se.embargo.core.graphic.color.IPalette;
+
+/**
+ * Fixed table of at most 256 colors with a direct lookup from color to index.
+ *
+ * Colors present in the table are found with a hash lookup, other colors are mapped
+ * to the nearest color in the table.
+ */
+public class ColorTable implements IIndexedPalette {
+	/**
+	 * Max number of colors in a table.
+	 */
+	public static final int MAX_COLORS = 256;
+
+	/**
+	 * Number of bits per channel when probing a palette for its colors.
+	 */
+	private static final int PROBE_BITS = 5;
+
+	private final int[] _colors;
+
+	/**
+	 * Open addressed hash from color+1 to index, zero marks an empty slot.
+	 */
+	private final int[] _keys, _values;
+	private final int _mask;
+
+	/**
+	 * Palette used for colors not present in the table.
+	 */
+	private IIndexedPalette _nearest = null;
+
+	/**
+	 * @param	colors	Colors of table, at most 256
+	 */
+	public ColorTable(int[] colors) {
+		_colors = colors;
+
+		int size = 16;
+		while (size < colors.length * 4) {
+			size <<= 1;
+		}
+
+		_keys = new int[size];
+		_values = new int[size];
+		_mask = size - 1;
+
+		for (int i = 0; i < colors.length; i++) {
+			final int key = (colors[i] & 0xffffff) + 1;
+			int slot = hash(key);
+
+			while (_keys[slot] != 0 && _keys[slot] != key) {
+				slot = (slot + 1) & _mask;
+			}
+
+			// Keep the first index of duplicated colors
+			if (_keys[slot] == 0) {
+				_keys[slot] = key;
+				_values[slot] = i;
+			}
+		}
+	}
+
+	/**
+	 * Derives a color table from an arbitrary palette.
+	 * @param	palette	Palette to derive table from
+	 * @return			A table with the colors of palette, or null if it has too many colors
+	 */
+	public static ColorTable create(IPalette palette) {
+		if (palette == null) {
+			return null;
+		}
+
+		if (palette instanceof IIndexedPalette) {
+			int[] colors = ((IIndexedPalette)palette).getColors();
+			return colors.length <= MAX_COLORS ? new ColorTable(colors) : null;
+		}
+
+		// Probe the palette to enumerate the colors it returns
+		final int levels = 1 << PROBE_BITS;
+		final Set<Integer> colors = new LinkedHashSet<Integer>();
+
+		for (int b = 0; b < levels; b++) {
+			for (int g = 0; g < levels; g++) {
+				for (int r = 0; r < levels; r++) {
+					colors.add(0xff000000 | palette.getNearestColor(expand(r), expand(g), expand(b)));
+					if (colors.size() > MAX_COLORS) {
+						return null;
+					}
+				}
+			}
+		}
+
+		int[] result = new int[colors.size()];
+		int i = 0;
+		for (Integer color : colors) {
+			result[i++] = color;
+		}
+
+		return new ColorTable(result);
+	}
+
+	/**
+	 * @return	The index of color, or -1 if it isn't present in the table
+	 */
+	public int indexOf(int color) {
+		final int key = (color & 0xffffff) + 1;
+		for (int slot = hash(key); _keys[slot] != 0; slot = (slot + 1) & _mask) {
+			if (_keys[slot] == key) {
+				return _values[slot];
+			}
+		}
+
+		return -1;
+	}
+
+	@Override
+	public int getNearestColor(int r1, int g1, int b1) {
+		final int index = indexOf((b1 << 16) | (g1 << 8) | r1);
+		if (index >= 0) {
+			return _colors[index];
+		}
+
+		return getNearestPalette().getNearestColor(r1, g1, b1);
+	}
+
+	@Override
+	public int getColorCount() {
+		return _colors.length;
+	}
+
+	@Override
+	public int[] getColors() {
+		return _colors;
+	}
+
+	@Override
+	public int getIndex(int color) {
+		final int index = indexOf(color);
+		if (index >= 0) {
+			return index;
+		}
+
+		return getNearestPalette().getIndex(color);
+	}
+
+	private synchronized IIndexedPalette getNearestPalette() {
+		if (_nearest == null) {
+			_nearest = new BucketPalette(DistancePalette.create(Distances.YUV, _colors));
+		}
+
+		return _nearest;
+	}
+
+	private int hash(int key) {
+		return (key * 0x9e3779b1 >>> 16) & _mask;
+	}
+
+	/**
+	 * Expands a probe level to the full 8-bit range.
+	 */
+	private static int expand(int level) {
+		return (level << (8 - PROBE_BITS)) | (level >> (PROBE_BITS * 2 - 8));
+	}
+}
@@ -6,32 +6,122 @@ import se.embargo.core.graphic.color.IIndexedPalette;
  * Returns the nearest color according to the distance metric.
  */
 public class DistancePalette implements IIndexedPalette {
+	/**
+	 * Number of colors from which a k-d tree search beats a linear scan, measured by the
+	 * KdTreeBenchmark of the desktop tools to cross over between 64 and 96 colors.
+	 */
+	private static final int KDTREE_MIN_COLORS = 96;
+	
 	private final IColorDistance _distance;
 	private final int[] _colors;
 	
+	/**
+	 * Integer form of the distance, or null if not available.
+	 */
+	private final IColorMetric _metric;
+	
+	/**
+	 * Distance in the CIELAB space, or null if not measured in Lab.
+	 */
+	private final LabDistance _labdistance;
+	
+	/**
+	 * Red, green and blue components of the colors.
+	 */
+	private final int[] _components;
+	
+	/**
+	 * Colors converted to Lab when measured in Lab.
+	 */
+	private final double[] _lab;
+	
 	public DistancePalette(IColorDistance distance, int[] colors) {
 		_distance = distance;
 		_colors = colors;
+		_metric = distance instanceof IColorMetric ? (IColorMetric)distance : null;
+		_labdistance = distance instanceof LabDistance ? (LabDistance)distance : null;
+		_components = new int[colors.length * 3];
+		_lab = _labdistance != null ? new double[colors.length * 3] : null;
+		
+		for (int i = 0; i < colors.length; i++) {
+			_components[i * 3] = colors[i] & 0xff;
+			_components[i * 3 + 1] = (colors[i] >> 8) & 0xff;
+			_components[i * 3 + 2] = (colors[i] >> 16) & 0xff;
+			
+			if (_lab != null) {
+				LabDistance.toLab(_components[i * 3], _components[i * 3 + 1], _components[i * 3 + 2], _lab, i * 3);
+			}
+		}
+	}
+	
+	/**
+	 * Creates the fastest palette for the number of colors, searching a {@link KdTreePalette} for 
+	 * large palettes when the distance has an integer form.
+	 * @param	distance	Distance to measure colors with
+	 * @param	colors		Palette of available colors
+	 */
+	public static DistancePalette create(IColorDistance distance, int[] colors) {
+		if (distance instanceof IColorMetric && colors.length >= KDTREE_MIN_COLORS) {
+			return new KdTreePalette((IColorMetric)distance, colors);
+		}
+		
+		return new DistancePalette(distance, colors);
 	}
 	
 	@Override
 	public int getNearestColor(final int r1, final int g1, final int b1) {
-		int color = 0;
+		return _colors[getNearestIndex(r1, g1, b1)];
+	}
+	
+	/**
+	 * @return	Index of the color nearest to the given one, the first one in case of ties.
+	 */
+	public int getNearestIndex(final int r1, final int g1, final int b1) {
+		if (_metric != null) {
+			int index = 0;
+			long minrank = Long.MAX_VALUE;
+			
+			for (int i = 0, j = 0; i < _colors.length; i++, j += 3) {
+				final long rank = _metric.rank(r1, g1, b1, _components[j], _components[j + 1], _components[j + 2]);
+				if (rank < minrank) {
+					index = i;
+					minrank = rank;
+				}
+			}
+			
+			return index;
+		}
+		
+		if (_labdistance != null) {
+			final double[] lab = new double[3];
+			LabDistance.toLab(r1, g1, b1, lab, 0);
+			
+			int index = 0;
+			double mindistance = Double.MAX_VALUE;
+			
+			for (int i = 0, j = 0; i < _colors.length; i++, j += 3) {
+				final double distance = _labdistance.get(lab[0], lab[1], lab[2], _lab[j], _lab[j + 1], _lab[j + 2]);
+				if (distance < mindistance) {
+					index = i;
+					mindistance = distance;
+				}
+			}
+			
+			return index;
+		}
+		
+		int index = 0;
 		double mindistance = Double.MAX_VALUE;
 		
-		for (int i = 0; i < _colors.length; i++) {
-			final int r2 = _colors[i] & 0xff,
-					  g2 = (_colors[i] >> 8) & 0xff,
-					  b2 = (_colors[i] >> 16) & 0xff;
-
-			final double distance = _distance.get(r1, g1, b1, r2, g2, b2);
+		for (int i = 0, j = 0; i < _colors.length; i++, j += 3) {
+			final double distance = _distance.get(r1, g1, b1, _components[j], _components[j + 1], _components[j + 2]);
 			if (distance < mindistance) {
-				color = _colors[i];
+				index = i;
 				mindistance = distance;
 			}
 		}
 		
-		return color;
+		return index;
 	}
 
 	@Override
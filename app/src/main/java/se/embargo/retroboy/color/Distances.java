@@ -28,38 +28,182 @@ public class Distances {
      * Returns the distance in the YUV space.
      * @link	http://www.compuphase.com/cmetric.htm
      */
-    public static final IColorDistance YUV = new IColorDistance() {
+    public static final IColorMetric YUV = new IColorMetric() {
     	@Override
     	public String toString() {
     		return "yuv";
     	}
 
     	public double get(int r1,int g1,int b1, int r2,int g2,int b2) {
-			final double dr = r1 - r2,
-	  			  	 	 dg = g1 - g2,
-	  			  	 	 db = b1 - b2;
-		
-			return Math.sqrt(3d * dr * dr + 4d * dg * dg + 2d * db * db);
+    		// The squared distance is an integer well within the exact range of a double
+			return Math.sqrt(rank(r1, g1, b1, r2, g2, b2));
 	    }
+    	
+    	public long rank(int r1,int g1,int b1, int r2,int g2,int b2) {
+			final int dr = r1 - r2,
+	  			  	  dg = g1 - g2,
+	  			  	  db = b1 - b2;
+		
+			return 3 * dr * dr + 4 * dg * dg + 2 * db * db;
+    	}
+    	
+    	public long bound(int channel, int delta) {
+    		return (channel == 0 ? 3 : channel == 1 ? 4 : 2) * delta * delta;
+    	}
     };
 
     /**
      * Returns the distance in the LUV space.
      * @link	http://www.compuphase.com/cmetric.htm
      */
-    public static final IColorDistance LUV = new IColorDistance() {
+    public static final IColorMetric LUV = new IColorMetric() {
     	@Override
     	public String toString() {
     		return "luv";
     	}
 
     	public double get(int r1,int g1,int b1, int r2,int g2,int b2) {
-			final double mr = ((double)(r1 + r2)) / 2;
-			final double dr = r1 - r2,
-	  	  			  	 dg = g1 - g2,
-	  	  			  	 db = b1 - b2;
+    		// The weights are multiples of 1/512 so the scaled squared distance converts back exactly
+			return Math.sqrt(rank(r1, g1, b1, r2, g2, b2) / 512d);
+    	}
+    	
+    	public long rank(int r1,int g1,int b1, int r2,int g2,int b2) {
+    		// Squared distance scaled by 512, where 512 * (2 + mr / 256) = 1024 + r1 + r2
+			final int sr = r1 + r2;
+			final int dr = r1 - r2,
+	  	  			  dg = g1 - g2,
+	  	  			  db = b1 - b2;
 			
-			return Math.sqrt((2d + mr / 256d) * dr * dr + 4d * dg * dg + (2d + (255d - mr) / 256d) * db * db);
+			return (1024 + sr) * dr * dr + 2048 * dg * dg + (1534 - sr) * db * db;
+    	}
+    	
+    	public long bound(int channel, int delta) {
+    		// The red and blue weights are at least 1024 since r1 + r2 is between 0 and 510
+    		return (channel == 1 ? 2048 : 1024) * delta * delta;
+    	}
+    };
+
+    /**
+     * Returns the CIE76 distance, the euclidean distance in the CIELAB space.
+     * @link	http://en.wikipedia.org/wiki/Color_difference#CIE76
+     */
+    public static final LabDistance CIE76 = new LabDistance() {
+    	@Override
+    	public String toString() {
+    		return "cie76";
+    	}
+    	
+    	public double get(double l1, double a1, double b1, double l2, double a2, double b2) {
+    		final double dl = l1 - l2,
+    					 da = a1 - a2,
+    					 db = b1 - b2;
+    		
+    		return Math.sqrt(dl * dl + da * da + db * db);
+    	}
+    };
+    
+    /**
+     * Returns the CIEDE2000 distance in the CIELAB space.
+     * @link	http://www.ece.rochester.edu/~gsharma/ciede2000/
+     */
+    public static final LabDistance CIEDE2000 = new LabDistance() {
+    	/**
+    	 * 25^7 used to scale the chroma.
+    	 */
+    	private static final double POW25_7 = 6103515625d;
+    	
+    	@Override
+    	public String toString() {
+    		return "ciede2000";
+    	}
+    	
+    	public double get(double l1, double a1, double b1, double l2, double a2, double b2) {
+    		// Scale the a axis to compensate for neutral colors
+    		final double c1 = Math.sqrt(a1 * a1 + b1 * b1),
+    					 c2 = Math.sqrt(a2 * a2 + b2 * b2),
+    					 cb = (c1 + c2) / 2d,
+    					 cb7 = pow7(cb),
+    					 g = 0.5d * (1d - Math.sqrt(cb7 / (cb7 + POW25_7)));
+    		
+    		final double a1p = (1d + g) * a1,
+    					 a2p = (1d + g) * a2,
+    					 c1p = Math.sqrt(a1p * a1p + b1 * b1),
+    					 c2p = Math.sqrt(a2p * a2p + b2 * b2),
+    					 h1p = getHue(b1, a1p),
+    					 h2p = getHue(b2, a2p);
+    		
+    		// Differences in lightness, chroma and hue
+    		final double dlp = l2 - l1, 
+    					 dcp = c2p - c1p;
+    		
+    		double dhp = 0;
+    		if (c1p * c2p != 0) {
+    			dhp = h2p - h1p;
+    			if (dhp > 180d) {
+    				dhp -= 360d;
+    			}
+    			else if (dhp < -180d) {
+    				dhp += 360d;
+    			}
+    		}
+    		
+    		final double dHp = 2d * Math.sqrt(c1p * c2p) * Math.sin(Math.toRadians(dhp / 2d));
+    		
+    		// Mean lightness, chroma and hue
+    		final double lbp = (l1 + l2) / 2d,
+    					 cbp = (c1p + c2p) / 2d;
+    		
+    		double hbp = h1p + h2p;
+    		if (c1p * c2p != 0) {
+    			if (Math.abs(h1p - h2p) <= 180d) {
+    				hbp /= 2d;
+    			}
+    			else if (hbp < 360d) {
+    				hbp = (hbp + 360d) / 2d;
+    			}
+    			else {
+    				hbp = (hbp - 360d) / 2d;
+    			}
+    		}
+    		
+    		// Weighting functions
+    		final double t = 1d 
+    			- 0.17d * Math.cos(Math.toRadians(hbp - 30d)) 
+    			+ 0.24d * Math.cos(Math.toRadians(2d * hbp)) 
+    			+ 0.32d * Math.cos(Math.toRadians(3d * hbp + 6d)) 
+    			- 0.20d * Math.cos(Math.toRadians(4d * hbp - 63d));
+    		
+    		final double dtheta = 30d * Math.exp(-((hbp - 275d) / 25d) * ((hbp - 275d) / 25d)),
+    					 cbp7 = pow7(cbp),
+    					 rc = 2d * Math.sqrt(cbp7 / (cbp7 + POW25_7)),
+    					 lb50 = (lbp - 50d) * (lbp - 50d),
+    					 sl = 1d + 0.015d * lb50 / Math.sqrt(20d + lb50),
+    					 sc = 1d + 0.045d * cbp,
+    					 sh = 1d + 0.015d * cbp * t,
+    					 rt = -Math.sin(Math.toRadians(2d * dtheta)) * rc;
+    		
+    		final double dl = dlp / sl,
+    					 dc = dcp / sc,
+    					 dh = dHp / sh;
+    		
+    		return Math.sqrt(dl * dl + dc * dc + dh * dh + rt * dc * dh);
+    	}
+    	
+    	/**
+    	 * @return	Hue angle in degrees between 0 and 360.
+    	 */
+    	private double getHue(double b, double ap) {
+    		if (b == 0 && ap == 0) {
+    			return 0;
+    		}
+    		
+    		final double h = Math.toDegrees(Math.atan2(b, ap));
+    		return h < 0 ? h + 360d : h;
+    	}
+    	
+    	private double pow7(double x) {
+    		final double x2 = x * x;
+    		return x2 * x2 * x2 * x;
     	}
     };
 }
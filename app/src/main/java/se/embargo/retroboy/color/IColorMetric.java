@@ -0,0 +1,20 @@
+package se.embargo.retroboy.color;
+
+/**
+ * Color distance with an integer form for comparing colors in hot loops.
+ */
+public interface IColorMetric extends IColorDistance {
+	/**
+	 * Compares without square roots or floating point, e.g. by returning a scaled squared distance.
+	 * @return	A non-negative number that orders color pairs exactly like {@link #get}.
+	 */
+	public long rank(int r1,int g1,int b1, int r2,int g2,int b2);
+	
+	/**
+	 * Used to prune searches that partition colors along one channel.
+	 * @param channel	Channel that differs, 0 for red, 1 for green and 2 for blue.
+	 * @param delta		Difference between the channel values.
+	 * @return			A lower bound of {@link #rank} for any pair of colors differing by delta in the channel.
+	 */
+	public long bound(int channel, int delta);
+}
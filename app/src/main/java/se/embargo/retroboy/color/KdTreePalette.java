@@ -0,0 +1,142 @@
+package se.embargo.retroboy.color;
+
+import java.util.Arrays;
+
+/**
+ * Finds the nearest color by searching a k-d tree over the palette.
+ *
+ * The palette is split at the median of the channel with the largest spread, recursively. A search
+ * descends towards the query color first and only visits the other side of a split when the metric
+ * bound for crossing it is below the best rank so far. Ties resolve to the lowest palette index so
+ * the result is identical to the linear scan of {@link DistancePalette}.
+ */
+public class KdTreePalette extends DistancePalette {
+	/**
+	 * Number of bits to shift a rank to make room for the palette index.
+	 */
+	private static final int INDEX_BITS = 16;
+
+	private final IColorMetric _metric;
+
+	/**
+	 * Palette index, split channel, split value and children of each node.
+	 */
+	private final int[] _index, _channel, _value, _left, _right;
+
+	/**
+	 * Red, green and blue components of each node.
+	 */
+	private final int[] _components;
+
+	private int _nodecount = 0;
+
+	/**
+	 * @param	metric	Metric to measure distances with
+	 * @param	colors	Palette of less than 65536 colors
+	 */
+	public KdTreePalette(IColorMetric metric, int[] colors) {
+		super(metric, colors);
+		_metric = metric;
+
+		final int count = colors.length;
+		_index = new int[count];
+		_channel = new int[count];
+		_value = new int[count];
+		_left = new int[count];
+		_right = new int[count];
+		_components = new int[count * 3];
+
+		int[] indexes = new int[count];
+		for (int i = 0; i < count; i++) {
+			indexes[i] = i;
+		}
+
+		build(colors, indexes, 0, count);
+	}
+
+	@Override
+	public int getNearestIndex(final int r1, final int g1, final int b1) {
+		if (_nodecount == 0) {
+			return 0;
+		}
+
+		return (int)(search(0, r1, g1, b1, Long.MAX_VALUE) & ((1 << INDEX_BITS) - 1));
+	}
+
+	/**
+	 * @return	The best rank and palette index packed into a long, compared as a pair.
+	 */
+	private long search(final int node, final int r1, final int g1, final int b1, long best) {
+		final int j = node * 3;
+		final long rank = (_metric.rank(r1, g1, b1, _components[j], _components[j + 1], _components[j + 2]) << INDEX_BITS) | _index[node];
+		if (rank < best) {
+			best = rank;
+		}
+
+		final int channel = _channel[node];
+		final int delta = (channel == 0 ? r1 : channel == 1 ? g1 : b1) - _value[node];
+		final int near = delta < 0 ? _left[node] : _right[node],
+				  far = delta < 0 ? _right[node] : _left[node];
+
+		if (near >= 0) {
+			best = search(near, r1, g1, b1, best);
+		}
+
+		// Colors across the split differ by at least delta in the split channel
+		if (far >= 0 && (_metric.bound(channel, delta) << INDEX_BITS) < best) {
+			best = search(far, r1, g1, b1, best);
+		}
+
+		return best;
+	}
+
+	/**
+	 * Builds the subtree of the given palette indexes.
+	 * @return	The root node, or -1 if empty.
+	 */
+	private int build(final int[] colors, final int[] indexes, final int first, final int last) {
+		if (first >= last) {
+			return -1;
+		}
+
+		// Split on the channel with the largest spread
+		int channel = 0, spread = -1;
+		for (int c = 0; c < 3; c++) {
+			int min = 255, max = 0;
+			for (int i = first; i < last; i++) {
+				final int value = (colors[indexes[i]] >> (c * 8)) & 0xff;
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+
+			if (max - min > spread) {
+				channel = c;
+				spread = max - min;
+			}
+		}
+
+		// Order by channel value and then index to keep the tree deterministic
+		int[] keys = new int[last - first];
+		for (int i = first; i < last; i++) {
+			keys[i - first] = (((colors[indexes[i]] >> (channel * 8)) & 0xff) << INDEX_BITS) | indexes[i];
+		}
+
+		Arrays.sort(keys);
+		for (int i = first; i < last; i++) {
+			indexes[i] = keys[i - first] & ((1 << INDEX_BITS) - 1);
+		}
+
+		final int median = (first + last) >>> 1;
+		final int node = _nodecount++;
+		final int color = colors[indexes[median]];
+		_index[node] = indexes[median];
+		_channel[node] = channel;
+		_value[node] = (color >> (channel * 8)) & 0xff;
+		_components[node * 3] = color & 0xff;
+		_components[node * 3 + 1] = (color >> 8) & 0xff;
+		_components[node * 3 + 2] = (color >> 16) & 0xff;
+		_left[node] = build(colors, indexes, first, median);
+		_right[node] = build(colors, indexes, median + 1, last);
+		return node;
+	}
+}
@@ -0,0 +1,85 @@
+package se.embargo.retroboy.color;
+
+/**
+ * Returns the distance between two colors in the CIELAB space.
+ *
+ * Colors are converted from sRGB under a D65 white point. The sRGB transfer function is a table
+ * over the 256 channel values and the cube root of the Lab transform is interpolated from a table,
+ * so converting a color costs a matrix multiplication and no pow() or cbrt(). Palettes convert their
+ * colors once and measure with {@link #get(double, double, double, double, double, double)}.
+ */
+public abstract class LabDistance implements IColorDistance {
+	/**
+	 * Number of intervals in the cube root table.
+	 */
+	private static final int CBRT_STEPS = 4096;
+
+	/**
+	 * Linear value of each sRGB channel value.
+	 */
+	private static final double[] _linear = new double[256];
+
+	/**
+	 * Lab transfer function sampled over [0, 1], with a spare entry for rounding above 1.
+	 */
+	private static final double[] _cbrt = new double[CBRT_STEPS + 2];
+
+	static {
+		for (int i = 0; i < _linear.length; i++) {
+			final double c = i / 255d;
+			_linear[i] = c <= 0.04045d ? c / 12.92d : Math.pow((c + 0.055d) / 1.055d, 2.4d);
+		}
+
+		for (int i = 0; i < _cbrt.length; i++) {
+			final double t = (double)i / CBRT_STEPS;
+			_cbrt[i] = t > 216d / 24389d ? Math.cbrt(t) : t * 24389d / 3132d + 4d / 29d;
+		}
+	}
+
+	/**
+	 * Convert an sRGB color to Lab.
+	 * @param lab		Receives L, a and b
+	 * @param offset	Index in lab to store L at
+	 */
+	public static void toLab(int r, int g, int b, double[] lab, int offset) {
+		final double fx = getFx(r, g, b), fy = getFy(r, g, b), fz = getFz(r, g, b);
+		lab[offset] = 116d * fy - 16d;
+		lab[offset + 1] = 500d * (fx - fy);
+		lab[offset + 2] = 200d * (fy - fz);
+	}
+
+	public double get(int r1,int g1,int b1, int r2,int g2,int b2) {
+		final double fx1 = getFx(r1, g1, b1), fy1 = getFy(r1, g1, b1), fz1 = getFz(r1, g1, b1),
+					 fx2 = getFx(r2, g2, b2), fy2 = getFy(r2, g2, b2), fz2 = getFz(r2, g2, b2);
+
+		return get(
+			116d * fy1 - 16d, 500d * (fx1 - fy1), 200d * (fy1 - fz1),
+			116d * fy2 - 16d, 500d * (fx2 - fy2), 200d * (fy2 - fz2));
+	}
+
+	/**
+	 * @return	The distance between two Lab colors.
+	 */
+	public abstract double get(double l1, double a1, double b1, double l2, double a2, double b2);
+
+	/**
+	 * Transfer function of X relative to the white point, rows of the sRGB matrix are divided by Xn and Zn.
+	 */
+	private static double getFx(int r, int g, int b) {
+		return f(0.4339499d * _linear[r] + 0.3762098d * _linear[g] + 0.1898403d * _linear[b]);
+	}
+
+	private static double getFy(int r, int g, int b) {
+		return f(0.2126729d * _linear[r] + 0.7151522d * _linear[g] + 0.0721750d * _linear[b]);
+	}
+
+	private static double getFz(int r, int g, int b) {
+		return f(0.0177566d * _linear[r] + 0.1094680d * _linear[g] + 0.8727755d * _linear[b]);
+	}
+
+	private static double f(double t) {
+		final double x = Math.min(t, 1d) * CBRT_STEPS;
+		final int i = (int)x;
+		return _cbrt[i] + (_cbrt[i + 1] - _cbrt[i]) * (x - i);
+	}
+}
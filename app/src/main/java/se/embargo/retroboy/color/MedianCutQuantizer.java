@@ -0,0 +1,120 @@
+package se.embargo.retroboy.color;
+
+import java.util.Arrays;
+
+/**
+ * Selects colors by median cut over the color histogram.
+ *
+ * Starting from a box holding every bucket, the box with the largest pixel count times channel range
+ * is split at the pixel median of its widest channel, until there are enough boxes or none can be split.
+ */
+public class MedianCutQuantizer extends AbstractHistogramQuantizer {
+	private static final int CHANNEL_MASK = (1 << HISTOGRAM_BITS) - 1;
+
+	/**
+	 * Buckets ordered so each box is a range of it.
+	 */
+	private final int[] _order = new int[BUCKETS];
+
+	/**
+	 * Sort keys of the box being split.
+	 */
+	private final int[] _keys = new int[BUCKETS];
+
+	@Override
+	protected int[] quantize() {
+		final int[] first = new int[_maxcolors], last = new int[_maxcolors], channels = new int[_maxcolors];
+		final long[] priorities = new long[_maxcolors];
+		System.arraycopy(_buckets, 0, _order, 0, _bucketcount);
+
+		int boxes = 1;
+		last[0] = _bucketcount;
+		priorities[0] = measure(0, _bucketcount, channels, 0);
+
+		while (boxes < _maxcolors) {
+			int box = -1;
+			for (int i = 0; i < boxes; i++) {
+				if (priorities[i] > 0 && (box < 0 || priorities[i] > priorities[box])) {
+					box = i;
+				}
+			}
+
+			if (box < 0) {
+				break;
+			}
+
+			// Order the box along its widest channel
+			final int shift = channels[box] * HISTOGRAM_BITS;
+			for (int i = first[box]; i < last[box]; i++) {
+				_keys[i] = (((_order[i] >> shift) & CHANNEL_MASK) << (HISTOGRAM_BITS * 3)) | _order[i];
+			}
+
+			Arrays.sort(_keys, first[box], last[box]);
+			for (int i = first[box]; i < last[box]; i++) {
+				_order[i] = _keys[i] & (BUCKETS - 1);
+			}
+
+			// Split where half of the pixels are on each side, leaving at least one bucket in each box
+			long total = 0;
+			for (int i = first[box]; i < last[box]; i++) {
+				total += _counts[_order[i]];
+			}
+
+			int split = first[box] + 1;
+			for (long count = _counts[_order[first[box]]]; split < last[box] - 1 && count * 2 < total; split++) {
+				count += _counts[_order[split]];
+			}
+
+			first[boxes] = split;
+			last[boxes] = last[box];
+			last[box] = split;
+			priorities[box] = measure(first[box], last[box], channels, box);
+			priorities[boxes] = measure(first[boxes], last[boxes], channels, boxes);
+			boxes++;
+		}
+
+		final int[] colors = new int[boxes];
+		for (int i = 0; i < boxes; i++) {
+			long r = 0, g = 0, b = 0, count = 0;
+			for (int j = first[i]; j < last[i]; j++) {
+				final int bucket = _order[j];
+				r += _sums[bucket * 3];
+				g += _sums[bucket * 3 + 1];
+				b += _sums[bucket * 3 + 2];
+				count += _counts[bucket];
+			}
+
+			colors[i] = getMean(r, g, b, count);
+		}
+
+		return colors;
+	}
+
+	/**
+	 * Finds the widest channel of a box.
+	 * @return	The pixel count times the channel range, or zero if the box can't be split.
+	 */
+	private long measure(int first, int last, int[] channels, int box) {
+		int range = 0;
+		long count = 0;
+		for (int channel = 0; channel < 3; channel++) {
+			int min = CHANNEL_MASK, max = 0;
+			for (int i = first; i < last; i++) {
+				final int value = (_order[i] >> (channel * HISTOGRAM_BITS)) & CHANNEL_MASK;
+				min = Math.min(min, value);
+				max = Math.max(max, value);
+			}
+
+			if (max - min > range) {
+				range = max - min;
+				channels[box] = channel;
+			}
+		}
+
+		for (int i = first; i < last; i++) {
+			count += _counts[_order[i]];
+		}
+
+		return count * range;
+	}
+}
@@ -0,0 +1,116 @@
+package se.embargo.retroboy.color;
+
+import java.util.Arrays;
+
+/**
+ * Selects colors by reducing an octree over the color histogram.
+ *
+ * The histogram buckets are the leaves of an octree with one bit per channel on each level. While
+ * there are too many leaves, the nodes one level above the deepest leaves are merged in order of
+ * increasing pixel count, and each color is the mean of the pixels under a remaining leaf.
+ */
+public class OctreeQuantizer extends AbstractHistogramQuantizer {
+	/**
+	 * Level of the leaf each bucket belongs to.
+	 */
+	private final int[] _levels = new int[BUCKETS];
+
+	/**
+	 * Pixel count and child leaves of the nodes on a level, and sort keys to merge them by.
+	 */
+	private final long[] _nodecounts = new long[BUCKETS], _keys = new long[BUCKETS];
+	private final int[] _children = new int[BUCKETS];
+	private final boolean[] _seen = new boolean[BUCKETS];
+
+	/**
+	 * Palette index of each leaf, keyed by level and node.
+	 */
+	private final int[] _leaves = new int[BUCKETS * (HISTOGRAM_BITS + 1)];
+
+	@Override
+	protected int[] quantize() {
+		int leafcount = _bucketcount;
+		for (int i = 0; i < _bucketcount; i++) {
+			_levels[_buckets[i]] = HISTOGRAM_BITS;
+		}
+
+		for (int level = HISTOGRAM_BITS - 1; level >= 0 && leafcount > _maxcolors; level--) {
+			final int nodes = 1 << (level * 3);
+			Arrays.fill(_nodecounts, 0, nodes, 0);
+			Arrays.fill(_children, 0, nodes, 0);
+			Arrays.fill(_seen, 0, nodes << 3, false);
+
+			// Every leaf is on the level below since all nodes on it were merged
+			for (int i = 0; i < _bucketcount; i++) {
+				final int bucket = _buckets[i];
+				final int child = getNode(bucket, level + 1), node = getNode(bucket, level);
+				_nodecounts[node] += _counts[bucket];
+
+				if (!_seen[child]) {
+					_seen[child] = true;
+					_children[node]++;
+				}
+			}
+
+			int count = 0;
+			for (int node = 0; node < nodes; node++) {
+				if (_children[node] > 0) {
+					_keys[count++] = (_nodecounts[node] << (HISTOGRAM_BITS * 3)) | node;
+				}
+			}
+
+			Arrays.sort(_keys, 0, count);
+			Arrays.fill(_seen, 0, nodes, false);
+
+			for (int i = 0; i < count && leafcount > _maxcolors; i++) {
+				final int node = (int)(_keys[i] & (BUCKETS - 1));
+				_seen[node] = true;
+				leafcount -= _children[node] - 1;
+			}
+
+			for (int i = 0; i < _bucketcount; i++) {
+				final int bucket = _buckets[i];
+				if (_seen[getNode(bucket, level)]) {
+					_levels[bucket] = level;
+				}
+			}
+		}
+
+		// Sum up the pixels of each leaf
+		final long[] sums = new long[leafcount * 4];
+		Arrays.fill(_leaves, -1);
+
+		int leaves = 0;
+		for (int i = 0; i < _bucketcount; i++) {
+			final int bucket = _buckets[i], level = _levels[bucket];
+			final int key = level * BUCKETS + getNode(bucket, level);
+			if (_leaves[key] < 0) {
+				_leaves[key] = leaves++;
+			}
+
+			final int leaf = _leaves[key];
+			sums[leaf * 4] += _sums[bucket * 3];
+			sums[leaf * 4 + 1] += _sums[bucket * 3 + 1];
+			sums[leaf * 4 + 2] += _sums[bucket * 3 + 2];
+			sums[leaf * 4 + 3] += _counts[bucket];
+		}
+
+		final int[] colors = new int[leaves];
+		for (int i = 0; i < leaves; i++) {
+			colors[i] = getMean(sums[i * 4], sums[i * 4 + 1], sums[i * 4 + 2], sums[i * 4 + 3]);
+		}
+
+		return colors;
+	}
+
+	/**
+	 * @return	The node on a level that holds a bucket, from the top bits of each channel.
+	 */
+	private static int getNode(int bucket, int level) {
+		final int shift = HISTOGRAM_BITS - level, mask = (1 << level) - 1;
+		final int r = (bucket >> shift) & mask,
+				  g = (bucket >> (HISTOGRAM_BITS + shift)) & mask,
+				  b = (bucket >> (HISTOGRAM_BITS * 2 + shift)) & mask;
+		return r | (g << level) | (b << (level * 2));
+	}
+}
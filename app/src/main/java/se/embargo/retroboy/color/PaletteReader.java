@@ -0,0 +1,209 @@
+package se.embargo.retroboy.color;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/**
+ * Reads palettes exported by other applications.
+ *
+ * Supports GIMP palettes (.gpl), Adobe color tables (.act) and Lospec hex lists (.hex). The format
+ * is taken from the file name when known, otherwise it's detected from the content. Colors are
+ * returned as opaque ABGR integers like the ones in {@link Palettes}.
+ */
+public class PaletteReader {
+	private static final String GPL_MAGIC = "GIMP Palette";
+
+	/**
+	 * Size of an Adobe color table, optionally followed by the color count and transparent index.
+	 */
+	private static final int ACT_SIZE = 256 * 3, ACT_TRAILER_SIZE = 4;
+
+	/**
+	 * Max size of a palette file.
+	 */
+	private static final int MAX_FILE_SIZE = 64 * 1024;
+
+	/**
+	 * @param	is			Stream to read from, it's left open
+	 * @param	filename	Name of the file used to pick the format, or null to detect it
+	 * @return				Colors of the palette, at least one and at most {@link ColorTable#MAX_COLORS}
+	 */
+	public static int[] read(InputStream is, String filename) throws IOException {
+		byte[] data = readFully(is);
+		String name = filename != null ? filename.toLowerCase(Locale.US) : "";
+		int[] colors;
+
+		if (name.endsWith(".gpl") || startsWith(data, GPL_MAGIC)) {
+			colors = readGpl(new String(data, "UTF-8"));
+		}
+		else if (name.endsWith(".act") || (!name.endsWith(".hex") && isAct(data))) {
+			colors = readAct(data);
+		}
+		else {
+			colors = readHex(new String(data, "UTF-8"));
+		}
+
+		if (colors.length == 0) {
+			throw new IOException("No colors in palette");
+		}
+
+		if (colors.length > ColorTable.MAX_COLORS) {
+			throw new IOException("Too many colors in palette: " + colors.length);
+		}
+
+		return colors;
+	}
+
+	/**
+	 * Reads lines of red, green and blue values followed by an optional name.
+	 */
+	private static int[] readGpl(String text) throws IOException {
+		String[] lines = text.split("\r?\n|\r");
+		if (!lines[0].trim().equals(GPL_MAGIC)) {
+			throw new IOException("Not a GIMP palette");
+		}
+
+		int[] colors = new int[lines.length];
+		int count = 0;
+		for (int i = 1; i < lines.length; i++) {
+			String line = lines[i].trim();
+			if (line.length() == 0 || line.startsWith("#") || !Character.isDigit(line.charAt(0))) {
+				// Skips comments and headers like "Name:" and "Columns:"
+				continue;
+			}
+
+			String[] values = line.split("\\s+");
+			if (values.length < 3) {
+				throw new IOException("Malformed color on line " + (i + 1));
+			}
+
+			try {
+				colors[count++] = getColor(Integer.parseInt(values[0]), Integer.parseInt(values[1]), Integer.parseInt(values[2]));
+			}
+			catch (NumberFormatException e) {
+				throw new IOException("Malformed color on line " + (i + 1));
+			}
+		}
+
+		return trim(colors, count);
+	}
+
+	/**
+	 * Reads 256 RGB triplets, of which the optional trailer tells how many are used.
+	 */
+	private static int[] readAct(byte[] data) throws IOException {
+		if (data.length != ACT_SIZE && data.length != ACT_SIZE + ACT_TRAILER_SIZE) {
+			throw new IOException("Not an Adobe color table");
+		}
+
+		int count = 256;
+		if (data.length == ACT_SIZE + ACT_TRAILER_SIZE) {
+			count = ((data[ACT_SIZE] & 0xff) << 8) | (data[ACT_SIZE + 1] & 0xff);
+			if (count == 0 || count > 256) {
+				count = 256;
+			}
+		}
+
+		int[] colors = new int[count];
+		for (int i = 0; i < count; i++) {
+			colors[i] = getColor(data[i * 3] & 0xff, data[i * 3 + 1] & 0xff, data[i * 3 + 2] & 0xff);
+		}
+
+		return colors;
+	}
+
+	/**
+	 * Reads lines of RRGGBB hex values, with or without a leading #.
+	 */
+	private static int[] readHex(String text) throws IOException {
+		String[] lines = text.split("\r?\n|\r");
+		int[] colors = new int[lines.length];
+		int count = 0;
+
+		for (int i = 0; i < lines.length; i++) {
+			String line = lines[i].trim();
+			if (line.startsWith("#")) {
+				line = line.substring(1);
+			}
+
+			if (line.length() == 0) {
+				continue;
+			}
+
+			if (line.length() != 6) {
+				throw new IOException("Malformed color on line " + (i + 1));
+			}
+
+			try {
+				final int rgb = Integer.parseInt(line, 16);
+				colors[count++] = getColor((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
+			}
+			catch (NumberFormatException e) {
+				throw new IOException("Malformed color on line " + (i + 1));
+			}
+		}
+
+		return trim(colors, count);
+	}
+
+	/**
+	 * Tells binary tables from hex lists of the same size, which only hold hex digits and line breaks.
+	 */
+	private static boolean isAct(byte[] data) {
+		if (data.length != ACT_SIZE && data.length != ACT_SIZE + ACT_TRAILER_SIZE) {
+			return false;
+		}
+
+		for (byte b : data) {
+			if (Character.digit(b, 16) < 0 && b != '#' && b != '\r' && b != '\n' && b != ' ') {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static boolean startsWith(byte[] data, String prefix) {
+		if (data.length < prefix.length()) {
+			return false;
+		}
+
+		for (int i = 0; i < prefix.length(); i++) {
+			if (data[i] != prefix.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static int getColor(int r, int g, int b) throws IOException {
+		if (r < 0 || r > 255 || g < 0 || g > 255 || b < 0 || b > 255) {
+			throw new IOException("Color out of range: " + r + "," + g + "," + b);
+		}
+
+		return 0xff000000 | (b << 16) | (g << 8) | r;
+	}
+
+	private static int[] trim(int[] colors, int count) {
+		int[] result = new int[count];
+		System.arraycopy(colors, 0, result, 0, count);
+		return result;
+	}
+
+	private static byte[] readFully(InputStream is) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+
+		for (int read; (read = is.read(buffer)) >= 0; ) {
+			os.write(buffer, 0, read);
+			if (os.size() > MAX_FILE_SIZE) {
+				throw new IOException("Palette file is too large");
+			}
+		}
+
+		return os.toByteArray();
+	}
+}
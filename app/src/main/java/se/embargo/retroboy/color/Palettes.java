@@ -1,5 +1,8 @@
 package se.embargo.retroboy.color;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 /**
  * Palettes are expressed as ABGR integers (Alpha, Blue, Green, Red)
  */
@@ -121,4 +124,34 @@ public class Palettes {
 		0xFF00FFFF,
 		0xFF80FFFF,
 		0xFFFFFFFF};
+	
+	/**
+	 * Number of bytes of the digest to keep in a hash.
+	 */
+	private static final int HASH_BYTES = 8;
+	
+	/**
+	 * Identifies a palette by its content, e.g. to name cache files after it.
+	 * @param	colors	Colors of the palette, in order
+	 * @return			A hex string that only equals the hash of palettes with the same colors
+	 */
+	public static String getHash(int[] colors) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			for (int color : colors) {
+				digest.update(new byte[] {(byte)(color >> 24), (byte)(color >> 16), (byte)(color >> 8), (byte)color});
+			}
+			
+			StringBuilder result = new StringBuilder();
+			byte[] hash = digest.digest();
+			for (int i = 0; i < HASH_BYTES; i++) {
+				result.append(Integer.toHexString((hash[i] & 0xff) | 0x100).substring(1));
+			}
+			
+			return result.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+	}
 }
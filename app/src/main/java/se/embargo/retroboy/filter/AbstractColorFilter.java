@@ -5,31 +5,63 @@ import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.concurrent.CountDownLatch;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import se.embargo.core.concurrent.IForBody;
 import se.embargo.core.concurrent.Parallel;
-import se.embargo.core.concurrent.ProgressTask;
 import se.embargo.core.graphic.color.IPalette;
-import se.embargo.retroboy.R;
 import se.embargo.retroboy.color.BucketPalette;
 import se.embargo.retroboy.color.DistancePalette;
 import se.embargo.retroboy.color.IColorDistance;
+import se.embargo.retroboy.color.LabDistance;
+import se.embargo.retroboy.color.Palettes;
 import android.content.Context;
+import android.os.Process;
 import android.util.Log;
 
 public abstract class AbstractColorFilter extends AbstractFilter {
 	private static final String TAG = "AbstractColorFilter";
 	
+	/**
+	 * How to compute the mixing plans that aren't cached.
+	 */
+	public enum InitMode {
+		/**
+		 * Fill buckets as colors hit them and complete the rest on a background thread.
+		 */
+		Background, 
+		
+		/**
+		 * Compute all buckets on the calling thread before the filter is used.
+		 */
+		Synchronous, 
+		
+		/**
+		 * Compute all buckets on all cores before the filter is used, for callers that wait on the 
+		 * result at normal priority.
+		 */
+		Parallel
+	}
+	
 	/**
 	 * Number of most significant bits to store per color channel.
 	 */
-	private static final int _bits = 4;
+	private final int _bits;
 	
 	/**
 	 * Number of bits to shift a color.
 	 */
-	protected static final int _step = 8 - _bits;
+	protected final int _step;
+	
+	/**
+	 * Completes the mixing plans in the background, one filter at a time. Queued sweeps only keep a 
+	 * weak reference so filters that are no longer used aren't swept.
+	 */
+	private static final ExecutorService _sweeper = Executors.newSingleThreadExecutor();
 	
 	/**
 	 * Color bucket entries.
@@ -37,22 +69,29 @@ public abstract class AbstractColorFilter extends AbstractFilter {
 	protected final int[] _buckets;
 	
 	/**
-	 * Latch to guard bucket initialization.
+	 * Set for each bucket once filled, its entries are written before the flag and read after it.
+	 */
+	private final AtomicIntegerArray _filled;
+	
+	/**
+	 * Set once all buckets have been filled.
+	 */
+	private volatile boolean _complete = false;
+	
+	/**
+	 * Number of buckets computed by the sweep.
 	 */
-	private final CountDownLatch _init = new CountDownLatch(1);
+	private final AtomicInteger _swept = new AtomicInteger();
 	
 	/**
 	 * Number of bits to shift green and blue colors. 
 	 */
-	protected final int _gsb = _bits, 
-					  _bsb = _bits * 2;
+	protected final int _gsb, _bsb;
 	
 	/**
 	 * Red, green and blue bit masks.
 	 */
-	private final int _rm = (1 << _bits) - 1, 
-					  _gm = _rm << _gsb, 
-					  _bm = _rm << _bsb;
+	private final int _rm, _gm, _bm;
 
 	/**
 	 * Name of filter.
@@ -60,7 +99,7 @@ public abstract class AbstractColorFilter extends AbstractFilter {
 	private final String _filtername;
 
 	/**
-	 * Handle on running Activity.
+	 * Application context used to access the cache files.
 	 */
 	private final Context _context;
 	
@@ -89,17 +128,61 @@ public abstract class AbstractColorFilter extends AbstractFilter {
 	 */
 	protected final IColorDistance _distance;
 	
-    public AbstractColorFilter(String filtername, Context context, IColorDistance distance, int[] colors, int bucketSize, int version) {
+	/**
+	 * Distance in the CIELAB space, or null if not measured in Lab. Mixed colors are converted once 
+	 * and measured in Lab, rather than converting both colors on every comparison.
+	 */
+	protected final LabDistance _labdistance;
+	
+	/**
+	 * How to compute the mixing plans that aren't cached.
+	 */
+	private final InitMode _initmode;
+	
+    /**
+     * @param filtername	Name of filter used for the cache file.
+     * @param context		Context running the filter.
+     * @param distance		Measure for color distance.
+     * @param colors		Palette of available colors.
+     * @param bucketSize	Number of ints per bucket.
+     * @param version		Version of cache file.
+     * @param bits			Number of bits per color channel, between {@link BucketPalette#MIN_BITS} and {@link BucketPalette#MAX_BITS}.
+     * @param initmode		How to compute the mixing plans that aren't cached.
+     */
+    public AbstractColorFilter(String filtername, Context context, IColorDistance distance, int[] colors, int bucketSize, int version, int bits, InitMode initmode) {
+		if (bits < BucketPalette.MIN_BITS || bits > BucketPalette.MAX_BITS) {
+			throw new IllegalArgumentException("Unsupported number of bits per channel: " + bits);
+		}
+		
 		_filtername = filtername;
-    	_context = context;
+    	_context = context.getApplicationContext();
 		_distance = distance;
-		_palette = new BucketPalette(new DistancePalette(distance, colors));
+		_labdistance = distance instanceof LabDistance ? (LabDistance)distance : null;
+		_palette = new BucketPalette(DistancePalette.create(distance, colors), bits);
 		_colors = colors;
 		_bucketSize = bucketSize;
 		_version = version;
-		_buckets = new int[(1 << (_bits * 3)) * bucketSize];
+		_initmode = initmode;
+		_bits = bits;
+		_step = 8 - bits;
+		_gsb = bits;
+		_bsb = bits * 2;
+		_rm = (1 << bits) - 1;
+		_gm = _rm << _gsb;
+		_bm = _rm << _bsb;
+		_buckets = new int[(1 << (bits * 3)) * bucketSize];
+		_filled = new AtomicIntegerArray(1 << (bits * 3));
 	}
 
+    /**
+     * @return	Number of bits per channel of the mixing plans suitable for the memory available to the device.
+     */
+    public static int getDefaultBits() {
+    	// Mixing plans take several ints per bucket and much longer to compute than a palette lookup, 
+    	// the PrecisionBenchmark of the desktop tools measures about 8x the memory and build time per bit
+    	return Runtime.getRuntime().maxMemory() >= 128L * 1024 * 1024 ? 5 : 4;
+    }
+    
     /**
      * Apply this filter to a frame.
      * @param buffer	Frame to process
@@ -108,28 +191,42 @@ public abstract class AbstractColorFilter extends AbstractFilter {
     
     /**
      * Initialize a bucket.
-     * @param bucket	Index of bucket.
+     * @param buckets	Array to store the bucket in.
+     * @param bucket	Index of the first entry of the bucket.
      * @param r			Red value to select a color for.
      * @param g			Green value to select a color for.
      * @param b			Blue value to select a color for.
      */
-    protected abstract void initBucket(final int bucket, final int r, final int g, final int b);
+    protected abstract void initBucket(final int[] buckets, final int bucket, final int r, final int g, final int b);
     
     /**
      * Initialize the buckets.
      * @remark	This must be done after the child class is done initializing since virtual methods are called.
      */
     protected void init() {
-    	long ts = System.nanoTime();
-		
-		// Check for cached mixing plans
-		int hash = 0;
-		for (int color : _colors) {
-			hash ^= color;
+		// Read cached mixing plans, named after the content of the palette
+		String filename = _filtername + _distance + "-" + _bits + "bit-" + Palettes.getHash(_colors) + ".bin";
+		if (load(filename)) {
+			return;
 		}
 		
-		// Read cached mixing plan
-		String filename = _filtername + _distance + "-" + Integer.toHexString(hash) + ".bin";
+		// Buckets are filled as colors hit them, complete the rest in the background unless the caller 
+		// waits for them, e.g. when already running in the background like the prewarmer does
+		if (_initmode != InitMode.Background) {
+			sweep(filename);
+		}
+		else {
+			_sweeper.execute(new SweepTask(this, filename));
+		}
+    }
+    
+    /**
+     * Reads cached mixing plans.
+     * @return	True if all buckets were read from the cache file.
+     */
+    private boolean load(String filename) {
+    	long ts = System.nanoTime();
+    	
 		try {
 			DataInputStream is = new DataInputStream(new BufferedInputStream(_context.openFileInput(filename)));
 			int cachedversion = is.readInt();
@@ -141,21 +238,15 @@ public abstract class AbstractColorFilter extends AbstractFilter {
 
 				is.close();
 				Log.i(TAG, "Cached init: " + (((double)System.nanoTime() - (double)ts) / 1000000000d) + "s");
-				_init.countDown();
-				return;
+				_complete = true;
+				return true;
 			}
 
 			is.close();
 		}
 		catch (IOException e) {}
 		
-		// Show a progress dialog while building the mixing plans
-		if (Parallel.isGuiThread()) {
-			new InitializeTask(filename).execute();
-		}
-		else {
-			init(filename);
-		}
+		return false;
     }
     
     @Override
@@ -168,32 +259,61 @@ public abstract class AbstractColorFilter extends AbstractFilter {
     	return _palette;
     }
     
+    @Override
+    public long getMemoryUsage() {
+    	return super.getMemoryUsage() + _buckets.length * 4L + _filled.length() * 4L;
+    }
+    
 	@Override
 	public final void accept(ImageBuffer buffer) {
-    	try {
-			_init.await();
-		}
-		catch (InterruptedException e) {}
-    	
     	process(buffer);
 	}
     
-    private void init(String filename) {
+    /**
+     * @return	True once all buckets are filled, otherwise buckets must be checked with {@link #fillBucket(int)}.
+     */
+    protected final boolean isComplete() {
+    	return _complete;
+    }
+    
+    /**
+     * @return	Percentage of the mixing plans computed, 100 once all are available.
+     */
+    public int getProgress() {
+    	return _complete ? 100 : (int)Math.min(_swept.get() * 100L / (_buckets.length / _bucketSize), 99);
+    }
+    
+    /**
+     * Fills a bucket unless it has already been filled.
+     * 
+     * Buckets may be filled concurrently by several threads, which is safe since they all write the 
+     * same values. The flag of the bucket is set after its entries are written and checked before 
+     * they're read, which makes the entries visible to every thread that sees the flag.
+     * @param bucket	Index of the first entry of the bucket.
+     */
+    protected final void fillBucket(final int bucket) {
+    	final int i = bucket / _bucketSize;
+    	if (_filled.get(i) == 0) {
+    		// Compute into a scratch plan so concurrent fills only ever store final entries
+    		final int[] plan = new int[_bucketSize];
+    		initBucket(plan, 0, (i & _rm) << _step, ((i & _gm) >> _gsb) << _step, ((i & _bm) >> _bsb) << _step);
+    		System.arraycopy(plan, 0, _buckets, bucket, _bucketSize);
+    		_filled.lazySet(i, 1);
+    	}
+    }
+    
+    private void sweep(String filename) {
     	long ts = System.nanoTime();
 		
-		// Calculate mixing plans
-		Parallel.forRange(new IForBody<int[]>() {
-			@Override
-			public void run(int[] item, int it, int last) {
-				for (int i = it; i < last; i++) {
-					final int r = (i & _rm) << _step,
-						  	  g = ((i & _gm) >> _gsb) << _step,
-						  	  b = ((i & _bm) >> _bsb) << _step;
-				
-					initBucket(i * _bucketSize, r, g, b);
-				}
-			}
-		}, _buckets, 0, _buckets.length / _bucketSize);
+		// Calculate the mixing plans that frames haven't filled already
+		if (_initmode == InitMode.Parallel) {
+			Parallel.forRange(new SweepBody(), this, 0, _filled.length());
+		}
+		else {
+			new SweepBody().run(this, 0, _filled.length());
+		}
+		
+		_complete = true;
 
 		// Write mixing plans to cache
 		try {
@@ -210,21 +330,43 @@ public abstract class AbstractColorFilter extends AbstractFilter {
 		catch (IOException e) {}
 
 		Log.i(TAG, "Full init: " + (((double)System.nanoTime() - (double)ts) / 1000000000d) + "s");
-		_init.countDown();
     }
     
-    private class InitializeTask extends ProgressTask<Void, Void, Void> {
+    private static class SweepBody implements IForBody<AbstractColorFilter> {
+		@Override
+		public void run(AbstractColorFilter filter, int it, int last) {
+			for (int i = it; i < last; i++) {
+				filter.fillBucket(i * filter._bucketSize);
+				filter._swept.incrementAndGet();
+			}
+		}
+    }
+    
+    private static class SweepTask implements Runnable {
+		private final WeakReference<AbstractColorFilter> _filter;
 		private final String _filename;
     	
-    	public InitializeTask(String filename) {
-			super(_context, R.string.title_init_filter, R.string.msg_init_filter);
+    	public SweepTask(AbstractColorFilter filter, String filename) {
+    		_filter = new WeakReference<AbstractColorFilter>(filter);
 			_filename = filename;
 		}
 
 		@Override
-		protected Void doInBackground(Void... params) {
-			init(_filename);
-			return null;
+		public void run() {
+			// Skip filters that have been superseded or evicted and dropped since the sweep was queued
+			AbstractColorFilter filter = _filter.get();
+			if (filter == null) {
+				Log.d(TAG, "Skipping sweep of discarded filter " + _filename);
+				return;
+			}
+			
+			// A sweep of an earlier filter with the same palette may have written the cache by now
+			if (filter.load(_filename)) {
+				return;
+			}
+			
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			filter.sweep(_filename);
 		}
     }
 }
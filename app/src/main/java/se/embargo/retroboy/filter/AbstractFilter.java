@@ -1,6 +1,7 @@
 package se.embargo.retroboy.filter;
 
 import se.embargo.core.graphic.color.IPalette;
+import se.embargo.retroboy.color.BucketPalette;
 
 public abstract class AbstractFilter implements IImageFilter {
 	@Override
@@ -22,4 +23,16 @@ public abstract class AbstractFilter implements IImageFilter {
 	public IPalette getPalette() {
 		return null;
 	}
+	
+	/**
+	 * @return	Estimated number of bytes held by lookup tables and other state kept between frames.
+	 */
+	public long getMemoryUsage() {
+		IPalette palette = getPalette();
+		if (palette instanceof BucketPalette) {
+			return ((BucketPalette)palette).getMemoryUsage();
+		}
+		
+		return 0;
+	}
 }
@@ -96,7 +96,7 @@ public class BayerFilter extends AbstractFilter implements IPaletteSink {
 			final int[] image = buffer.image.array();
 			final int width = buffer.imagewidth;
 			
-			for (int y = it; y < last; y++) {
+			for (int y = it; y < last && !buffer.cancelled; y++) {
 				final int yi = y * width,
 						  yt = (y % _patternsize) * _patternsize;
 				
@@ -129,7 +129,7 @@ public class BayerFilter extends AbstractFilter implements IPaletteSink {
 	    	final int[] image = buffer.image.array();
 			final int width = buffer.imagewidth;
 			
-			for (int y = it; y < last; y++) {
+			for (int y = it; y < last && !buffer.cancelled; y++) {
 				final int yi = y * width,
 						  yt = (y % _patternsize) * _patternsize;
 				
@@ -168,7 +168,7 @@ public class BayerFilter extends AbstractFilter implements IPaletteSink {
 			// Offset used to compensate for too dark or bright images
 			final int offset = Math.max(_minoffset, Math.min(128 - buffer.threshold, _maxoffset));
 			
-			for (int y = it; y < last; y++) {
+			for (int y = it; y < last && !buffer.cancelled; y++) {
 				final int yi = y * width,
 						  yt = (y % _patternsize) * _patternsize;
 				
@@ -62,6 +62,10 @@ public class CompositeFilter extends AbstractFilter {
 	@Override
 	public void accept(ImageBuffer buffer) {
 		for (IImageFilter filter : _filters) {
+			if (buffer.cancelled) {
+				break;
+			}
+			
 			filter.accept(buffer);
 		}
 	}
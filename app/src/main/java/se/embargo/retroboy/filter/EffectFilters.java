@@ -0,0 +1,118 @@
+package se.embargo.retroboy.filter;
+
+import se.embargo.core.graphic.color.IPalette;
+import se.embargo.core.graphic.color.NeuQuant;
+import se.embargo.retroboy.color.BitPalette;
+import se.embargo.retroboy.color.DistancePalette;
+import se.embargo.retroboy.color.Distances;
+import se.embargo.retroboy.color.Palettes;
+import se.embargo.retroboy.graphic.DitherMatrixes;
+import android.content.Context;
+
+/**
+ * Creates the effect filters offered by the app from their settings.
+ *
+ * Kept apart from the preferences so the same filters can be built by tools that run outside of the app.
+ */
+public class EffectFilters {
+	public static final String GAMEBOY_CAMERA = "nintendo_gameboy_camera";
+	public static final String AMSTRAD_CPC464 = "amstrad_cpc464";
+	public static final String COMMODORE_64 = "commodore_64";
+	public static final String PXL_2000 = "pxl-2000";
+	public static final String AMIGA_500 = "amiga_500";
+	public static final String ATKINSON = "atkinson";
+	public static final String HALFTONE = "halftone";
+	public static final String CUSTOM = "custom";
+	public static final String NONE = "none";
+
+	/**
+	 * Creates an effect filter.
+	 * @param	context			Context used to cache lookup tables
+	 * @param	filtertype		One of the filter types above
+	 * @param	matrixsize		Size of the dither matrix, 2, 4 or 8
+	 * @param	rasterlevel		Raster level of the palette filters
+	 * @param	gameboypalette	Name of the Game Boy palette
+	 * @param	custompalette	Colors of the custom filter, or null to use the Game Boy filter instead
+	 * @param	preview			True if the filter runs on the camera preview, where it may adapt over several frames
+	 * @param	initmode		How filters with mixing plans compute the plans that aren't cached
+	 */
+	public static IImageFilter create(Context context, String filtertype, int matrixsize, int rasterlevel, String gameboypalette, int[] custompalette, boolean preview, AbstractColorFilter.InitMode initmode) {
+		int[] matrix = getMatrix(matrixsize);
+
+		if (AMSTRAD_CPC464.equals(filtertype)) {
+			return new RasterFilter(context, Distances.LUV, Palettes.AMSTRAD_CPC464, matrix, rasterlevel, initmode);
+		}
+
+		if (COMMODORE_64.equals(filtertype)) {
+			return new RasterFilter(context, Distances.LUV, Palettes.COMMODORE_64_GAMMA_ADJUSTED, matrix, rasterlevel, initmode);
+			//return new BayerFilter(new BucketPalette(new YuvPalette(Palettes.COMMODORE_64_GAMMA_ADJUSTED)), true);
+			//return new YliluomaTriFilter(context, Distances.LUV, Palettes.COMMODORE_64_GAMMA_ADJUSTED);
+		}
+
+		if (AMIGA_500.equals(filtertype)) {
+			//IPalette palette = new BucketPalette(new DistancePalette(Distances.YUV, Palettes.AMSTRAD_CPC464));
+			IPalette palette = new BitPalette(4);
+
+			CompositeFilter filter = new CompositeFilter();
+			BayerFilter effect = new BayerFilter(palette, matrix, BayerFilter.PaletteType.Color);
+			//PaletteFilter effect = new PaletteFilter(palette);
+			filter.add(new QuantizeFilter(palette, effect, new NeuQuant(), preview));
+			filter.add(effect);
+			return filter;
+		}
+
+		if (CUSTOM.equals(filtertype) && custompalette != null) {
+			return new RasterFilter(context, Distances.LUV, custompalette, matrix, rasterlevel, initmode);
+		}
+
+		if (ATKINSON.equals(filtertype)) {
+			return new AtkinsonFilter();
+		}
+
+		if (PXL_2000.equals(filtertype)) {
+			return new Pxl2000Filter();
+		}
+
+		if (HALFTONE.equals(filtertype)) {
+			return new HalftoneFilter();
+		}
+
+		if (NONE.equals(filtertype)) {
+			return new BayerFilter(new BitPalette(4), matrix, BayerFilter.PaletteType.Color);
+			//return new PaletteFilter(new BitPalette(4));
+		}
+
+		// Default to a Nintendo Game Boy filter
+		int[] palette;
+		if ("gameboy_screen".equals(gameboypalette)) {
+			palette = Palettes.GAMEBOY_SCREEN_DESAT;
+		}
+		else if ("binary".equals(gameboypalette)) {
+			palette = Palettes.BINARY;
+		}
+		else {
+			palette = Palettes.GAMEBOY_CAMERA;
+		}
+
+		return new BayerFilter(new DistancePalette(Distances.YUV, palette), matrix, BayerFilter.PaletteType.Threshold);
+	}
+
+	/**
+	 * @return	True if filters of the given type carry state between frames and can't be shared.
+	 */
+	public static boolean isStateful(String filtertype) {
+		return PXL_2000.equals(filtertype) || AMIGA_500.equals(filtertype);
+	}
+
+	private static int[] getMatrix(int matrixsize) {
+		switch (matrixsize) {
+			case 8:
+				return DitherMatrixes.MATRIX_8x8;
+
+			case 2:
+				return DitherMatrixes.MATRIX_2x2;
+		}
+
+		return DitherMatrixes.MATRIX_4x4;
+	}
+}
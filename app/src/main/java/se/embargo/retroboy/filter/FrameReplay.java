@@ -0,0 +1,103 @@
+package se.embargo.retroboy.filter;
+
+import java.io.IOException;
+
+import se.embargo.retroboy.graphic.FrameLogReader;
+
+/**
+ * Feeds recorded camera preview frames through a filter, e.g. to profile the workload of a specific device.
+ *
+ * Timings are collected rather than logged so the replay runs the same on the device and on the JVM.
+ */
+public class FrameReplay {
+	private final FrameLogReader _reader;
+
+	/**
+	 * Time in nanoseconds spent filtering frames.
+	 */
+	private long _filtertime = 0, _maxframetime = 0;
+	private int _framecount = 0;
+
+	/**
+	 * @param	reader	Frame log to replay
+	 */
+	public FrameReplay(FrameLogReader reader) {
+		_reader = reader;
+	}
+
+	/**
+	 * Filters all remaining frames of the log.
+	 * @param	filter		Filter to apply, typically a {@link CompositeFilter} starting with a {@link YuvFilter}
+	 * @param	realtime	True to deliver frames at their recorded intervals, false to run at maximum speed
+	 * @return				Number of frames filtered
+	 */
+	public int replay(IImageFilter filter, boolean realtime) throws IOException, InterruptedException {
+		final IImageFilter.ImageBuffer buffer = new IImageFilter.ImageBuffer(_reader.getWidth(), _reader.getHeight());
+		final byte[] frame = new byte[_reader.getFrameSize()];
+		long firstts = 0, start = System.nanoTime();
+		int count = 0;
+
+		for (long seqno = 0; _reader.read(frame); seqno++) {
+			final long timestamp = _reader.getTimestamp();
+			if (count == 0) {
+				firstts = timestamp;
+			}
+
+			// Wait until the frame would have arrived
+			if (realtime) {
+				long delay = (timestamp - firstts) - (System.nanoTime() - start);
+				if (delay > 0) {
+					Thread.sleep(delay / 1000000, (int)(delay % 1000000));
+				}
+			}
+
+			buffer.reset(frame);
+			buffer.timestamp = timestamp;
+			buffer.seqno = seqno;
+
+			long ts = System.nanoTime();
+			filter.accept(buffer);
+			long elapsed = System.nanoTime() - ts;
+
+			_filtertime += elapsed;
+			_maxframetime = Math.max(_maxframetime, elapsed);
+			_framecount++;
+			count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * @return	A summary of the frames filtered so far and the time spent on them.
+	 */
+	public String getSummary() {
+		if (_framecount == 0) {
+			return "Replayed no frames";
+		}
+
+		return "Replayed " + _framecount + " frames of " + _reader.getWidth() + "x" + _reader.getHeight() +
+			", average " + (_filtertime / _framecount / 1000) + " us/frame, max " + (_maxframetime / 1000) + " us/frame";
+	}
+
+	/**
+	 * @return	Total time in nanoseconds spent filtering frames.
+	 */
+	public long getFilterTime() {
+		return _filtertime;
+	}
+
+	/**
+	 * @return	Longest time in nanoseconds spent filtering a single frame.
+	 */
+	public long getMaxFrameTime() {
+		return _maxframetime;
+	}
+
+	/**
+	 * @return	Number of frames filtered so far.
+	 */
+	public int getFrameCount() {
+		return _framecount;
+	}
+}
@@ -68,7 +68,7 @@ public class HalftoneFilter extends AbstractFilter {
 			final int cellwidth = width / _patternsize + _patternsize;
 
 			// Summarize the luminance for each dithering cell
-			for (int y = it; y < last; y++) {
+			for (int y = it; y < last && !item.buffer.cancelled; y++) {
 				final int yi = y * width, 
 						  yo = (y / _patternsize) * cellwidth;
 				
@@ -80,7 +80,7 @@ public class HalftoneFilter extends AbstractFilter {
 			}
 			
 			// Apply the threshold for each dithering cell
-			for (int y = it; y < last; y++) {
+			for (int y = it; y < last && !item.buffer.cancelled; y++) {
 				final int yo = y * width, 
 						  yi = (y / _patternsize) * cellwidth, 
 						  yt = (y % _patternsize) * _patternsize;
@@ -82,6 +82,11 @@ public interface IImageFilter {
 		 */
 		public int threshold = 128;
 		
+		/**
+		 * Set to abort processing, filters stop between rows when it's set.
+		 */
+		public volatile boolean cancelled = false;
+		
 		public ImageBuffer(byte[] frame, int framewidth, int frameheight) {
 			this.frame = frame;
 			this.framewidth = framewidth;
@@ -101,6 +106,21 @@ public interface IImageFilter {
 			bitmap.copyPixelsToBuffer(image);
 		}
 		
+		/**
+		 * @return	A copy of the output image, without the raw frame data.
+		 */
+		public ImageBuffer copy() {
+			ImageBuffer result = new ImageBuffer(framewidth, frameheight);
+			result.image = IntBuffer.wrap(new int[imagewidth * imageheight + imagewidth * 4]);
+			System.arraycopy(image.array(), 0, result.image.array(), 0, imagewidth * imageheight);
+			result.imagewidth = imagewidth;
+			result.imageheight = imageheight;
+			result.timestamp = timestamp;
+			result.seqno = seqno;
+			result.threshold = threshold;
+			return result;
+		}
+		
 		public void reset(byte[] data) {
 			frame = data;
 			timestamp = System.nanoTime();
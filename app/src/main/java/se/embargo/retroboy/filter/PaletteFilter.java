@@ -52,7 +52,7 @@ public class PaletteFilter extends AbstractFilter implements IPaletteSink {
 			final int[] image = buffer.image.array();
 			final int width = buffer.imagewidth;
 
-			for (int y = it; y < last; y++) {
+			for (int y = it; y < last && !buffer.cancelled; y++) {
 				final int yi = y * width;
 				
 				for (int x = 0; x < width; x++) {
@@ -105,7 +105,7 @@ public class Pxl2000Filter extends AbstractFilter {
 			final float posterize = (255f / _posterizeLevels);
 			final float compression = _dynamicRangeCompression;
 			
-			for (int y = it; y < last; y++) {
+			for (int y = it; y < last && !buffer.cancelled; y++) {
 				final int yi = y * width;
 				
 				for (int x = borderwidth; x < xlast; x++) {
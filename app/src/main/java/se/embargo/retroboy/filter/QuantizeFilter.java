@@ -1,6 +1,8 @@
 package se.embargo.retroboy.filter;
 
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import se.embargo.core.graphic.color.IPalette;
 import se.embargo.core.graphic.color.IColorQuantizer;
@@ -9,22 +11,86 @@ import se.embargo.retroboy.color.BucketPalette;
 import se.embargo.retroboy.color.DistancePalette;
 import se.embargo.retroboy.color.Distances;
 import se.embargo.retroboy.color.IPaletteSink;
+import android.os.Process;
 
 /**
  * Samples frames and quantizes a continuously updated palette. 
+ * 
+ * Offline renders quantize every frame before it's dithered. For the camera preview, quantization 
+ * runs in the background on a subsampled copy of every few frames so the preview never waits for 
+ * it, except for the first frame which has no palette yet. The sink only receives a new palette 
+ * when the colors have moved noticeably, and the lookup table of the palette before the current 
+ * one is reused rather than reallocated.
  */
 public class QuantizeFilter extends AbstractFilter {
+	/**
+	 * Number of frames between samples.
+	 */
+	private static final int SAMPLE_INTERVAL = 8;
+	
+	/**
+	 * Distance between sampled pixels, horizontally and vertically.
+	 */
+	private static final int SAMPLE_STEP = 2;
+	
+	/**
+	 * YUV rank a color must move to publish a palette, about 8 levels in every channel.
+	 */
+	private static final long PUBLISH_THRESHOLD = 9 * 8 * 8;
+	
+	private static final ExecutorService _executor = Executors.newSingleThreadExecutor();
+	
 	private final IPalette _palette;
 	private final IPaletteSink _sink;
-	private final IColorQuantizer _quantizer = new NeuQuant();
+	private final IColorQuantizer _quantizer;
+	private final SampleTask _task = new SampleTask();
+	
+	/**
+	 * Set to quantize in the background rather than on the filtering thread.
+	 */
+	private final boolean _background;
+	
+	/**
+	 * Subsampled pixels of the last sampled frame.
+	 */
+	private int[] _samples = new int[0];
+	private int _samplecount = 0;
+	
+	/**
+	 * Set while a sample is being quantized.
+	 */
+	private volatile boolean _sampling = false;
+	
+	/**
+	 * Number of frames since the last sample.
+	 */
+	private int _frames = SAMPLE_INTERVAL;
+	
+	/**
+	 * Last published palette and the one before it.
+	 */
+	private DistancePalette _published;
+	private BucketPalette _current, _previous;
 	
 	/**
 	 * @param	palette	The raw palette from which colors shall be selected.
 	 * @param	sink	Recipient of the selected palette.
 	 */
 	public QuantizeFilter(IPalette palette, IPaletteSink sink) {
+		this(palette, sink, new NeuQuant(), false);
+	}
+	
+	/**
+	 * @param	palette		The raw palette from which colors shall be selected.
+	 * @param	sink		Recipient of the selected palette.
+	 * @param	quantizer	Quantizer to select colors with.
+	 * @param	background	True to sample every few frames in the background, e.g. for the camera preview.
+	 */
+	public QuantizeFilter(IPalette palette, IPaletteSink sink, IColorQuantizer quantizer, boolean background) {
 		_palette = palette;
 		_sink = sink;
+		_quantizer = quantizer;
+		_background = background;
 	}
 	
 	@Override
@@ -34,20 +100,97 @@ public class QuantizeFilter extends AbstractFilter {
 	
 	@Override
 	public synchronized void accept(ImageBuffer buffer) {
-		_quantizer.sample(_palette, buffer.image.array(), buffer.imagewidth * buffer.imageheight, 10);
+		if (buffer.cancelled) {
+			return;
+		}
+		
+		// Quantize before dithering when there's no palette yet, no sample is in flight until then
+		if (!_background || _published == null) {
+			_quantizer.sample(_palette, buffer.image.array(), buffer.imagewidth * buffer.imageheight, 10);
+			publish();
+			_frames = 0;
+			return;
+		}
+		
+		if (++_frames < SAMPLE_INTERVAL || _sampling) {
+			return;
+		}
+		
+		// Copy every few pixels since the buffer is reused for the next frame
+		final int[] image = buffer.image.array();
+		final int width = buffer.imagewidth, height = buffer.imageheight;
+		final int count = ((width + SAMPLE_STEP - 1) / SAMPLE_STEP) * ((height + SAMPLE_STEP - 1) / SAMPLE_STEP);
+		if (_samples.length < count) {
+			_samples = new int[count];
+		}
 		
+		int i = 0;
+		for (int y = 0; y < height && !buffer.cancelled; y += SAMPLE_STEP) {
+			for (int x = 0, yi = y * width; x < width; x += SAMPLE_STEP) {
+				_samples[i++] = image[yi + x];
+			}
+		}
+		
+		if (buffer.cancelled) {
+			return;
+		}
+		
+		_samplecount = i;
+		_frames = 0;
+		_sampling = true;
+		_executor.execute(_task);
+	}
+	
+	/**
+	 * Hands the quantized palette to the sink if it differs enough from the last one.
+	 */
+	private void publish() {
 		int[] colors = _quantizer.getPalette();
 		Arrays.sort(colors);
 		
-		_sink.accept(new BucketPalette(new DistancePalette(Distances.YUV, colors)));
-		/*
-		int[] image = buffer.image.array();
-		for (int y = buffer.imageheight - 25; y < buffer.imageheight; y++) {
-			for (int x = 0; x < buffer.imagewidth; x++) {
-				int i = y * buffer.imagewidth + x;
-				image[i] = colors[x / (buffer.imagewidth / colors.length)];
+		if (isChanged(colors)) {
+			// Palettes are published at most every few frames, or by the thread that dithers with 
+			// them, so the one before the current is unused
+			_published = DistancePalette.create(Distances.YUV, colors);
+			BucketPalette palette = new BucketPalette(_published, _previous);
+			_previous = _current;
+			_current = palette;
+			_sink.accept(palette);
+		}
+	}
+	
+	/**
+	 * @return	True if the colors have moved enough to publish them.
+	 */
+	private boolean isChanged(int[] colors) {
+		if (_published == null || _published.getColorCount() != colors.length) {
+			return true;
+		}
+		
+		final int[] published = _published.getColors();
+		for (int i = 0; i < colors.length; i++) {
+			final int r1 = colors[i] & 0xff, g1 = (colors[i] >> 8) & 0xff, b1 = (colors[i] >> 16) & 0xff;
+			final int color = published[_published.getNearestIndex(r1, g1, b1)];
+			if (Distances.YUV.rank(r1, g1, b1, color & 0xff, (color >> 8) & 0xff, (color >> 16) & 0xff) > PUBLISH_THRESHOLD) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	private class SampleTask implements Runnable {
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			
+			try {
+				_quantizer.sample(_palette, _samples, _samplecount, 10);
+				publish();
+			}
+			finally {
+				_sampling = false;
 			}
 		}
-		*/
 	}
 }
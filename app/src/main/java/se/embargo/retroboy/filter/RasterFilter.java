@@ -3,6 +3,7 @@ package se.embargo.retroboy.filter;
 import se.embargo.core.concurrent.IForBody;
 import se.embargo.core.concurrent.Parallel;
 import se.embargo.retroboy.color.IColorDistance;
+import se.embargo.retroboy.color.LabDistance;
 import android.content.Context;
 
 /**
@@ -39,6 +40,21 @@ public class RasterFilter extends AbstractColorFilter {
 	 */
 	private final double _penaltyDivisor;
 	
+	/**
+	 * Mixed color of each pair of palette colors, indexed by i * colors + j.
+	 */
+	private final int[] _pairmix;
+	
+	/**
+	 * Mixed color of each pair converted to Lab when measured in Lab, indexed by (i * colors + j) * 3.
+	 */
+	private final double[] _pairlab;
+	
+	/**
+	 * Penalty for mixing each pair of palette colors, a lower bound for the total penalty.
+	 */
+	private final double[] _pairpenalty;
+	
 	/**
 	 * Parallel functor used to process frames.
 	 */
@@ -50,14 +66,60 @@ public class RasterFilter extends AbstractColorFilter {
 	 * @param colors		Palette of available colors
 	 * @param matrix		Dithering matrix to use
 	 * @param rasterlevel	Level of rastering to apply
+	 * @param initmode		How to compute the mixing plans that aren't cached
+	 */
+	public RasterFilter(Context context, IColorDistance distance, int[] colors, int[] matrix, int rasterlevel, InitMode initmode) {
+		this(context, distance, colors, matrix, rasterlevel, getDefaultBits(), initmode);
+	}
+	
+	/**
+	 * @param context		Context running the filter
+	 * @param distance		Measure for color distance
+	 * @param colors		Palette of available colors
+	 * @param matrix		Dithering matrix to use
+	 * @param rasterlevel	Level of rastering to apply
+	 * @param bits			Number of bits per color channel of the mixing plans
+	 * @param initmode		How to compute the mixing plans that aren't cached
 	 */
-	public RasterFilter(Context context, IColorDistance distance, int[] colors, int[] matrix, int rasterlevel) {
-		super("raster-" + rasterlevel, context, distance, colors, COLOR_BUCKET_SIZE, CACHE_VERSION_NUMBER);
+	public RasterFilter(Context context, IColorDistance distance, int[] colors, int[] matrix, int rasterlevel, int bits, InitMode initmode) {
+		super("raster-" + rasterlevel, context, distance, colors, COLOR_BUCKET_SIZE, CACHE_VERSION_NUMBER, bits, initmode);
 		_matrix = matrix;
 		_patternsize = (int)Math.sqrt(_matrix.length);
 		_mixingratio = _matrix.length / 2;
 		_penaltyDivisor = (double)rasterlevel / 10d;
 		
+		// Mixing a pair doesn't depend on the bucket color
+		final int count = _colors.length;
+		_pairmix = new int[count * count];
+		_pairpenalty = new double[count * count];
+		_pairlab = _labdistance != null ? new double[count * count * 3] : null;
+		
+        for (int i = 0; i < count; ++i) {
+	        for (int j = i; j < count; ++j) {
+	            final int color1 = _colors[i], color2 = _colors[j];
+	            final int r1 = color1 & 0xff, 
+	            		  g1 = (color1 >> 8) & 0xff, 
+	            		  b1 = (color1 >> 16) & 0xff;
+	        
+	            final int r2 = color2 & 0xff, 
+	            		  g2 = (color2 >> 8) & 0xff, 
+	            		  b2 = (color2 >> 16) & 0xff;
+	            
+	            // Determine what mixing them in this proportion will produce
+	            final int r0 = r1 + ((r2-r1) >> 1);
+	            final int g0 = g1 + ((g2-g1) >> 1);
+	            final int b0 = b1 + ((b2-b1) >> 1);
+	            
+	            // Penalize color combinations too far apart
+	            _pairmix[i * count + j] = r0 | (g0 << 8) | (b0 << 16);
+	            _pairpenalty[i * count + j] = _distance.get(r1,g1,b1, r2,g2,b2) / _penaltyDivisor;
+	            
+	            if (_pairlab != null) {
+	            	LabDistance.toLab(r0, g0, b0, _pairlab, (i * count + j) * 3);
+	            }
+	        }
+        }
+		
 		// Initialize buckets after members are initialized
 		init();
 	}
@@ -72,8 +134,9 @@ public class RasterFilter extends AbstractColorFilter {
 		public void run(ImageBuffer buffer, int it, int last) {
 	    	final int[] image = buffer.image.array();
 			final int width = buffer.imagewidth;
+			final boolean complete = isComplete();
 			
-			for (int y = it; y < last; y++) {
+			for (int y = it; y < last && !buffer.cancelled; y++) {
 				final int yi = y * width,
 						  yt = (y % _patternsize) * _patternsize;
 				
@@ -87,41 +150,51 @@ public class RasterFilter extends AbstractColorFilter {
 					final int b1 = Math.max(0, Math.min(((pixel & 0x00ff0000) >> 16) + threshold - _mixingratio, 255));
 
 					final int bucket = ((r1 >> _step) | ((g1 >> _step) << _gsb) | ((b1 >> _step) << _bsb)) * COLOR_BUCKET_SIZE;
+					if (!complete) {
+						fillBucket(bucket);
+					}
+					
 					image[i + 1] = image[i] = (pixel & 0xff000000) | _buckets[bucket + (((x >> 1) & 0x01) ^ (y & 0x01))];
 				}
 			}
 		}
     }
 
-    protected final void initBucket(final int bucket, final int r, final int g, final int b) {
+    protected final void initBucket(final int[] buckets, final int bucket, final int r, final int g, final int b) {
+    	final int count = _colors.length;
     	double minpenalty = Double.MAX_VALUE;
-        for (int i = 0; i < _colors.length; ++i) {
-	        for (int j = i; j < _colors.length; ++j) {
-	            // Determine the two component colors
-	            final int color1 = _colors[i], color2 = _colors[j];
-	            final int r1 = color1 & 0xff, 
-	            		  g1 = (color1 >> 8) & 0xff, 
-	            		  b1 = (color1 >> 16) & 0xff;
-	        
-	            final int r2 = color2 & 0xff, 
-	            		  g2 = (color2 >> 8) & 0xff, 
-	            		  b2 = (color2 >> 16) & 0xff;
-
-	            // Determine what mixing them in this proportion will produce
-	            int r0 = r1 + ((r2-r1) >> 1);
-	            int g0 = g1 + ((g2-g1) >> 1);
-	            int b0 = b1 + ((b2-b1) >> 1);
-	            
-	            double penalty = _distance.get(r,g,b, r0,g0,b0),
-	        	       r12dist = _distance.get(r1,g1,b1, r2,g2,b2);
+    	
+    	// Convert the bucket color once when measuring in Lab
+    	final double[] lab = _pairlab != null ? new double[3] : null;
+    	if (lab != null) {
+    		LabDistance.toLab(r, g, b, lab, 0);
+    	}
+    	
+        for (int i = 0; i < count; ++i) {
+	        for (int j = i; j < count; ++j) {
+	        	// Skip pairs too far apart to beat the best pair so far
+	        	final int pair = i * count + j;
+	        	final double pairpenalty = _pairpenalty[pair];
+	        	if (pairpenalty >= minpenalty) {
+	        		continue;
+	        	}
+	        	
+	            final double distance;
+	            if (lab != null) {
+	            	final int k = pair * 3;
+	            	distance = _labdistance.get(lab[0], lab[1], lab[2], _pairlab[k], _pairlab[k + 1], _pairlab[k + 2]);
+	            }
+	            else {
+		            final int mix = _pairmix[pair];
+		            distance = _distance.get(r,g,b, mix & 0xff, (mix >> 8) & 0xff, (mix >> 16) & 0xff);
+	            }
 	            
-	            // Penalize color combinations too far apart
-	            penalty += r12dist / _penaltyDivisor;
+	            final double penalty = distance + pairpenalty;
 	            
 	            if (penalty < minpenalty) {
 	                minpenalty = penalty;
-	                _buckets[bucket] = (color1 & 0xffffff);
-	                _buckets[bucket + 1] = (color2 & 0xffffff);
+	                buckets[bucket] = (_colors[i] & 0xffffff);
+	                buckets[bucket + 1] = (_colors[j] & 0xffffff);
 	            }
 	        }
         }
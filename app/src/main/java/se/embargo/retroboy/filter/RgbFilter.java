@@ -31,7 +31,7 @@ public class RgbFilter extends AbstractFilter {
 		int[] histogram = Parallel.mapReduce(_body, buffer, 0, buffer.imagewidth * buffer.imageheight);
 	
 		// Calculate the global Otsu threshold
-		if (_autoexposure) {
+		if (_autoexposure && !buffer.cancelled) {
 			buffer.threshold = Levels.getThreshold(
 				buffer.imagewidth, buffer.imageheight, buffer.image.array(), histogram);
 			Log.d(TAG, "Threshold: " + buffer.threshold);
@@ -55,6 +55,7 @@ public class RgbFilter extends AbstractFilter {
 		@Override
 		public int[] map(ImageBuffer buffer, int it, int last) {
 			final int[] image = buffer.image.array();
+			final int width = Math.max(buffer.imagewidth, 1);
 			final float factor = _factor;
 
 			// Space to hold an image histogram
@@ -65,20 +66,23 @@ public class RgbFilter extends AbstractFilter {
 			
 			Arrays.fill(histogram, 0);
 			
-			for (int i = it; i != last; i++) {
-				final int pixel = image[i];
-				
-				// Extract color components and apply the contrast adjustment
-				final int r = Math.min(Math.max(0, (int)(factor * ((pixel & 0xff) - 128.0f) + 128.0f)), 255),
-						  g = Math.min(Math.max(0, (int)(factor * (((pixel & 0xff00) >> 8) - 128.0f) + 128.0f)), 255),
-						  b = Math.min(Math.max(0, (int)(factor * (((pixel & 0xff0000) >> 16) - 128.0f) + 128.0f)), 255);
-				
-				// Build the histogram used to calculate the global threshold
-				final int lumi = Math.min(Math.max(0, (int)(0.299f * r + 0.587f * g + 0.114f * b)), 255);
-				histogram[lumi]++;
-				
-				// Output the pixel, but keep alpha channel intact
-				image[i] = (pixel & 0xff000000) | (b << 16) | (g << 8) | r;
+			// Check for cancellation once per row of pixels
+			for (int row = it; row < last && !buffer.cancelled; row += width) {
+				for (int i = row, rowlast = Math.min(row + width, last); i != rowlast; i++) {
+					final int pixel = image[i];
+					
+					// Extract color components and apply the contrast adjustment
+					final int r = Math.min(Math.max(0, (int)(factor * ((pixel & 0xff) - 128.0f) + 128.0f)), 255),
+							  g = Math.min(Math.max(0, (int)(factor * (((pixel & 0xff00) >> 8) - 128.0f) + 128.0f)), 255),
+							  b = Math.min(Math.max(0, (int)(factor * (((pixel & 0xff0000) >> 16) - 128.0f) + 128.0f)), 255);
+					
+					// Build the histogram used to calculate the global threshold
+					final int lumi = Math.min(Math.max(0, (int)(0.299f * r + 0.587f * g + 0.114f * b)), 255);
+					histogram[lumi]++;
+					
+					// Output the pixel, but keep alpha channel intact
+					image[i] = (pixel & 0xff000000) | (b << 16) | (g << 8) | r;
+				}
 			}
 			
 			return histogram;
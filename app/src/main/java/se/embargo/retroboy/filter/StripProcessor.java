@@ -0,0 +1,138 @@
+package se.embargo.retroboy.filter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.IntBuffer;
+
+import se.embargo.retroboy.graphic.PngWriter;
+
+/**
+ * Filters an image in horizontal strips so that large images can be processed with a fixed amount of memory.
+ *
+ * Strips are a multiple of 8 rows high which keeps ordered dither patterns in phase across strips. The
+ * rows just below each strip are read ahead of time and carried over into the next strip, so error
+ * diffused out of the bottom of a strip lands where it would have in the whole image.
+ */
+public class StripProcessor {
+	/**
+	 * Supplies rows of an image.
+	 */
+	public interface IRowSource {
+		/**
+		 * @return	Width of image
+		 */
+		public int getWidth();
+
+		/**
+		 * @return	Height of image
+		 */
+		public int getHeight();
+
+		/**
+		 * Reads rows of the image.
+		 * @param	y		First row to read
+		 * @param	rows	Number of rows to read
+		 * @param	image	Receives the pixels of the rows
+		 */
+		public void read(int y, int rows, int[] image) throws IOException;
+	}
+
+	/**
+	 * Number of rows in each strip, a multiple of the dither pattern sizes.
+	 */
+	public static final int STRIP_HEIGHT = 64;
+
+	/**
+	 * Number of rows below a strip that error diffusion reaches into.
+	 */
+	private static final int CARRY_ROWS = 2;
+
+	private final IImageFilter _adjust, _effect;
+	private final int _threshold;
+
+	/**
+	 * Strip being filtered, or null if not processing.
+	 */
+	private volatile IImageFilter.ImageBuffer _strip = null;
+	private volatile boolean _cancelled = false;
+
+	/**
+	 * @param	adjust		Filter applied to each row once, e.g. contrast adjustment
+	 * @param	effect		Filter applied to each strip
+	 * @param	threshold	Global lighting threshold, typically measured on a downscaled image
+	 */
+	public StripProcessor(IImageFilter adjust, IImageFilter effect, int threshold) {
+		_adjust = adjust;
+		_effect = effect;
+		_threshold = threshold;
+	}
+
+	/**
+	 * Stops processing from another thread, {@link #process(IRowSource, PngWriter)} then throws an {@link InterruptedIOException}.
+	 */
+	public void cancel() {
+		_cancelled = true;
+
+		IImageFilter.ImageBuffer strip = _strip;
+		if (strip != null) {
+			strip.cancelled = true;
+		}
+	}
+
+	/**
+	 * Filters an image and writes it strip by strip.
+	 * @param	source	Image to filter
+	 * @param	writer	Receives the filtered rows
+	 */
+	public void process(IRowSource source, PngWriter writer) throws IOException {
+		final int width = source.getWidth(), height = source.getHeight();
+		final int imagesize = width * STRIP_HEIGHT + width * 4;
+
+		// Rows read from the source
+		IImageFilter.ImageBuffer input = new IImageFilter.ImageBuffer(width, height);
+		input.image = IntBuffer.wrap(new int[imagesize]);
+		input.imagewidth = width;
+
+		// Strip being filtered, followed by the rows carried into the next strip
+		IImageFilter.ImageBuffer strip = new IImageFilter.ImageBuffer(width, height);
+		strip.image = IntBuffer.wrap(new int[imagesize]);
+		strip.imagewidth = width;
+		strip.cancelled = _cancelled;
+		_strip = strip;
+
+		final int[] image = strip.image.array();
+		int carried = 0;
+
+		for (int y = 0; y < height; y += STRIP_HEIGHT) {
+			if (strip.cancelled || _cancelled) {
+				_strip = null;
+				throw new InterruptedIOException("Cancelled at row " + y + " of " + height);
+			}
+
+			final int rows = Math.min(STRIP_HEIGHT, height - y),
+					  lookahead = Math.min(CARRY_ROWS, height - y - rows),
+					  count = rows + lookahead - carried;
+
+			// Read and adjust the rows not carried over from the previous strip
+			source.read(y + carried, count, input.image.array());
+			input.imageheight = count;
+			_adjust.accept(input);
+			System.arraycopy(input.image.array(), 0, image, carried * width, count * width);
+
+			// Filter the strip which may diffuse error into the lookahead rows
+			strip.imageheight = rows;
+			strip.threshold = _threshold;
+			_effect.accept(strip);
+			writer.writeRows(image, rows);
+
+			// Carry the lookahead rows over to the top of the next strip
+			System.arraycopy(image, rows * width, image, 0, lookahead * width);
+			carried = lookahead;
+		}
+
+		_strip = null;
+		if (strip.cancelled) {
+			throw new InterruptedIOException("Cancelled at the last strip");
+		}
+	}
+}
@@ -1,11 +1,18 @@
 package se.embargo.retroboy.filter;
 
-import se.embargo.core.graphic.Bitmaps;
+import java.nio.IntBuffer;
+
+import se.embargo.retroboy.graphic.PixelTransform;
 
 public class TransformFilter extends AbstractFilter {
-	private Bitmaps.Transform _transform;
+	private PixelTransform _transform;
+	
+	/**
+	 * Image buffer swapped with the input buffer on each frame.
+	 */
+	private int[] _scratch = null;
 	
-	public TransformFilter(Bitmaps.Transform transform) {
+	public TransformFilter(PixelTransform transform) {
 		_transform = transform;
 	}
 	
@@ -21,6 +28,23 @@ public class TransformFilter extends AbstractFilter {
 
 	@Override
 	public void accept(ImageBuffer buffer) {
-		buffer.bitmap = Bitmaps.transform(buffer.bitmap, _transform);
+		if (buffer.imagewidth != _transform.inputwidth || buffer.imageheight != _transform.inputheight) {
+			throw new IllegalArgumentException("Image is " + buffer.imagewidth + "x" + buffer.imageheight + 
+				" but transform expects " + _transform.inputwidth + "x" + _transform.inputheight);
+		}
+		
+		final int imagesize = _transform.width * _transform.height + _transform.width * 4;
+		if (_scratch == null || _scratch.length < imagesize) {
+			_scratch = new int[imagesize];
+		}
+		
+		_transform.apply(buffer.image.array(), _scratch);
+		
+		// Swap the buffers
+		int[] image = buffer.image.array();
+		buffer.image = IntBuffer.wrap(_scratch);
+		buffer.imagewidth = _transform.width;
+		buffer.imageheight = _transform.height;
+		_scratch = image;
 	}
 }
@@ -0,0 +1,172 @@
+package se.embargo.retroboy.filter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import se.embargo.retroboy.graphic.Y4mReader;
+import android.util.Log;
+
+/**
+ * Filters YUV video several frames at a time.
+ *
+ * Frames are read ahead into a bounded pool of buffers and filtered concurrently. Each worker
+ * runs its own filter chain since filters keep scratch state between the rows of a frame, so a
+ * filter that carries state from one frame to the next must run on a single worker. The filtered
+ * frames are handed to the writer in the order they were read.
+ */
+public class VideoProcessor {
+	private static final String TAG = "VideoProcessor";
+
+	/**
+	 * Creates the filter chains of the workers.
+	 */
+	public interface IFilterFactory {
+		/**
+		 * @return	A filter chain that converts NV21 frames into images, e.g. starting with a {@link YuvFilter}.
+		 */
+		public IImageFilter create();
+	}
+
+	/**
+	 * Receives the filtered frames.
+	 */
+	public interface IFrameWriter {
+		/**
+		 * Called on the thread running {@link VideoProcessor#process(Y4mReader, IFrameWriter)}.
+		 * @param	buffer	Filtered frame, the buffer is reused once this returns
+		 */
+		public void write(IImageFilter.ImageBuffer buffer) throws IOException;
+	}
+
+	private final IFilterFactory _factory;
+	private final int _threads;
+
+	/**
+	 * Max number of frames read and not yet written.
+	 */
+	private final int _maxframes;
+
+	/**
+	 * @param	factory		Creates a filter chain for each worker
+	 * @param	threads		Number of frames to filter concurrently, must be 1 for filters that carry state between frames
+	 * @param	readahead	Number of frames to read ahead of the workers
+	 */
+	public VideoProcessor(IFilterFactory factory, int threads, int readahead) {
+		_factory = factory;
+		_threads = Math.max(threads, 1);
+		_maxframes = _threads + Math.max(readahead, 0);
+	}
+
+	/**
+	 * Filters all frames of a video.
+	 * @param	reader	Video to read
+	 * @param	writer	Receives the filtered frames in order
+	 * @return			Number of frames written
+	 */
+	public int process(Y4mReader reader, IFrameWriter writer) throws IOException, InterruptedException {
+		final int width = reader.getWidth(), height = reader.getHeight(), framesize = reader.getFrameSize();
+		final long duration = reader.getFrameDuration();
+
+		final ThreadLocal<IImageFilter> filter = new ThreadLocal<IImageFilter>() {
+			@Override
+			protected IImageFilter initialValue() {
+				return _factory.create();
+			}
+		};
+
+		final ExecutorService executor = Executors.newFixedThreadPool(_threads);
+		final Queue<FrameTask> pending = new ArrayDeque<FrameTask>();
+		final Queue<IImageFilter.ImageBuffer> bufferpool = new ArrayDeque<IImageFilter.ImageBuffer>();
+		int framecount = 0;
+
+		try {
+			long ts = System.currentTimeMillis();
+
+			for (long seqno = 0; ; seqno++) {
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+
+				// Wait for the oldest frame once all buffers are in flight
+				IImageFilter.ImageBuffer buffer = bufferpool.poll();
+				if (buffer == null && pending.size() < _maxframes) {
+					buffer = new IImageFilter.ImageBuffer(new byte[framesize], width, height);
+				}
+
+				while (buffer == null) {
+					buffer = write(pending.poll(), writer);
+					framecount++;
+				}
+
+				if (!reader.read(buffer.frame)) {
+					break;
+				}
+
+				buffer.timestamp = seqno * duration;
+				buffer.seqno = seqno;
+				buffer.threshold = 128;
+
+				FrameTask task = new FrameTask(buffer, filter);
+				task.result = executor.submit(task);
+				pending.add(task);
+
+				// Write the frames that are done
+				while (!pending.isEmpty() && pending.peek().result.isDone()) {
+					bufferpool.offer(write(pending.poll(), writer));
+					framecount++;
+				}
+			}
+
+			while (!pending.isEmpty()) {
+				write(pending.poll(), writer);
+				framecount++;
+			}
+
+			long elapsed = Math.max(System.currentTimeMillis() - ts, 1);
+			Log.i(TAG, "Processed " + framecount + " frames of " + width + "x" + height + " in " + elapsed + " ms (" + (framecount * 1000L / elapsed) + " frames/sec)");
+			return framecount;
+		}
+		finally {
+			for (FrameTask task : pending) {
+				task.buffer.cancelled = true;
+			}
+
+			executor.shutdownNow();
+		}
+	}
+
+	private static IImageFilter.ImageBuffer write(FrameTask task, IFrameWriter writer) throws IOException, InterruptedException {
+		try {
+			task.result.get();
+		}
+		catch (ExecutionException e) {
+			throw new IOException("Failed to filter frame: " + e.getCause());
+		}
+
+		writer.write(task.buffer);
+		return task.buffer;
+	}
+
+	private static class FrameTask implements Callable<Void> {
+		public final IImageFilter.ImageBuffer buffer;
+		private final ThreadLocal<IImageFilter> _filter;
+		public Future<Void> result;
+
+		public FrameTask(IImageFilter.ImageBuffer buffer, ThreadLocal<IImageFilter> filter) {
+			this.buffer = buffer;
+			_filter = filter;
+		}
+
+		@Override
+		public Void call() {
+			_filter.get().accept(buffer);
+			return null;
+		}
+	}
+}
@@ -41,8 +41,46 @@ public class YliluomaFilter extends AbstractColorFilter {
 	 */
 	private final IForBody<ImageBuffer> _body = new ColorBody();
 	
-	public YliluomaFilter(Context context, IColorDistance distance, int[] palette) {
-		super("yduotone", context, distance, palette, COLOR_BUCKET_SIZE, CACHE_VERSION_NUMBER);
+	/**
+	 * Distance between each pair of palette colors divided by 10, indexed by i * colors + j.
+	 */
+	private final double[] _pairdist;
+	
+	/**
+	 * Least penalty for mixing each pair of palette colors, a lower bound for the total penalty.
+	 */
+	private final double[] _pairpenalty;
+	
+	public YliluomaFilter(Context context, IColorDistance distance, int[] palette, InitMode initmode) {
+		this(context, distance, palette, getDefaultBits(), initmode);
+	}
+	
+	/**
+	 * @param context		Context running the filter
+	 * @param distance		Measure for color distance
+	 * @param palette		Palette of available colors
+	 * @param bits			Number of bits per color channel of the mixing plans
+	 * @param initmode		How to compute the mixing plans that aren't cached
+	 */
+	public YliluomaFilter(Context context, IColorDistance distance, int[] palette, int bits, InitMode initmode) {
+		super("yduotone", context, distance, palette, COLOR_BUCKET_SIZE, CACHE_VERSION_NUMBER, bits, initmode);
+		
+		// The distance between a pair doesn't depend on the bucket color
+		final int count = _colors.length;
+		_pairdist = new double[count * count];
+		_pairpenalty = new double[count * count];
+		
+        for (int i = 0; i < count; ++i) {
+	        for (int j = i; j < count; ++j) {
+	            final int color1 = _colors[i], color2 = _colors[j];
+	            final double r12dist = _distance.get(
+	            	color1 & 0xff, (color1 >> 8) & 0xff, (color1 >> 16) & 0xff, 
+	            	color2 & 0xff, (color2 >> 8) & 0xff, (color2 >> 16) & 0xff);
+	            
+	            _pairdist[i * count + j] = r12dist / 10;
+	            _pairpenalty[i * count + j] = r12dist / 10 * _mixingRatio / _matrix.length;
+	        }
+        }
 	
 		// Initialize buckets after members are initialized
 		init();
@@ -58,8 +96,9 @@ public class YliluomaFilter extends AbstractColorFilter {
 		public void run(ImageBuffer buffer, int it, int last) {
 	    	final int[] image = buffer.image.array();
 			final int width = buffer.imagewidth;
+			final boolean complete = isComplete();
 			
-			for (int y = it; y < last; y++) {
+			for (int y = it; y < last && !buffer.cancelled; y++) {
 				final int yi = y * width,
 						  yt = (y % _patternsize) * _patternsize;
 				
@@ -73,6 +112,10 @@ public class YliluomaFilter extends AbstractColorFilter {
 					final int b1 = (pixel & 0x00ff0000) >> 16;
 					
 					final int bucket = ((r1 >> _step) | ((g1 >> _step) << _gsb) | ((b1 >> _step) << _bsb)) * COLOR_BUCKET_SIZE;
+					if (!complete) {
+						fillBucket(bucket);
+					}
+					
 					final int ratio = _buckets[bucket + 2];
 					image[i] = (pixel & 0xff000000) | (threshold < ratio ? _buckets[bucket + 1] : _buckets[bucket]);
 				}
@@ -80,10 +123,18 @@ public class YliluomaFilter extends AbstractColorFilter {
 		}
     }
     
-    protected final void initBucket(final int bucket, final int r, final int g, final int b) {
+    protected final void initBucket(final int[] buckets, final int bucket, final int r, final int g, final int b) {
+    	final int count = _colors.length;
     	double minpenalty = Double.MAX_VALUE;
-        for (int i = 0; i < _colors.length; ++i) {
-	        for (int j = i; j < _colors.length; ++j) {
+    	
+        for (int i = 0; i < count; ++i) {
+	        for (int j = i; j < count; ++j) {
+	        	// Skip pairs too far apart to beat the best pair so far
+	        	final int pair = i * count + j;
+	        	if (_pairpenalty[pair] >= minpenalty) {
+	        		continue;
+	        	}
+	        	
 	            // Determine the two component colors
 	            final int color1 = _colors[i], color2 = _colors[j];
 	            final int r1 = color1 & 0xff, 
@@ -115,15 +166,13 @@ public class YliluomaFilter extends AbstractColorFilter {
 	            int g0 = g1 + ratio * (g2-g1) / _matrix.length;
 	            int b0 = b1 + ratio * (b2-b1) / _matrix.length;
 	            
-	        	double rdist = _distance.get(r,g,b, r0,g0,b0),
-	        	       r12dist = _distance.get(r1,g1,b1, r2,g2,b2);
-	            
-	        	double penalty = rdist + r12dist / 10 * (Math.abs(ratio - _mixingRatio) + _mixingRatio) / _matrix.length;
+	        	double rdist = _distance.get(r,g,b, r0,g0,b0);
+	        	double penalty = rdist + _pairdist[pair] * (Math.abs(ratio - _mixingRatio) + _mixingRatio) / _matrix.length;
 	            if (penalty < minpenalty) {
 	                minpenalty = penalty;
-	                _buckets[bucket] = (color1 & 0xffffff);
-	                _buckets[bucket + 1] = (color2 & 0xffffff);
-	                _buckets[bucket + 2] = ratio;
+	                buckets[bucket] = (color1 & 0xffffff);
+	                buckets[bucket + 1] = (color2 & 0xffffff);
+	                buckets[bucket + 2] = ratio;
 	            }
 	        }
         }
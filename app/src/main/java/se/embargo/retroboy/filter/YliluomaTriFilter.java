@@ -3,6 +3,7 @@ package se.embargo.retroboy.filter;
 import se.embargo.core.concurrent.IForBody;
 import se.embargo.core.concurrent.Parallel;
 import se.embargo.retroboy.color.IColorDistance;
+import se.embargo.retroboy.color.LabDistance;
 import se.embargo.retroboy.graphic.DitherMatrixes;
 import android.content.Context;
 
@@ -34,15 +35,118 @@ public class YliluomaTriFilter extends AbstractColorFilter {
 	/**
 	 * Version number for the cache files
 	 */
-	private static final int CACHE_VERSION_NUMBER = 6 | (_matrix.length << 16);
+	private static final int CACHE_VERSION_NUMBER = 7 | (_matrix.length << 16);
 
 	/**
 	 * Parallel functor used to process frames.
 	 */
 	private final IForBody<ImageBuffer> _body = new ColorBody();
 	
-	public YliluomaTriFilter(Context context, IColorDistance distance, int[] palette) {
-		super("ytritone", context, distance, palette, COLOR_BUCKET_SIZE, CACHE_VERSION_NUMBER);
+	/**
+	 * Distance between each pair of palette colors divided by 10, indexed by i * colors + j.
+	 */
+	private final double[] _pairdist;
+	
+	/**
+	 * Least penalty for mixing each pair of palette colors, a lower bound for the total penalty.
+	 */
+	private final double[] _pairpenalty;
+	
+	/**
+	 * Distance between each pair of palette colors divided by 40, used for tri-tone mixes.
+	 */
+	private final double[] _pairtridist;
+	
+	/**
+	 * Least penalty of any tri-tone mix based on each pair of palette colors.
+	 */
+	private final double[] _pairtripenalty;
+	
+	/**
+	 * Mixed color of each tri-tone combination, indexed by (i * colors + j) * colors + k.
+	 */
+	private final int[] _trimix;
+	
+	/**
+	 * Mixed color of each tri-tone combination converted to Lab when measured in Lab, indexed by triple * 3.
+	 */
+	private final double[] _trilab;
+	
+	/**
+	 * Penalty for each tri-tone combination besides the distance to the mixed color.
+	 */
+	private final double[] _tripenalty;
+	
+	public YliluomaTriFilter(Context context, IColorDistance distance, int[] palette, InitMode initmode) {
+		this(context, distance, palette, getDefaultBits(), initmode);
+	}
+	
+	/**
+	 * @param context		Context running the filter
+	 * @param distance		Measure for color distance
+	 * @param palette		Palette of available colors
+	 * @param bits			Number of bits per color channel of the mixing plans
+	 * @param initmode		How to compute the mixing plans that aren't cached
+	 */
+	public YliluomaTriFilter(Context context, IColorDistance distance, int[] palette, int bits, InitMode initmode) {
+		super("ytritone", context, distance, palette, COLOR_BUCKET_SIZE, CACHE_VERSION_NUMBER, bits, initmode);
+		
+		// Mixing pairs and triples doesn't depend on the bucket color
+		final int count = _colors.length;
+		_pairdist = new double[count * count];
+		_pairpenalty = new double[count * count];
+		_pairtridist = new double[count * count];
+		_pairtripenalty = new double[count * count];
+		_trimix = new int[count * count * count];
+		_tripenalty = new double[count * count * count];
+		_trilab = _labdistance != null ? new double[count * count * count * 3] : null;
+		
+        for (int i = 0; i < count; ++i) {
+	        for (int j = i; j < count; ++j) {
+	            final int color1 = _colors[i], color2 = _colors[j];
+	            final int r1 = color1 & 0xff, 
+	            		  g1 = (color1 >> 8) & 0xff, 
+	            		  b1 = (color1 >> 16) & 0xff;
+	        
+	            final int r2 = color2 & 0xff, 
+	            		  g2 = (color2 >> 8) & 0xff, 
+	            		  b2 = (color2 >> 16) & 0xff;
+	            
+	            final int pair = i * count + j;
+	            final double r12dist = _distance.get(r1,g1,b1, r2,g2,b2);
+	            _pairdist[pair] = r12dist / 10;
+	            _pairpenalty[pair] = r12dist / 10 * _mixingRatio / _matrix.length;
+	            _pairtridist[pair] = r12dist / 40;
+	            _pairtripenalty[pair] = Double.MAX_VALUE;
+	            
+	            if (i != j) {
+	            	for (int k = 0; k < count; k++) {
+	                    if (k == i || k == j) {
+	                    	continue;
+	                    }
+	                    
+	                    // 50% index3, 25% index2, 25% index1
+	                    final int color3 = _colors[k];
+	                    final int r3 = color3 & 0xff, 
+	    	            		  g3 = (color3 >> 8) & 0xff, 
+	    	            		  b3 = (color3 >> 16) & 0xff;
+	            	
+	                    final int triple = pair * count + k;
+	                    _trimix[triple] = 
+	                    	((r1 + r2 + r3*2) / 4) | 
+	                    	(((g1 + g2 + g3*2) / 4) << 8) | 
+	                    	(((b1 + b2 + b3*2) / 4) << 16);
+	                    
+	                    if (_trilab != null) {
+	                    	LabDistance.toLab((r1 + r2 + r3*2) / 4, (g1 + g2 + g3*2) / 4, (b1 + b2 + b3*2) / 4, _trilab, triple * 3);
+	                    }
+	                    
+	                    _tripenalty[triple] = _distance.get((r1+g1)/2,(g1+g2)/2,(b1+b2)/2, r3,g3,b3) / 40;
+	                    _pairtripenalty[pair] = Math.min(_pairtripenalty[pair], _pairtridist[pair] + _tripenalty[triple]);
+	            	}
+	            }
+	        }
+        }
 	
 		// Initialize buckets after members are initialized
 		init();
@@ -58,8 +162,9 @@ public class YliluomaTriFilter extends AbstractColorFilter {
 		public void run(ImageBuffer buffer, int it, int last) {
 	    	final int[] image = buffer.image.array();
 			final int width = buffer.imagewidth;
+			final boolean complete = isComplete();
 
-			for (int y = it; y < last; y++) {
+			for (int y = it; y < last && !buffer.cancelled; y++) {
 				final int yi = y * width,
 						  yt = (y % _patternsize) * _patternsize;
 				
@@ -72,6 +177,10 @@ public class YliluomaTriFilter extends AbstractColorFilter {
 					final int b1 = (pixel & 0x00ff0000) >> 16;
 					
 					final int bucket = ((r1 >> _step) | ((g1 >> _step) << _gsb) | ((b1 >> _step) << _bsb)) * COLOR_BUCKET_SIZE;
+					if (!complete) {
+						fillBucket(bucket);
+					}
+					
 					final int ratio = _buckets[bucket + 4];
 					
 					if (ratio == 256) {
@@ -86,77 +195,103 @@ public class YliluomaTriFilter extends AbstractColorFilter {
 		}
     }
     
-    protected final void initBucket(final int bucket, final int r, final int g, final int b) {
+    protected final void initBucket(final int[] buckets, final int bucket, final int r, final int g, final int b) {
+    	final int count = _colors.length;
     	double minpenalty = Double.MAX_VALUE;
-        for (int i = 0; i < _colors.length; ++i) {
-	        for (int j = i; j < _colors.length; ++j) {
+    	
+    	// Convert the bucket color once when measuring in Lab, the pair mixes depend on it and are converted into lab[3..5]
+    	final double[] lab = _labdistance != null ? new double[6] : null;
+    	if (lab != null) {
+    		LabDistance.toLab(r, g, b, lab, 0);
+    	}
+    	
+        for (int i = 0; i < count; ++i) {
+	        for (int j = i; j < count; ++j) {
+	        	final int pair = i * count + j;
+	        	
 	            // Determine the two component colors
 	            final int color1 = _colors[i], color2 = _colors[j];
-	            final int r1 = color1 & 0xff, 
-	            		  g1 = (color1 >> 8) & 0xff, 
-	            		  b1 = (color1 >> 16) & 0xff;
-	        
-	            final int r2 = color2 & 0xff, 
-	            		  g2 = (color2 >> 8) & 0xff, 
-	            		  b2 = (color2 >> 16) & 0xff;
-
-	            int ratio = _mixingRatio;
-	            if (color1 != color2) {
-	                // Determine the ratio of mixing for each channel.
-	                //   solve(r1 + ratio*(r2-r1)/_matrix.length = r, ratio)
-	                // Take a weighed average of these three ratios according to the
-	                // perceived luminosity of each channel (according to CCIR 601).
-	                ratio = ((r2 != r1 ? 299*_matrix.length * (r - r1) / (r2-r1) : 0)
-	                      +  (g2 != g1 ? 587*_matrix.length * (g - g1) / (g2-g1) : 0)
-	                      +  (b2 != b1 ? 114*_matrix.length * (b - b1) / (b2-b1) : 0))
-	                      / ((r2 != r1 ? 299 : 0)
-	                       + (g2 != g1 ? 587 : 0)
-	                       + (b2 != b1 ? 114 : 0));
-	                
-	                ratio = Math.max(0, Math.min(ratio, _matrix.length - 1));
-	            }
-
-	            // Determine what mixing them in this proportion will produce
-	            int r0 = r1 + ratio * (r2-r1) / _matrix.length;
-	            int g0 = g1 + ratio * (g2-g1) / _matrix.length;
-	            int b0 = b1 + ratio * (b2-b1) / _matrix.length;
 	            
-	            double rdist = _distance.get(r,g,b, r0,g0,b0),
-	        	       r12dist = _distance.get(r1,g1,b1, r2,g2,b2);
-	            
-	            double penalty = rdist + r12dist / 10 * (Math.abs(ratio - _mixingRatio) + _mixingRatio) / _matrix.length;
-	            if (penalty < minpenalty) {
-	                minpenalty = penalty;
-	                _buckets[bucket] = color1;
-	                _buckets[bucket + 1] = color2;
-	                _buckets[bucket + 4] = ratio;
-	            }
+	        	// Skip pairs too far apart to beat the best mix so far
+	        	if (_pairpenalty[pair] < minpenalty) {
+		            final int r1 = color1 & 0xff, 
+		            		  g1 = (color1 >> 8) & 0xff, 
+		            		  b1 = (color1 >> 16) & 0xff;
+		        
+		            final int r2 = color2 & 0xff, 
+		            		  g2 = (color2 >> 8) & 0xff, 
+		            		  b2 = (color2 >> 16) & 0xff;
+	
+		            int ratio = _mixingRatio;
+		            if (color1 != color2) {
+		                // Determine the ratio of mixing for each channel.
+		                //   solve(r1 + ratio*(r2-r1)/_matrix.length = r, ratio)
+		                // Take a weighed average of these three ratios according to the
+		                // perceived luminosity of each channel (according to CCIR 601).
+		                ratio = ((r2 != r1 ? 299*_matrix.length * (r - r1) / (r2-r1) : 0)
+		                      +  (g2 != g1 ? 587*_matrix.length * (g - g1) / (g2-g1) : 0)
+		                      +  (b2 != b1 ? 114*_matrix.length * (b - b1) / (b2-b1) : 0))
+		                      / ((r2 != r1 ? 299 : 0)
+		                       + (g2 != g1 ? 587 : 0)
+		                       + (b2 != b1 ? 114 : 0));
+		                
+		                ratio = Math.max(0, Math.min(ratio, _matrix.length - 1));
+		            }
+	
+		            // Determine what mixing them in this proportion will produce
+		            final int r0 = r1 + ratio * (r2-r1) / _matrix.length;
+		            final int g0 = g1 + ratio * (g2-g1) / _matrix.length;
+		            final int b0 = b1 + ratio * (b2-b1) / _matrix.length;
+		            
+		            final double rdist;
+		            if (lab != null) {
+		            	LabDistance.toLab(r0, g0, b0, lab, 3);
+		            	rdist = _labdistance.get(lab[0], lab[1], lab[2], lab[3], lab[4], lab[5]);
+		            }
+		            else {
+		            	rdist = _distance.get(r,g,b, r0,g0,b0);
+		            }
+		            
+		            final double penalty = rdist + _pairdist[pair] * (Math.abs(ratio - _mixingRatio) + _mixingRatio) / _matrix.length;
+		            if (penalty < minpenalty) {
+		                minpenalty = penalty;
+		                buckets[bucket] = (color1 & 0xffffff);
+		                buckets[bucket + 1] = (color2 & 0xffffff);
+		                buckets[bucket + 4] = ratio;
+		            }
+	        	}
 	            
-	            if (i != j) {
-	            	for (int k = 0; k < _colors.length; k++) {
-	                    if (k == i || k == j) {
+	            // Skip tri-tone mixes that can't beat the best mix so far
+	            if (i != j && _pairtripenalty[pair] < minpenalty) {
+	            	final double r12dist = _pairtridist[pair];
+	            	
+	            	for (int k = 0; k < count; k++) {
+	                    final int triple = pair * count + k;
+	                    if (k == i || k == j || r12dist + _tripenalty[triple] >= minpenalty) {
 	                    	continue;
 	                    }
 	                    
 	                    // 50% index3, 25% index2, 25% index1
-	                    final int color3 = _colors[k];
-	                    final int r3 = color3 & 0xff, 
-	    	            		  g3 = (color3 >> 8) & 0xff, 
-	    	            		  b3 = (color3 >> 16) & 0xff;
-	            	
-	    	            r0 = (r1 + r2 + r3*2) / 4;
-	    	            g0 = (g1 + g2 + g3*2) / 4;
-	    	            b0 = (b1 + b2 + b3*2) / 4;
-	    	            rdist = _distance.get(r,g,b, r0,g0,b0);
+	                    final double distance;
+	                    if (lab != null) {
+	                    	final int l = triple * 3;
+	                    	distance = _labdistance.get(lab[0], lab[1], lab[2], _trilab[l], _trilab[l + 1], _trilab[l + 2]);
+	                    }
+	                    else {
+		                    final int mix = _trimix[triple];
+		                    distance = _distance.get(r,g,b, mix & 0xff, (mix >> 8) & 0xff, (mix >> 16) & 0xff);
+	                    }
+	                    
+	                    final double penalty = distance + r12dist + _tripenalty[triple];
 	    	            
-	    	            penalty = rdist + r12dist / 40 + _distance.get((r1+g1)/2,(g1+g2)/2,(b1+b2)/2, r3,g3,b3) / 40;
 	    	            if (penalty < minpenalty) {
+	    	            	final int color3 = _colors[k];
 	    	                minpenalty = penalty;
-	    	                _buckets[bucket] = (color3 & 0xffffff);
-	    	                _buckets[bucket + 1] = (color1 & 0xffffff);
-	    	                _buckets[bucket + 2] = (color2 & 0xffffff);
-	    	                _buckets[bucket + 3] = (color3 & 0xffffff);
-	    	                _buckets[bucket + 4] = 256;
+	    	                buckets[bucket] = (color3 & 0xffffff);
+	    	                buckets[bucket + 1] = (color1 & 0xffffff);
+	    	                buckets[bucket + 2] = (color2 & 0xffffff);
+	    	                buckets[bucket + 3] = (color3 & 0xffffff);
+	    	                buckets[bucket + 4] = 256;
 	    	            }
 	            	}
 	            }
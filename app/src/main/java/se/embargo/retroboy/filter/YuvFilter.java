@@ -16,7 +16,11 @@ import android.util.Log;
  */
 public class YuvFilter implements IImageFilter {
 	private static final String TAG = "YuvFilter";
-	private final int _width, _height;
+	
+	/**
+	 * Max size of the output image.
+	 */
+	private volatile int _width, _height;
 	private final float _factor;
 	private final boolean _autoexposure;
 	
@@ -37,6 +41,16 @@ public class YuvFilter implements IImageFilter {
 		}
 	}
 	
+	/**
+	 * Changes the max size of the output image, takes effect from the next frame.
+	 * @param	width	Max width of the output image
+	 * @param	height	Max height of the output image
+	 */
+	public void setResolution(int width, int height) {
+		_width = width;
+		_height = height;
+	}
+	
 	@Override
 	public int getEffectiveWidth(int framewidth, int frameheight) {
 		final float stride = getStride(framewidth, frameheight); 
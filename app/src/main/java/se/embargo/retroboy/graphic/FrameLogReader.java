@@ -0,0 +1,86 @@
+package se.embargo.retroboy.graphic;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads camera preview frames written by {@link FrameLogWriter}.
+ */
+public class FrameLogReader {
+	private final DataInputStream _is;
+	private final int _width, _height;
+	private long _timestamp = 0;
+
+	/**
+	 * @param	is	Stream to read from, it's closed by {@link #close()}
+	 */
+	public FrameLogReader(InputStream is) throws IOException {
+		_is = new DataInputStream(new BufferedInputStream(new InflaterInputStream(is), 64 * 1024));
+
+		if (_is.readInt() != FrameLogWriter.MAGIC) {
+			throw new IOException("Not a frame log");
+		}
+
+		int version = _is.readInt();
+		if (version != FrameLogWriter.VERSION) {
+			throw new IOException("Unsupported frame log version: " + version);
+		}
+
+		_width = _is.readInt();
+		_height = _is.readInt();
+	}
+
+	public int getWidth() {
+		return _width;
+	}
+
+	public int getHeight() {
+		return _height;
+	}
+
+	/**
+	 * @return	Number of bytes in a frame.
+	 */
+	public int getFrameSize() {
+		return _width * _height * 3 / 2;
+	}
+
+	/**
+	 * @return	Time the most recently read frame was received in nanoseconds.
+	 */
+	public long getTimestamp() {
+		return _timestamp;
+	}
+
+	/**
+	 * Reads the next frame.
+	 * @param	frame	Receives the NV21 frame data, must hold at least {@link #getFrameSize()} bytes
+	 * @return			False at the end of the log
+	 */
+	public boolean read(byte[] frame) throws IOException {
+		long timestamp;
+		try {
+			timestamp = _is.readLong();
+		}
+		catch (EOFException e) {
+			return false;
+		}
+
+		int length = _is.readInt();
+		if (length != getFrameSize()) {
+			throw new IOException("Invalid frame size " + length + " in frame log");
+		}
+
+		_is.readFully(frame, 0, length);
+		_timestamp = timestamp;
+		return true;
+	}
+
+	public void close() throws IOException {
+		_is.close();
+	}
+}
@@ -0,0 +1,71 @@
+package se.embargo.retroboy.graphic;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes raw camera preview frames along with their timestamps.
+ *
+ * The log starts with a header holding the frame size, followed by one record per frame with the
+ * timestamp in nanoseconds, the number of bytes and the raw NV21 data. The whole stream is deflated
+ * since camera noise aside, consecutive preview frames compress well.
+ */
+public class FrameLogWriter {
+	/**
+	 * Identifies a frame log.
+	 */
+	static final int MAGIC = 0x5242464c;
+	static final int VERSION = 1;
+
+	private final Deflater _deflater = new Deflater(Deflater.BEST_SPEED);
+	private final DataOutputStream _os;
+	private final int _framesize;
+	private int _framecount = 0;
+
+	/**
+	 * @param	os		Stream to write to, it's closed by {@link #close()}
+	 * @param	width	Width of the frames
+	 * @param	height	Height of the frames
+	 */
+	public FrameLogWriter(OutputStream os, int width, int height) throws IOException {
+		_os = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(os, _deflater, 64 * 1024)));
+		_framesize = width * height * 3 / 2;
+
+		_os.writeInt(MAGIC);
+		_os.writeInt(VERSION);
+		_os.writeInt(width);
+		_os.writeInt(height);
+	}
+
+	/**
+	 * Add a frame to the log.
+	 * @param	frame		NV21 frame data
+	 * @param	timestamp	Time the frame was received in nanoseconds
+	 */
+	public void write(byte[] frame, long timestamp) throws IOException {
+		_os.writeLong(timestamp);
+		_os.writeInt(_framesize);
+		_os.write(frame, 0, _framesize);
+		_framecount++;
+	}
+
+	/**
+	 * @return	Number of frames written so far.
+	 */
+	public int getFrameCount() {
+		return _framecount;
+	}
+
+	public void close() throws IOException {
+		try {
+			_os.close();
+		}
+		finally {
+			_deflater.end();
+		}
+	}
+}
@@ -0,0 +1,512 @@
+package se.embargo.retroboy.graphic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.embargo.core.graphic.color.IColorQuantizer;
+import se.embargo.core.graphic.color.IPalette;
+import se.embargo.core.graphic.color.NeuQuant;
+import se.embargo.retroboy.color.BitPalette;
+import se.embargo.retroboy.color.ColorTable;
+
+/**
+ * Writes animated GIF's while compressing frames in parallel.
+ *
+ * Frames are LZW compressed concurrently on a pool of worker threads and the resulting
+ * image blocks are written to the output stream in the order the frames were added.
+ * Images are expressed as ABGR integers (Alpha, Blue, Green, Red).
+ *
+ * All frames share a single global color table. It's derived from the palette when
+ * that has at most 256 colors, otherwise it's quantized once from the first few frames,
+ * which are held back until then.
+ *
+ * When delta encoding is enabled each frame is compared to the previous one and only
+ * the bounding rectangle of the changed pixels is written, with unchanged pixels set
+ * to a transparent color index if the color table has room for one.
+ */
+public class GifWriter {
+	/**
+	 * Max number of colors in a GIF color table.
+	 */
+	private static final int MAX_COLORS = 256;
+
+	/**
+	 * Sample factor used when quantizing the global color table.
+	 */
+	private static final int QUANTIZE_SAMPLE_FACTOR = 10;
+
+	/**
+	 * Number of frames to quantize the global color table from.
+	 */
+	private static final int QUANTIZE_FRAMES = 16;
+
+	/**
+	 * Leave the previous frame in place when drawing the next one.
+	 */
+	private static final int DISPOSAL_NONE = 1;
+
+	private final OutputStream _os;
+	private final int _width, _height;
+	private final int _repeat;
+
+	/**
+	 * Palette the frames were rendered with, or null if unknown.
+	 */
+	private final IPalette _source;
+
+	/**
+	 * Global color table, or null until it's been quantized from the first frames.
+	 */
+	private ColorTable _palette;
+
+	/**
+	 * Number of bits per color index in the global color table.
+	 */
+	private int _tablebits;
+
+	/**
+	 * Color index of transparent pixels, or -1 if not available.
+	 */
+	private int _transparent = -1;
+
+	/**
+	 * Only write the pixels which changed since the previous frame.
+	 */
+	private final boolean _delta;
+
+	/**
+	 * Workers compressing frames.
+	 */
+	private final ExecutorService _executor;
+
+	/**
+	 * Frames being compressed, in output order.
+	 */
+	private final Queue<FrameTask> _pending = new ArrayDeque<FrameTask>();
+
+	/**
+	 * Frames waiting for the global color table to be quantized.
+	 */
+	private final Queue<FrameTask> _held = new ArrayDeque<FrameTask>();
+
+	/**
+	 * Pixels sampled from the held frames to quantize the global color table from.
+	 */
+	private int[] _samples = null;
+	private int _samplecount = 0;
+
+	/**
+	 * Max number of frames being compressed at any time.
+	 */
+	private final int _maxpending;
+
+	/**
+	 * Pixel buffers available for new frames.
+	 */
+	private final Queue<int[]> _bufferpool;
+
+	/**
+	 * Per thread LZW compressor.
+	 */
+	private final ThreadLocal<LzwEncoder> _encoder = new ThreadLocal<LzwEncoder>() {
+		@Override
+		protected LzwEncoder initialValue() {
+			return new LzwEncoder();
+		}
+	};
+
+	/**
+	 * Whether the header has been written.
+	 */
+	private boolean _started = false;
+
+	/**
+	 * Most recently added frame.
+	 */
+	private FrameTask _last = null;
+
+	/**
+	 * Most recently written frame, its pixels are still needed by the next frame.
+	 */
+	private FrameTask _written = null;
+
+	/**
+	 * Number of frames written so far.
+	 */
+	private int _framecount = 0;
+
+	/**
+	 * Number of bytes written so far.
+	 */
+	private long _outputsize = 0;
+
+	/**
+	 * Total time in milliseconds spent compressing frames, summed over all workers.
+	 */
+	private final AtomicLong _encodetime = new AtomicLong();
+
+	/**
+	 * @param	os		Stream to write to
+	 * @param	width	Width of all frames
+	 * @param	height	Height of all frames
+	 * @param	palette	Palette the frames were rendered with, or null if unknown
+	 * @param	repeat	Number of times to loop the animation, 0 to loop forever and -1 to play once
+	 * @param	threads	Number of worker threads compressing frames
+	 * @param	delta	Only write changed pixels
+	 */
+	public GifWriter(OutputStream os, int width, int height, IPalette palette, int repeat, int threads, boolean delta) {
+		_os = os;
+		_width = width;
+		_height = height;
+		_repeat = repeat;
+		_source = palette;
+		_palette = ColorTable.create(palette);
+		_delta = delta;
+		_executor = Executors.newFixedThreadPool(threads);
+		_maxpending = threads * 2;
+		_bufferpool = new ArrayBlockingQueue<int[]>(_maxpending + 2);
+	}
+
+	public GifWriter(OutputStream os, int width, int height, IPalette palette, int repeat, int threads) {
+		this(os, width, height, palette, repeat, threads, false);
+	}
+
+	/**
+	 * Add a frame to the animation.
+	 * @param	image	Pixels of frame, the array is copied and may be reused by the caller
+	 * @param	delay	Time in milliseconds to display this frame
+	 */
+	public void addFrame(int[] image, int delay) throws IOException {
+		final int pixelcount = _width * _height;
+		int[] pixels = _bufferpool.poll();
+		if (pixels == null) {
+			pixels = new int[pixelcount];
+		}
+
+		System.arraycopy(image, 0, pixels, 0, pixelcount);
+		FrameTask frame = new FrameTask(pixels, _delta ? _last : null, delay);
+		_last = frame;
+
+		_held.add(frame);
+
+		// Hold the first frames back until the global color table has been quantized from them
+		if (_palette == null) {
+			sample(pixels);
+			if (_held.size() < QUANTIZE_FRAMES) {
+				return;
+			}
+		}
+
+		flush();
+	}
+
+	/**
+	 * Writes the header if needed and queues the held frames for compression.
+	 */
+	private void flush() throws IOException {
+		if (!_started) {
+			writeHeader();
+		}
+
+		while (!_held.isEmpty()) {
+			submit(_held.poll());
+		}
+	}
+
+	private void submit(FrameTask frame) throws IOException {
+		frame.result = _executor.submit(frame);
+		_pending.add(frame);
+
+		// Write the frames that are done, and wait for the oldest ones if too many are in flight
+		while (!_pending.isEmpty() && (_pending.peek().result.isDone() || _pending.size() >= _maxpending)) {
+			writeFrame(_pending.poll());
+		}
+	}
+
+	/**
+	 * Adds every few pixels of a frame to the samples, starting at a different pixel in each frame 
+	 * so the same columns aren't sampled every time.
+	 */
+	private void sample(int[] pixels) {
+		final int pixelcount = _width * _height;
+		if (_samples == null) {
+			_samples = new int[(pixelcount / QUANTIZE_SAMPLE_FACTOR + 1) * QUANTIZE_FRAMES];
+		}
+
+		for (int i = (_held.size() - 1) % QUANTIZE_SAMPLE_FACTOR; i < pixelcount && _samplecount < _samples.length; i += QUANTIZE_SAMPLE_FACTOR) {
+			_samples[_samplecount++] = pixels[i];
+		}
+	}
+
+	/**
+	 * @return	Number of frames written to the output stream so far.
+	 */
+	public int getFrameCount() {
+		return _framecount;
+	}
+
+	/**
+	 * @return	Number of bytes written to the output stream so far.
+	 */
+	public long getOutputSize() {
+		return _outputsize;
+	}
+
+	/**
+	 * @return	Total time in milliseconds spent compressing frames, summed over all workers.
+	 */
+	public long getEncodeTime() {
+		return _encodetime.get();
+	}
+
+	/**
+	 * Write the remaining frames and the GIF trailer, the output stream is not closed.
+	 */
+	public void finish() throws IOException {
+		try {
+			// Frames are held back when there are fewer than needed to quantize from
+			flush();
+
+			while (!_pending.isEmpty()) {
+				writeFrame(_pending.poll());
+			}
+
+			_os.write(0x3b);
+			_os.flush();
+		}
+		finally {
+			_executor.shutdown();
+		}
+	}
+
+	/**
+	 * Discard pending frames and stop the worker threads.
+	 */
+	public void abort() {
+		_pending.clear();
+		_held.clear();
+		_last = _written = null;
+		_executor.shutdownNow();
+	}
+
+	private void writeFrame(FrameTask frame) throws IOException {
+		try {
+			byte[] block = frame.result.get();
+			_os.write(block);
+			_outputsize += block.length;
+			_framecount++;
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted while compressing frame");
+		}
+		catch (ExecutionException e) {
+			throw new IOException("Failed to compress frame: " + e.getCause());
+		}
+
+		// The previous frame is no longer needed now that its successor is done
+		if (_written != null) {
+			_bufferpool.offer(_written.pixels);
+		}
+
+		frame.previous = null;
+		_written = _delta ? frame : null;
+		if (_written == null) {
+			_bufferpool.offer(frame.pixels);
+		}
+	}
+
+	/**
+	 * Writes the GIF header and global color table.
+	 */
+	private void writeHeader() throws IOException {
+		_started = true;
+
+		// Quantize the global color table once from the pixels sampled over the first frames
+		if (_palette == null) {
+			IColorQuantizer quantizer = new NeuQuant();
+			quantizer.sample(_source != null ? _source : new BitPalette(8), _samplecount > 0 ? _samples : new int[1], Math.max(_samplecount, 1), 1);
+			_palette = new ColorTable(quantizer.getPalette());
+			_samples = null;
+		}
+
+		// Reserve the first unused color index for transparent pixels
+		if (_delta && _palette.getColors().length < MAX_COLORS) {
+			_transparent = _palette.getColors().length;
+			_tablebits = getTableBits(_transparent + 1);
+		}
+		else {
+			_transparent = -1;
+			_tablebits = getTableBits(_palette.getColors().length);
+		}
+
+		_os.write(new byte[] {'G', 'I', 'F', '8', '9', 'a'});
+		_outputsize += 6;
+
+		// Logical screen descriptor
+		writeShort(_os, _width);
+		writeShort(_os, _height);
+
+		// Global color table follows
+		_os.write(0x80 | 0x70 | (_tablebits - 1));
+		_os.write(0);
+		_os.write(0);
+		writeColorTable(_os, _palette.getColors(), _tablebits);
+		_outputsize += 7 + (1 << _tablebits) * 3;
+
+		// Netscape looping extension
+		if (_repeat >= 0) {
+			_os.write(new byte[] {0x21, (byte)0xff, 11, 'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0', 3, 1});
+			writeShort(_os, _repeat);
+			_os.write(0);
+			_outputsize += 19;
+		}
+	}
+
+	/**
+	 * @return	Number of bits needed to index a color table.
+	 */
+	private static int getTableBits(int colorcount) {
+		int bits = 1;
+		while ((1 << bits) < Math.min(colorcount, MAX_COLORS)) {
+			bits++;
+		}
+
+		return bits;
+	}
+
+	private static void writeColorTable(OutputStream os, int[] colors, int bits) throws IOException {
+		final int count = Math.min(colors.length, MAX_COLORS);
+		final byte[] table = new byte[(1 << bits) * 3];
+
+		for (int i = 0; i < count; i++) {
+			final int color = colors[i];
+			table[i * 3] = (byte)(color & 0xff);
+			table[i * 3 + 1] = (byte)((color >> 8) & 0xff);
+			table[i * 3 + 2] = (byte)((color >> 16) & 0xff);
+		}
+
+		os.write(table);
+	}
+
+	private static void writeShort(OutputStream os, int value) throws IOException {
+		os.write(value & 0xff);
+		os.write((value >> 8) & 0xff);
+	}
+
+	/**
+	 * Maps a frame to color indexes and compresses it into a complete GIF image block.
+	 */
+	private class FrameTask implements Callable<byte[]> {
+		public final int[] pixels;
+		public final int delay;
+
+		/**
+		 * Frame to compare against when delta encoding, or null to write the full frame.
+		 */
+		public FrameTask previous;
+
+		/**
+		 * Compressed image block.
+		 */
+		public Future<byte[]> result;
+
+		public FrameTask(int[] pixels, FrameTask previous, int delay) {
+			this.pixels = pixels;
+			this.previous = previous;
+			this.delay = delay;
+		}
+
+		@Override
+		public byte[] call() throws IOException {
+			final long ts = System.currentTimeMillis();
+			final int[] prevpixels = previous != null ? previous.pixels : null;
+			final ColorTable palette = _palette;
+
+			// Find the rectangle of changed pixels
+			int left = 0, top = 0, right = _width, bottom = _height;
+			if (prevpixels != null) {
+				left = _width;
+				top = _height;
+				right = bottom = 0;
+
+				for (int y = 0, i = 0; y < _height; y++) {
+					for (int x = 0; x < _width; x++, i++) {
+						if (((pixels[i] ^ prevpixels[i]) & 0xffffff) != 0) {
+							left = Math.min(left, x);
+							right = Math.max(right, x + 1);
+							top = Math.min(top, y);
+							bottom = y + 1;
+						}
+					}
+				}
+
+				// Unchanged frames still need a pixel to carry the delay
+				if (right <= left) {
+					left = top = 0;
+					right = bottom = 1;
+				}
+			}
+
+			// Map pixels to color indexes
+			final int subwidth = right - left, subheight = bottom - top;
+			final byte[] indexes = new byte[subwidth * subheight];
+			// Masked colors are never negative so the first color always misses the cache
+			int prevcolor = -1, previndex = 0;
+
+			for (int y = top, j = 0; y < bottom; y++) {
+				for (int x = left, i = y * _width + left; x < right; x++, i++, j++) {
+					final int color = pixels[i] & 0xffffff;
+					if (_transparent >= 0 && prevpixels != null && color == (prevpixels[i] & 0xffffff)) {
+						indexes[j] = (byte)_transparent;
+						continue;
+					}
+
+					if (color != prevcolor) {
+						prevcolor = color;
+						previndex = palette.getIndex(color);
+					}
+
+					indexes[j] = (byte)previndex;
+				}
+			}
+
+			ByteArrayOutputStream os = new ByteArrayOutputStream(indexes.length / 4);
+
+			// Graphic control extension
+			os.write(new byte[] {0x21, (byte)0xf9, 4});
+			if (_transparent >= 0) {
+				os.write((DISPOSAL_NONE << 2) | 0x01);
+			}
+			else {
+				os.write(_delta ? DISPOSAL_NONE << 2 : 0);
+			}
+			writeShort(os, delay / 10);
+			os.write(_transparent >= 0 ? _transparent : 0);
+			os.write(0);
+
+			// Image descriptor
+			os.write(0x2c);
+			writeShort(os, left);
+			writeShort(os, top);
+			writeShort(os, subwidth);
+			writeShort(os, subheight);
+
+			os.write(0);
+
+			// Compressed image data
+			_encoder.get().encode(indexes, indexes.length, _tablebits, os);
+			_encodetime.addAndGet(System.currentTimeMillis() - ts);
+			return os.toByteArray();
+		}
+	}
+}
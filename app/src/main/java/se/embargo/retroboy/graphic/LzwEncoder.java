@@ -0,0 +1,191 @@
+package se.embargo.retroboy.graphic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Variable length LZW compressor producing GIF image data.
+ *
+ * Adapted from the GIFCOMPR.C algorithm by Spencer W. Thomas, Jim McKie, Steve Davies,
+ * Ken Turkowski, James A. Woods and Joe Orost. Instances are not thread safe, use one
+ * encoder per thread.
+ * @link	http://www.w3.org/Graphics/GIF/spec-gif89a.txt
+ */
+public class LzwEncoder {
+	/**
+	 * Max number of bits per code.
+	 */
+	private static final int MAX_BITS = 12;
+
+	/**
+	 * Number of codes available before the table must be cleared.
+	 */
+	private static final int MAX_CODE = 1 << MAX_BITS;
+
+	/**
+	 * Size of hash table, a prime giving 80% occupancy.
+	 */
+	private static final int HASH_SIZE = 5003;
+
+	/**
+	 * Shift used when hashing suffix and prefix.
+	 */
+	private static final int HASH_SHIFT = 4;
+
+	/**
+	 * Max length of a GIF data sub-block.
+	 */
+	private static final int BLOCK_SIZE = 255;
+
+	private final int[] _hashkeys = new int[HASH_SIZE];
+	private final int[] _hashcodes = new int[HASH_SIZE];
+	private final byte[] _block = new byte[BLOCK_SIZE];
+
+	private OutputStream _os;
+	private int _blocklength;
+	private int _accum, _accumbits;
+
+	private int _initbits, _codebits, _maxcode, _nextcode;
+	private int _clearcode, _eoicode;
+	private boolean _clear;
+
+	/**
+	 * Compress indexed pixels and write them as a GIF table based image data block.
+	 * @param	pixels	Color indexes to compress
+	 * @param	count	Number of pixels to compress
+	 * @param	depth	Number of bits per color index
+	 * @param	os		Stream to write the image data to
+	 */
+	public void encode(byte[] pixels, int count, int depth, OutputStream os) throws IOException {
+		final int mincodesize = Math.max(2, depth);
+		_os = os;
+		_blocklength = 0;
+		_accum = 0;
+		_accumbits = 0;
+
+		_initbits = mincodesize + 1;
+		_codebits = _initbits;
+		_maxcode = (1 << _codebits) - 1;
+		_clearcode = 1 << mincodesize;
+		_eoicode = _clearcode + 1;
+		_nextcode = _clearcode + 2;
+		_clear = false;
+
+		os.write(mincodesize);
+		Arrays.fill(_hashkeys, -1);
+		output(_clearcode);
+
+		if (count > 0) {
+			int prefix = pixels[0] & 0xff;
+
+			for (int i = 1; i < count; i++) {
+				final int suffix = pixels[i] & 0xff;
+				final int key = (suffix << MAX_BITS) + prefix;
+				int hi = (suffix << HASH_SHIFT) ^ prefix;
+
+				// Look for the string in the hash table
+				if (_hashkeys[hi] == key) {
+					prefix = _hashcodes[hi];
+					continue;
+				}
+
+				if (_hashkeys[hi] >= 0) {
+					// Secondary probe
+					final int disp = hi == 0 ? 1 : HASH_SIZE - hi;
+					boolean found = false;
+
+					do {
+						if ((hi -= disp) < 0) {
+							hi += HASH_SIZE;
+						}
+
+						if (_hashkeys[hi] == key) {
+							prefix = _hashcodes[hi];
+							found = true;
+							break;
+						}
+					} while (_hashkeys[hi] >= 0);
+
+					if (found) {
+						continue;
+					}
+				}
+
+				output(prefix);
+				prefix = suffix;
+
+				if (_nextcode < MAX_CODE) {
+					// Add the new string to the table
+					_hashcodes[hi] = _nextcode++;
+					_hashkeys[hi] = key;
+				}
+				else {
+					// Table is full, start over
+					Arrays.fill(_hashkeys, -1);
+					_nextcode = _clearcode + 2;
+					_clear = true;
+					output(_clearcode);
+				}
+			}
+
+			output(prefix);
+		}
+
+		output(_eoicode);
+
+		// Block terminator
+		os.write(0);
+		_os = null;
+	}
+
+	private void output(int code) throws IOException {
+		_accum |= code << _accumbits;
+		_accumbits += _codebits;
+
+		while (_accumbits >= 8) {
+			write(_accum & 0xff);
+			_accum >>= 8;
+			_accumbits -= 8;
+		}
+
+		// Increase the code size when the next code won't fit, or reset it after a clear
+		if (_nextcode > _maxcode || _clear) {
+			if (_clear) {
+				_codebits = _initbits;
+				_maxcode = (1 << _codebits) - 1;
+				_clear = false;
+			}
+			else {
+				_codebits++;
+				_maxcode = _codebits == MAX_BITS ? MAX_CODE : (1 << _codebits) - 1;
+			}
+		}
+
+		if (code == _eoicode) {
+			// Flush the remaining bits
+			while (_accumbits > 0) {
+				write(_accum & 0xff);
+				_accum >>= 8;
+				_accumbits -= 8;
+			}
+
+			flush();
+		}
+	}
+
+	private void write(int value) throws IOException {
+		_block[_blocklength++] = (byte)value;
+		if (_blocklength >= BLOCK_SIZE) {
+			flush();
+		}
+	}
+
+	private void flush() throws IOException {
+		if (_blocklength > 0) {
+			_os.write(_blocklength);
+			_os.write(_block, 0, _blocklength);
+			_blocklength = 0;
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package se.embargo.retroboy.graphic;
+
+import se.embargo.core.concurrent.IForBody;
+import se.embargo.core.concurrent.Parallel;
+
+/**
+ * Rotates, mirrors and scales images in multiples of 90 degrees using nearest neighbor sampling.
+ *
+ * Images are rotated clockwise, then mirrored horizontally and finally scaled to the output
+ * size. Each output pixel is read from a precomputed column and row offset into the input
+ * image, and the output is processed in square tiles to keep reads from the input in cache.
+ */
+public class PixelTransform {
+	/**
+	 * Side of a square output tile in pixels.
+	 */
+	private static final int TILE_SIZE = 32;
+
+	/**
+	 * Size of input and output images.
+	 */
+	public final int inputwidth, inputheight, width, height;
+
+	/**
+	 * Clockwise rotation in degrees.
+	 */
+	public final int rotate;
+
+	/**
+	 * True if the image is mirrored horizontally.
+	 */
+	public final boolean mirror;
+
+	/**
+	 * Input offsets of each output column and row.
+	 */
+	private final int[] _columns, _rows;
+
+	private final TransformBody _body = new TransformBody();
+	private int[] _input, _output;
+
+	/**
+	 * @param	inputwidth		Width of input image
+	 * @param	inputheight		Height of input image
+	 * @param	width			Width of output image
+	 * @param	height			Height of output image
+	 * @param	rotate			Clockwise rotation in degrees, a multiple of 90
+	 * @param	mirror			Mirror the image horizontally after rotating it
+	 */
+	public PixelTransform(int inputwidth, int inputheight, int width, int height, int rotate, boolean mirror) {
+		this.inputwidth = inputwidth;
+		this.inputheight = inputheight;
+		this.width = width;
+		this.height = height;
+		this.rotate = ((rotate % 360) + 360) % 360;
+		this.mirror = mirror;
+
+		if (this.rotate % 90 != 0) {
+			throw new IllegalArgumentException("Rotation must be a multiple of 90 degrees");
+		}
+
+		// Size of the rotated image before scaling
+		final boolean transpose = this.rotate == 90 || this.rotate == 270;
+		final int rotatedwidth = transpose ? inputheight : inputwidth,
+				  rotatedheight = transpose ? inputwidth : inputheight;
+
+		_columns = new int[width];
+		_rows = new int[height];
+
+		for (int x = 0; x < width; x++) {
+			final int rx = (int)((long)(mirror ? width - 1 - x : x) * rotatedwidth / width);
+			switch (this.rotate) {
+				case 0: _columns[x] = rx; break;
+				case 90: _columns[x] = (inputheight - 1 - rx) * inputwidth; break;
+				case 180: _columns[x] = inputwidth - 1 - rx; break;
+				case 270: _columns[x] = rx * inputwidth; break;
+			}
+		}
+
+		for (int y = 0; y < height; y++) {
+			final int ry = (int)((long)y * rotatedheight / height);
+			switch (this.rotate) {
+				case 0: _rows[y] = ry * inputwidth; break;
+				case 90: _rows[y] = ry; break;
+				case 180: _rows[y] = (inputheight - 1 - ry) * inputwidth; break;
+				case 270: _rows[y] = inputwidth - 1 - ry; break;
+			}
+		}
+	}
+
+	/**
+	 * Creates a transform that fits a rotated image within the given bounds.
+	 * @param	inputwidth		Width of input image
+	 * @param	inputheight		Height of input image
+	 * @param	maxwidth		Max width of input image after scaling, before rotation
+	 * @param	maxheight		Max height of input image after scaling, before rotation
+	 * @param	enlarge			Allow enlarging the image by an integer factor
+	 * @param	rotate			Clockwise rotation in degrees, a multiple of 90
+	 * @param	mirror			Mirror the image horizontally after rotating it
+	 * @return					A transform of the input image
+	 */
+	public static PixelTransform create(int inputwidth, int inputheight, int maxwidth, int maxheight, boolean enlarge, int rotate, boolean mirror) {
+		float scale = Math.min((float)maxwidth / inputwidth, (float)maxheight / inputheight);
+		if (scale >= 1) {
+			// Only scale up by whole multiples to keep dither patterns intact
+			scale = enlarge ? (float)Math.floor(scale) : 1;
+		}
+
+		final int width = Math.max(1, Math.round(inputwidth * scale)),
+				  height = Math.max(1, Math.round(inputheight * scale));
+
+		if (rotate % 180 != 0) {
+			return new PixelTransform(inputwidth, inputheight, height, width, rotate, mirror);
+		}
+
+		return new PixelTransform(inputwidth, inputheight, width, height, rotate, mirror);
+	}
+
+	/**
+	 * Transforms an image.
+	 * @param	input	Input image of inputwidth * inputheight pixels
+	 * @param	output	Output image of at least width * height pixels
+	 */
+	public synchronized void apply(int[] input, int[] output) {
+		if (input.length < inputwidth * inputheight || output.length < width * height) {
+			throw new IllegalArgumentException("Image buffers are too small for transform");
+		}
+
+		_input = input;
+		_output = output;
+		Parallel.forRange(_body, this, 0, (height + TILE_SIZE - 1) / TILE_SIZE);
+		_input = _output = null;
+	}
+
+	private class TransformBody implements IForBody<PixelTransform> {
+		@Override
+		public void run(PixelTransform item, int it, int last) {
+			final int[] input = _input, output = _output, columns = _columns, rows = _rows;
+			final int width = PixelTransform.this.width;
+			final int ylast = Math.min(last * TILE_SIZE, height);
+
+			for (int ty = it * TILE_SIZE; ty < ylast; ty += TILE_SIZE) {
+				final int ty2 = Math.min(ty + TILE_SIZE, ylast);
+
+				for (int tx = 0; tx < width; tx += TILE_SIZE) {
+					final int tx2 = Math.min(tx + TILE_SIZE, width);
+
+					for (int y = ty; y < ty2; y++) {
+						final int row = rows[y];
+
+						for (int x = tx, o = y * width + tx; x < tx2; x++, o++) {
+							output[o] = input[columns[x] + row];
+						}
+					}
+				}
+			}
+		}
+	}
+}
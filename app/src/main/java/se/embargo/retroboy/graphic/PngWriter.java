@@ -0,0 +1,555 @@
+package se.embargo.retroboy.graphic;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import se.embargo.core.concurrent.IForBody;
+import se.embargo.core.concurrent.Parallel;
+import se.embargo.core.graphic.color.IPalette;
+import se.embargo.retroboy.color.ColorTable;
+
+/**
+ * Writes images as PNG files, using an indexed color type whenever possible.
+ *
+ * Images with at most 256 distinct colors are written as palette images at 1, 2, 4 or
+ * 8 bits per pixel without row filters, which is what compresses dithered images best.
+ * Other images are written as 24-bit RGB with adaptively chosen row filters.
+ *
+ * The image data is split into chunks that are deflated in parallel. Each chunk is primed
+ * with the tail of the previous chunk as its dictionary and ends on a sync flush, so the
+ * chunks concatenate into a single zlib stream.
+ *
+ * Large images can be streamed in strips of rows using {@link #open(OutputStream, int, int, IPalette)}, 
+ * in which case the colors are taken from the palette and only one strip is held in memory.
+ *
+ * Images are expressed as ABGR integers (Alpha, Blue, Green, Red).
+ * @link	http://www.w3.org/TR/PNG/
+ */
+public class PngWriter {
+	private static final byte[] SIGNATURE = new byte[] {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+	/**
+	 * Max number of colors in a palette image.
+	 */
+	private static final int MAX_COLORS = 256;
+
+	/**
+	 * Size of the deflate sliding window.
+	 */
+	private static final int WINDOW_SIZE = 32768;
+
+	/**
+	 * Min number of bytes to deflate per chunk.
+	 */
+	private static final int MIN_CHUNK_SIZE = 65536;
+
+	/**
+	 * Row filter types.
+	 */
+	private static final int FILTER_NONE = 0, FILTER_SUB = 1, FILTER_UP = 2, FILTER_AVERAGE = 3, FILTER_PAETH = 4;
+
+	private final int _width, _height;
+	private int[] _image;
+
+	/**
+	 * Colors in the image, or null to write an RGB image.
+	 */
+	private ColorTable _palette;
+
+	/**
+	 * Bits per pixel and bytes per row, excluding the filter type byte.
+	 */
+	private int _depth, _rowbytes;
+
+	/**
+	 * Filtered scanlines to compress.
+	 */
+	private byte[] _raw;
+
+	/**
+	 * Compressed output of each chunk.
+	 */
+	private byte[][] _chunks;
+
+	/**
+	 * Compress chunks in parallel, requires Deflater.SYNC_FLUSH.
+	 */
+	private final boolean _parallel;
+
+	/**
+	 * State of a streamed image.
+	 */
+	private DataOutputStream _os;
+	private Deflater _deflater;
+	private Adler32 _adler;
+	private byte[] _output;
+	private int _rowswritten;
+
+	/**
+	 * Unfiltered last row of the previous strip, or null at the top of the image.
+	 */
+	private byte[] _previous;
+
+	/**
+	 * @param	image		Pixels of image
+	 * @param	width		Width of image
+	 * @param	height		Height of image
+	 * @param	parallel	Compress in parallel, requires Deflater.SYNC_FLUSH which is available from API level 19
+	 */
+	private PngWriter(int[] image, int width, int height, boolean parallel) {
+		_image = image;
+		_width = width;
+		_height = height;
+		_parallel = parallel;
+	}
+
+	/**
+	 * Writes an image as a PNG file.
+	 * @param	os			Stream to write to
+	 * @param	image		Pixels of image
+	 * @param	width		Width of image
+	 * @param	height		Height of image
+	 * @param	palette		Palette the image was rendered with, or null if unknown
+	 * @param	parallel	Compress in parallel, requires Deflater.SYNC_FLUSH which is available from API level 19
+	 */
+	public static void write(OutputStream os, int[] image, int width, int height, IPalette palette, boolean parallel) throws IOException {
+		PngWriter writer = new PngWriter(image, width, height, parallel);
+		writer.createPalette(palette);
+		writer.filter();
+		writer.compress();
+		writer.writeTo(os);
+	}
+
+	/**
+	 * Starts writing an image which is supplied in strips of rows.
+	 * @param	os			Stream to write to
+	 * @param	width		Width of image
+	 * @param	height		Height of image
+	 * @param	palette		Palette the image is rendered with, or null to write an RGB image
+	 * @return				A writer that accepts the rows of the image, see {@link #writeRows(int[], int)}
+	 */
+	public static PngWriter open(OutputStream os, int width, int height, IPalette palette) throws IOException {
+		PngWriter writer = new PngWriter(null, width, height, false);
+		writer._palette = ColorTable.create(palette);
+		
+		if (writer._palette != null) {
+			final int count = writer._palette.getColorCount();
+			writer._depth = count <= 2 ? 1 : (count <= 4 ? 2 : (count <= 16 ? 4 : 8));
+			writer._rowbytes = (width * writer._depth + 7) / 8;
+		}
+		else {
+			writer._depth = 8;
+			writer._rowbytes = width * 3;
+		}
+		
+		writer._os = new DataOutputStream(os);
+		writer._deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		writer._adler = new Adler32();
+		writer._output = new byte[WINDOW_SIZE];
+		writer.writeHeader(writer._os);
+		writeChunk(writer._os, "IDAT", new byte[] {0x78, (byte)0x9c}, 0, 2);
+		return writer;
+	}
+	
+	/**
+	 * Appends rows to a streamed image.
+	 * @param	image	Pixels of rows
+	 * @param	rows	Number of rows to write
+	 */
+	public void writeRows(int[] image, int rows) throws IOException {
+		if (_rowswritten + rows > _height) {
+			throw new IllegalArgumentException("Image has " + _height + " rows but " + (_rowswritten + rows) + " were written");
+		}
+		
+		final int length = (_rowbytes + 1) * rows;
+		if (_raw == null || _raw.length < length) {
+			_raw = new byte[length];
+		}
+		
+		_image = image;
+		if (_palette != null) {
+			Parallel.forRange(new IndexedBody(), this, 0, rows);
+		}
+		else {
+			Parallel.forRange(new RgbBody(), this, 0, rows);
+			
+			// Keep the last row to filter the first row of the next strip against
+			if (_previous == null) {
+				_previous = new byte[_rowbytes];
+			}
+			
+			unpack(image, (rows - 1) * _width, _width, _previous);
+		}
+		
+		_image = null;
+		_rowswritten += rows;
+		
+		// Deflate the scanlines without flushing
+		_adler.update(_raw, 0, length);
+		_deflater.setInput(_raw, 0, length);
+		while (!_deflater.needsInput()) {
+			final int count = _deflater.deflate(_output);
+			if (count > 0) {
+				writeChunk(_os, "IDAT", _output, 0, count);
+			}
+		}
+	}
+	
+	/**
+	 * Completes a streamed image after all rows have been written.
+	 */
+	public void finish() throws IOException {
+		if (_rowswritten != _height) {
+			throw new IllegalStateException("Image has " + _height + " rows but only " + _rowswritten + " were written");
+		}
+		
+		try {
+			_deflater.finish();
+			while (!_deflater.finished()) {
+				final int count = _deflater.deflate(_output);
+				if (count > 0) {
+					writeChunk(_os, "IDAT", _output, 0, count);
+				}
+			}
+		}
+		finally {
+			_deflater.end();
+		}
+		
+		final long checksum = _adler.getValue();
+		writeChunk(_os, "IDAT", new byte[] {
+			(byte)(checksum >> 24), (byte)(checksum >> 16), (byte)(checksum >> 8), (byte)checksum}, 0, 4);
+
+		writeChunk(_os, "IEND", new byte[0], 0, 0);
+		_os.flush();
+	}
+
+	/**
+	 * Collects the colors used in the image, ordered as in the palette when available.
+	 */
+	private void createPalette(IPalette palette) {
+		final int pixelcount = _width * _height;
+		final int[] colors = new int[MAX_COLORS];
+		int count = 0, prevcolor = ~(_image[0] | 0xff000000);
+		ColorTable table = new ColorTable(new int[0]);
+
+		for (int i = 0; i < pixelcount; i++) {
+			final int color = _image[i] | 0xff000000;
+			if (color != prevcolor) {
+				prevcolor = color;
+
+				if (table.indexOf(color) < 0) {
+					if (count >= MAX_COLORS) {
+						// Too many colors for a palette image
+						_depth = 8;
+						_rowbytes = _width * 3;
+						return;
+					}
+
+					colors[count++] = color;
+					table = new ColorTable(Arrays.copyOf(colors, count));
+				}
+			}
+		}
+
+		// Keep the order of the source palette to make indexes stable between images
+		final ColorTable source = ColorTable.create(palette);
+		final int[] result = Arrays.copyOf(colors, count);
+		if (source != null) {
+			final long[] keys = new long[count];
+			for (int i = 0; i < count; i++) {
+				final int index = source.indexOf(result[i]);
+				keys[i] = ((long)(index >= 0 ? index : MAX_COLORS + i) << 32) | (result[i] & 0xffffffffL);
+			}
+
+			Arrays.sort(keys);
+			for (int i = 0; i < count; i++) {
+				result[i] = (int)keys[i];
+			}
+		}
+
+		_palette = new ColorTable(result);
+		_depth = count <= 2 ? 1 : (count <= 4 ? 2 : (count <= 16 ? 4 : 8));
+		_rowbytes = (_width * _depth + 7) / 8;
+	}
+
+	/**
+	 * Packs and filters all scanlines.
+	 */
+	private void filter() {
+		_raw = new byte[(_rowbytes + 1) * _height];
+
+		if (_palette != null) {
+			Parallel.forRange(new IndexedBody(), this, 0, _height);
+		}
+		else {
+			Parallel.forRange(new RgbBody(), this, 0, _height);
+		}
+	}
+
+	/**
+	 * Deflates the scanlines, in parallel chunks if possible.
+	 */
+	private void compress() {
+		int chunkcount = 1;
+		if (_parallel) {
+			chunkcount = Math.max(1, Math.min(Parallel.getNumberOfCores() * 2, _raw.length / MIN_CHUNK_SIZE));
+		}
+
+		_chunks = new byte[chunkcount][];
+		if (chunkcount > 1) {
+			Parallel.forRange(new DeflateBody(), this, 0, chunkcount, 1);
+		}
+		else {
+			new DeflateBody().run(this, 0, 1);
+		}
+	}
+
+	private void writeTo(OutputStream os) throws IOException {
+		DataOutputStream dos = new DataOutputStream(os);
+		writeHeader(dos);
+
+		// Image data as a zlib stream with header, deflate chunks and checksum
+		Adler32 adler = new Adler32();
+		adler.update(_raw, 0, _raw.length);
+		writeChunk(dos, "IDAT", new byte[] {0x78, (byte)0x9c}, 0, 2);
+
+		for (byte[] chunk : _chunks) {
+			writeChunk(dos, "IDAT", chunk, 0, chunk.length);
+		}
+
+		final long checksum = adler.getValue();
+		writeChunk(dos, "IDAT", new byte[] {
+			(byte)(checksum >> 24), (byte)(checksum >> 16), (byte)(checksum >> 8), (byte)checksum}, 0, 4);
+
+		writeChunk(dos, "IEND", new byte[0], 0, 0);
+		dos.flush();
+	}
+
+	/**
+	 * Writes the signature, image header and palette.
+	 */
+	private void writeHeader(DataOutputStream dos) throws IOException {
+		dos.write(SIGNATURE);
+
+		// Image header
+		ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+		DataOutputStream hos = new DataOutputStream(header);
+		hos.writeInt(_width);
+		hos.writeInt(_height);
+		hos.writeByte(_depth);
+		hos.writeByte(_palette != null ? 3 : 2);
+		hos.writeByte(0);
+		hos.writeByte(0);
+		hos.writeByte(0);
+		writeChunk(dos, "IHDR", header.toByteArray(), 0, header.size());
+
+		// Palette
+		if (_palette != null) {
+			final int[] colors = _palette.getColors();
+			final byte[] plte = new byte[colors.length * 3];
+			for (int i = 0; i < colors.length; i++) {
+				plte[i * 3] = (byte)(colors[i] & 0xff);
+				plte[i * 3 + 1] = (byte)((colors[i] >> 8) & 0xff);
+				plte[i * 3 + 2] = (byte)((colors[i] >> 16) & 0xff);
+			}
+
+			writeChunk(dos, "PLTE", plte, 0, plte.length);
+		}
+	}
+
+	/**
+	 * Unpacks pixels into RGB bytes.
+	 */
+	private static void unpack(int[] image, int offset, int width, byte[] row) {
+		for (int x = 0, o = 0; x < width; x++) {
+			final int color = image[offset + x];
+			row[o++] = (byte)(color & 0xff);
+			row[o++] = (byte)((color >> 8) & 0xff);
+			row[o++] = (byte)((color >> 16) & 0xff);
+		}
+	}
+
+	private static void writeChunk(DataOutputStream os, String type, byte[] data, int offset, int length) throws IOException {
+		final byte[] typebytes = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(typebytes);
+		crc.update(data, offset, length);
+
+		os.writeInt(length);
+		os.write(typebytes);
+		os.write(data, offset, length);
+		os.writeInt((int)crc.getValue());
+	}
+
+	/**
+	 * Packs color indexes into scanlines without filtering.
+	 */
+	private class IndexedBody implements IForBody<PngWriter> {
+		@Override
+		public void run(PngWriter item, int it, int last) {
+			final int[] image = _image;
+			final byte[] raw = _raw;
+			final ColorTable palette = _palette;
+			final int width = _width, depth = _depth, stride = _rowbytes + 1;
+			final int perbyte = 8 / depth;
+
+			for (int y = it; y < last; y++) {
+				int o = y * stride;
+				raw[o++] = FILTER_NONE;
+
+				int prevcolor = image[y * width] + 1, previndex = 0;
+				for (int x = 0, i = y * width; x < width; o++) {
+					int value = 0;
+
+					for (int p = 0; p < perbyte; p++, x++, i++) {
+						value <<= depth;
+
+						if (x < width) {
+							final int color = image[i];
+							if (color != prevcolor) {
+								prevcolor = color;
+								previndex = palette.getIndex(color);
+							}
+
+							value |= previndex;
+						}
+					}
+
+					raw[o] = (byte)value;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes RGB scanlines with the filter type giving the smallest sum of absolute values.
+	 */
+	private class RgbBody implements IForBody<PngWriter> {
+		@Override
+		public void run(PngWriter item, int it, int last) {
+			final int[] image = _image;
+			final byte[] raw = _raw;
+			final int width = _width, rowbytes = _rowbytes, stride = rowbytes + 1;
+			final byte[] prev = new byte[rowbytes], cur = new byte[rowbytes];
+			final byte[][] filtered = new byte[5][rowbytes];
+
+			// Unfiltered previous row, which may be the last row of the previous strip
+			if (it > 0) {
+				unpack(image, (it - 1) * width, width, prev);
+			}
+			else if (_previous != null) {
+				System.arraycopy(_previous, 0, prev, 0, rowbytes);
+			}
+			
+			final boolean top = _previous == null;
+
+			for (int y = it; y < last; y++) {
+				unpack(image, y * width, width, cur);
+
+				// Try all filter types
+				long bestsum = Long.MAX_VALUE;
+				int best = FILTER_NONE;
+
+				for (int type = FILTER_NONE; type <= FILTER_PAETH; type++) {
+					final byte[] out = filtered[type];
+					long sum = 0;
+
+					for (int i = 0; i < rowbytes; i++) {
+						final int a = i >= 3 ? cur[i - 3] & 0xff : 0,
+								  b = y > 0 || !top ? prev[i] & 0xff : 0,
+								  c = i >= 3 && (y > 0 || !top) ? prev[i - 3] & 0xff : 0,
+								  x = cur[i] & 0xff;
+
+						int value;
+						switch (type) {
+							case FILTER_SUB: value = x - a; break;
+							case FILTER_UP: value = x - b; break;
+							case FILTER_AVERAGE: value = x - ((a + b) >> 1); break;
+							case FILTER_PAETH: value = x - paeth(a, b, c); break;
+							default: value = x; break;
+						}
+
+						out[i] = (byte)value;
+						sum += Math.abs((int)(byte)value);
+					}
+
+					if (sum < bestsum) {
+						bestsum = sum;
+						best = type;
+					}
+				}
+
+				raw[y * stride] = (byte)best;
+				System.arraycopy(filtered[best], 0, raw, y * stride + 1, rowbytes);
+				System.arraycopy(cur, 0, prev, 0, rowbytes);
+			}
+		}
+
+		private int paeth(int a, int b, int c) {
+			final int p = a + b - c, pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+			if (pa <= pb && pa <= pc) {
+				return a;
+			}
+
+			return pb <= pc ? b : c;
+		}
+	}
+
+	/**
+	 * Deflates a range of chunks of the filtered scanlines.
+	 */
+	private class DeflateBody implements IForBody<PngWriter> {
+		@Override
+		public void run(PngWriter item, int it, int last) {
+			final byte[] raw = _raw;
+			final int chunkcount = _chunks.length;
+			final byte[] buffer = new byte[WINDOW_SIZE];
+
+			for (int chunk = it; chunk < last; chunk++) {
+				final int first = (int)((long)raw.length * chunk / chunkcount),
+						  end = (int)((long)raw.length * (chunk + 1) / chunkcount);
+				final boolean finish = chunk == chunkcount - 1;
+
+				Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+				ByteArrayOutputStream os = new ByteArrayOutputStream((end - first) / 4 + 64);
+
+				try {
+					// Prime the dictionary with the data preceding this chunk
+					if (first > 0) {
+						final int dictionary = Math.min(first, WINDOW_SIZE);
+						deflater.setDictionary(raw, first - dictionary, dictionary);
+					}
+
+					deflater.setInput(raw, first, end - first);
+					if (finish) {
+						deflater.finish();
+
+						while (!deflater.finished()) {
+							os.write(buffer, 0, deflater.deflate(buffer));
+						}
+					}
+					else {
+						// Flush to a byte boundary so the next chunk can follow directly
+						int length;
+						do {
+							length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+							os.write(buffer, 0, length);
+						} while (length == buffer.length || !deflater.needsInput());
+					}
+				}
+				finally {
+					deflater.end();
+				}
+
+				_chunks[chunk] = os.toByteArray();
+			}
+		}
+	}
+}
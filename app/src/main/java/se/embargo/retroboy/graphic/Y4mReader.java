@@ -0,0 +1,194 @@
+package se.embargo.retroboy.graphic;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads 4:2:0 YUV4MPEG2 video and converts the frames to the NV21 layout of camera preview frames.
+ *
+ * The planar I420 frames of the stream are rearranged into a full resolution Y plane followed by
+ * interleaved V and U samples, which is what {@link se.embargo.retroboy.filter.YuvFilter} expects.
+ */
+public class Y4mReader {
+	private static final String MAGIC = "YUV4MPEG2";
+	private static final String FRAME = "FRAME";
+
+	/**
+	 * Max length of a header line.
+	 */
+	private static final int MAX_LINE_LENGTH = 1024;
+
+	private final InputStream _is;
+	private final int _width, _height;
+	private final int _ratenum, _rateden;
+
+	/**
+	 * Planar U and V samples of the current frame.
+	 */
+	private final byte[] _chroma;
+
+	/**
+	 * @param	is	Stream to read from, it's closed by {@link #close()}
+	 */
+	public Y4mReader(InputStream is) throws IOException {
+		_is = new BufferedInputStream(is, 64 * 1024);
+
+		String[] params = readLine().split(" ");
+		if (!MAGIC.equals(params[0])) {
+			throw new IOException("Not a YUV4MPEG2 stream");
+		}
+
+		int width = 0, height = 0, ratenum = 25, rateden = 1;
+		for (int i = 1; i < params.length; i++) {
+			final String param = params[i];
+			if (param.length() < 2) {
+				continue;
+			}
+
+			final String value = param.substring(1);
+			switch (param.charAt(0)) {
+				case 'W':
+					width = Integer.parseInt(value);
+					break;
+
+				case 'H':
+					height = Integer.parseInt(value);
+					break;
+
+				case 'F': {
+					String[] rate = value.split(":");
+					ratenum = Integer.parseInt(rate[0]);
+					rateden = rate.length > 1 ? Integer.parseInt(rate[1]) : 1;
+					break;
+				}
+
+				case 'I':
+					if (!"p".equals(value) && !"?".equals(value)) {
+						throw new IOException("Interlaced YUV4MPEG2 streams are not supported");
+					}
+					break;
+
+				case 'C':
+					// The 8-bit 4:2:0 variants differ only in chroma siting, while 420p10 and deeper use 16-bit samples
+					if (!value.equals("420") && !value.equals("420jpeg") && !value.equals("420mpeg2") && !value.equals("420paldv")) {
+						throw new IOException("Unsupported YUV4MPEG2 colorspace: " + value);
+					}
+					break;
+			}
+		}
+
+		if (width <= 0 || height <= 0 || (width & 1) != 0 || (height & 1) != 0) {
+			throw new IOException("Unsupported YUV4MPEG2 frame size: " + width + "x" + height);
+		}
+
+		_width = width;
+		_height = height;
+		_ratenum = Math.max(ratenum, 1);
+		_rateden = Math.max(rateden, 1);
+		_chroma = new byte[width * height / 2];
+	}
+
+	public int getWidth() {
+		return _width;
+	}
+
+	public int getHeight() {
+		return _height;
+	}
+
+	/**
+	 * @return	Frame rate numerator.
+	 */
+	public int getRateNumerator() {
+		return _ratenum;
+	}
+
+	/**
+	 * @return	Frame rate denominator.
+	 */
+	public int getRateDenominator() {
+		return _rateden;
+	}
+
+	/**
+	 * @return	Time to display each frame in nanoseconds.
+	 */
+	public long getFrameDuration() {
+		return 1000000000L * _rateden / _ratenum;
+	}
+
+	/**
+	 * @return	Number of bytes in a NV21 frame.
+	 */
+	public int getFrameSize() {
+		return _width * _height * 3 / 2;
+	}
+
+	/**
+	 * Reads the next frame.
+	 * @param	frame	Receives the frame in NV21 layout, must hold at least {@link #getFrameSize()} bytes
+	 * @return			False at the end of the stream
+	 */
+	public boolean read(byte[] frame) throws IOException {
+		// Check for the end of stream before the frame header
+		_is.mark(1);
+		if (_is.read() < 0) {
+			return false;
+		}
+		_is.reset();
+
+		String header = readLine();
+		if (!header.startsWith(FRAME)) {
+			throw new IOException("Invalid YUV4MPEG2 frame header: " + header);
+		}
+
+		// Luminance is stored as is
+		final int lumsize = _width * _height, chromasize = lumsize / 4;
+		readFully(frame, 0, lumsize);
+		readFully(_chroma, 0, chromasize * 2);
+
+		// Interleave the V and U planes
+		final byte[] chroma = _chroma;
+		for (int i = 0, o = lumsize; i < chromasize; i++, o += 2) {
+			frame[o] = chroma[i + chromasize];
+			frame[o + 1] = chroma[i];
+		}
+
+		return true;
+	}
+
+	public void close() throws IOException {
+		_is.close();
+	}
+
+	private String readLine() throws IOException {
+		StringBuilder result = new StringBuilder();
+		for (int ch = _is.read(); ch != '\n'; ch = _is.read()) {
+			if (ch < 0) {
+				throw new EOFException("Unexpected end of YUV4MPEG2 stream");
+			}
+
+			if (result.length() >= MAX_LINE_LENGTH) {
+				throw new IOException("YUV4MPEG2 header is too long");
+			}
+
+			result.append((char)ch);
+		}
+
+		return result.toString();
+	}
+
+	private void readFully(byte[] buffer, int offset, int length) throws IOException {
+		while (length > 0) {
+			int count = _is.read(buffer, offset, length);
+			if (count < 0) {
+				throw new EOFException("Truncated YUV4MPEG2 frame");
+			}
+
+			offset += count;
+			length -= count;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package se.embargo.retroboy.graphic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes images as 4:2:0 YUV4MPEG2 video.
+ *
+ * Images are expressed as ABGR integers (Alpha, Blue, Green, Red) and are converted using
+ * the studio range BT.601 coefficients, the inverse of {@link se.embargo.retroboy.filter.YuvFilter}.
+ */
+public class Y4mWriter {
+	private static final byte[] FRAME = {'F', 'R', 'A', 'M', 'E', '\n'};
+
+	private final OutputStream _os;
+	private final int _width, _height;
+
+	/**
+	 * Planar I420 frame.
+	 */
+	private final byte[] _frame;
+
+	/**
+	 * @param	os		Stream to write to
+	 * @param	width	Width of all frames
+	 * @param	height	Height of all frames
+	 * @param	ratenum	Frame rate numerator
+	 * @param	rateden	Frame rate denominator
+	 */
+	public Y4mWriter(OutputStream os, int width, int height, int ratenum, int rateden) throws IOException {
+		_os = os;
+		_width = width;
+		_height = height;
+		_frame = new byte[width * height + ((width + 1) / 2) * ((height + 1) / 2) * 2];
+
+		String header = "YUV4MPEG2 W" + width + " H" + height + " F" + ratenum + ":" + rateden + " Ip A1:1 C420jpeg\n";
+		_os.write(header.getBytes("US-ASCII"));
+	}
+
+	/**
+	 * Add a frame to the video.
+	 * @param	image	Pixels of frame
+	 */
+	public void write(int[] image) throws IOException {
+		final int width = _width, height = _height, lumsize = width * height;
+		final int chromawidth = (width + 1) / 2, chromaheight = (height + 1) / 2, chromasize = chromawidth * chromaheight;
+		final byte[] frame = _frame;
+
+		for (int i = 0; i < lumsize; i++) {
+			final int color = image[i], r = color & 0xff, g = (color >> 8) & 0xff, b = (color >> 16) & 0xff;
+			frame[i] = (byte)(((66 * r + 129 * g + 25 * b + 128) >> 8) + 16);
+		}
+
+		// Average the chroma of each 2x2 block, repeating the last row and column of odd sizes
+		for (int y = 0, uv = lumsize; y < height; y += 2) {
+			final int row0 = y * width, row1 = Math.min(y + 1, height - 1) * width;
+
+			for (int x = 0; x < width; x += 2, uv++) {
+				final int x1 = Math.min(x + 1, width - 1);
+				final int c0 = image[row0 + x], c1 = image[row0 + x1], c2 = image[row1 + x], c3 = image[row1 + x1];
+				final int r = ((c0 & 0xff) + (c1 & 0xff) + (c2 & 0xff) + (c3 & 0xff) + 2) >> 2,
+						  g = (((c0 >> 8) & 0xff) + ((c1 >> 8) & 0xff) + ((c2 >> 8) & 0xff) + ((c3 >> 8) & 0xff) + 2) >> 2,
+						  b = (((c0 >> 16) & 0xff) + ((c1 >> 16) & 0xff) + ((c2 >> 16) & 0xff) + ((c3 >> 16) & 0xff) + 2) >> 2;
+				frame[uv] = (byte)(((-38 * r - 74 * g + 112 * b + 128) >> 8) + 128);
+				frame[uv + chromasize] = (byte)(((112 * r - 94 * g - 18 * b + 128) >> 8) + 128);
+			}
+		}
+
+		_os.write(FRAME);
+		_os.write(frame);
+	}
+
+	/**
+	 * Flushes the output stream, the stream is not closed.
+	 */
+	public void finish() throws IOException {
+		_os.flush();
+	}
+}
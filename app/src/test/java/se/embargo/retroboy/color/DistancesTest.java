@@ -0,0 +1,115 @@
+package se.embargo.retroboy.color;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the integer forms of the color distances against the double formulas they replaced.
+ */
+public class DistancesTest {
+	private static final int[][] PALETTES = {
+		Palettes.BINARY,
+		Palettes.GAMEBOY_CAMERA,
+		Palettes.GAMEBOY_SCREEN,
+		Palettes.GAMEBOY_SCREEN_DESAT,
+		Palettes.POP_ART,
+		Palettes.CHRONO_CROSS,
+		Palettes.COMMODORE_64,
+		Palettes.COMMODORE_64_GAMMA_ADJUSTED,
+		Palettes.AMSTRAD_CPC464,
+	};
+
+	@Test
+	public void testYuvMatchesDoubleFormula() {
+		Random random = new Random(0);
+		for (int i = 0; i < 1000000; i++) {
+			int r1 = random.nextInt(256), g1 = random.nextInt(256), b1 = random.nextInt(256),
+				r2 = random.nextInt(256), g2 = random.nextInt(256), b2 = random.nextInt(256);
+			assertEquals(yuv(r1, g1, b1, r2, g2, b2), Distances.YUV.get(r1, g1, b1, r2, g2, b2), 0);
+		}
+	}
+
+	@Test
+	public void testLuvMatchesDoubleFormula() {
+		Random random = new Random(0);
+		for (int i = 0; i < 1000000; i++) {
+			int r1 = random.nextInt(256), g1 = random.nextInt(256), b1 = random.nextInt(256),
+				r2 = random.nextInt(256), g2 = random.nextInt(256), b2 = random.nextInt(256);
+			assertEquals(luv(r1, g1, b1, r2, g2, b2), Distances.LUV.get(r1, g1, b1, r2, g2, b2), 0);
+		}
+	}
+
+	@Test
+	public void testYuvNearestIndexOverCube() {
+		for (int[] colors : PALETTES) {
+			DistancePalette palette = new DistancePalette(Distances.YUV, colors);
+			for (int color = 0; color < 0x1000000; color++) {
+				int r = color & 0xff, g = (color >> 8) & 0xff, b = (color >> 16) & 0xff;
+				int expected = 0;
+				double mindistance = Double.MAX_VALUE;
+
+				for (int i = 0; i < colors.length; i++) {
+					double distance = yuv(r, g, b, colors[i] & 0xff, (colors[i] >> 8) & 0xff, (colors[i] >> 16) & 0xff);
+					if (distance < mindistance) {
+						expected = i;
+						mindistance = distance;
+					}
+				}
+
+				if (palette.getNearestIndex(r, g, b) != expected) {
+					assertEquals("Nearest index of " + Integer.toHexString(color), expected, palette.getNearestIndex(r, g, b));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testLuvNearestIndexOverCube() {
+		for (int[] colors : PALETTES) {
+			DistancePalette palette = new DistancePalette(Distances.LUV, colors);
+			for (int color = 0; color < 0x1000000; color++) {
+				int r = color & 0xff, g = (color >> 8) & 0xff, b = (color >> 16) & 0xff;
+				int expected = 0;
+				double mindistance = Double.MAX_VALUE;
+
+				for (int i = 0; i < colors.length; i++) {
+					double distance = luv(r, g, b, colors[i] & 0xff, (colors[i] >> 8) & 0xff, (colors[i] >> 16) & 0xff);
+					if (distance < mindistance) {
+						expected = i;
+						mindistance = distance;
+					}
+				}
+
+				if (palette.getNearestIndex(r, g, b) != expected) {
+					assertEquals("Nearest index of " + Integer.toHexString(color), expected, palette.getNearestIndex(r, g, b));
+				}
+			}
+		}
+	}
+
+	/**
+	 * YUV distance as computed before the integer form.
+	 */
+	private static double yuv(int r1,int g1,int b1, int r2,int g2,int b2) {
+		final double dr = r1 - r2,
+					 dg = g1 - g2,
+					 db = b1 - b2;
+
+		return Math.sqrt(3d * dr * dr + 4d * dg * dg + 2d * db * db);
+	}
+
+	/**
+	 * LUV distance as computed before the integer form.
+	 */
+	private static double luv(int r1,int g1,int b1, int r2,int g2,int b2) {
+		final double mr = ((double)(r1 + r2)) / 2;
+		final double dr = r1 - r2,
+					 dg = g1 - g2,
+					 db = b1 - b2;
+
+		return Math.sqrt((2d + mr / 256d) * dr * dr + 4d * dg * dg + (2d + (255d - mr) / 256d) * db * db);
+	}
+}
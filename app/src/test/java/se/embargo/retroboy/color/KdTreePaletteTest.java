@@ -0,0 +1,78 @@
+package se.embargo.retroboy.color;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that the k-d tree search finds the same color as the linear scan.
+ */
+public class KdTreePaletteTest {
+	@Test
+	public void testRandomPalette() {
+		Random random = new Random(0);
+		int[] colors = new int[256];
+		for (int i = 0; i < colors.length; i++) {
+			colors[i] = 0xff000000 | random.nextInt(0x1000000);
+		}
+
+		assertSameOverCube(Distances.YUV, colors);
+		assertSameOverCube(Distances.LUV, colors);
+	}
+
+	@Test
+	public void testDuplicateColors() {
+		// Every color appears twice, so the lowest of the two indexes must win
+		Random random = new Random(1);
+		int[] colors = new int[128];
+		for (int i = 0; i < colors.length / 2; i++) {
+			colors[i] = 0xff000000 | random.nextInt(0x1000000);
+		}
+
+		System.arraycopy(colors, 0, colors, colors.length / 2, colors.length / 2);
+		shuffle(colors, random);
+		assertSameOverCube(Distances.LUV, colors);
+	}
+
+	@Test
+	public void testTiedColors() {
+		// Colors halfway between grid points are equally near to two or more of them
+		int[] colors = new int[6 * 6 * 6];
+		for (int i = 0; i < colors.length; i++) {
+			colors[i] = 0xff000000 | ((i / 36) * 50 << 16) | ((i / 6 % 6) * 50 << 8) | (i % 6) * 50;
+		}
+
+		shuffle(colors, new Random(2));
+		assertSameOverCube(Distances.YUV, colors);
+	}
+
+	@Test
+	public void testSmallPalettes() {
+		assertSameOverCube(Distances.YUV, new int[] {0xff808080});
+		assertSameOverCube(Distances.YUV, new int[] {0xff000000, 0xff000000});
+		assertSameOverCube(Distances.LUV, Palettes.AMSTRAD_CPC464);
+	}
+
+	private static void assertSameOverCube(IColorMetric metric, int[] colors) {
+		DistancePalette scan = new DistancePalette(metric, colors);
+		KdTreePalette tree = new KdTreePalette(metric, colors);
+
+		for (int color = 0; color < 0x1000000; color++) {
+			int r = color & 0xff, g = (color >> 8) & 0xff, b = (color >> 16) & 0xff;
+			int expected = scan.getNearestIndex(r, g, b), actual = tree.getNearestIndex(r, g, b);
+			if (expected != actual) {
+				assertEquals("Nearest index of " + Integer.toHexString(color) + " by " + metric, expected, actual);
+			}
+		}
+	}
+
+	private static void shuffle(int[] colors, Random random) {
+		for (int i = colors.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1), color = colors[i];
+			colors[i] = colors[j];
+			colors[j] = color;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package se.embargo.retroboy.color;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks the CIELAB distances against published reference values.
+ */
+public class LabDistanceTest {
+	/**
+	 * Lab pairs and their CIEDE2000 distance from G. Sharma, W. Wu and E. N. Dalal, "The CIEDE2000
+	 * color-difference formula: Implementation notes, supplementary test data, and mathematical
+	 * observations", which cover the hue angle and mean hue edge cases.
+	 */
+	private static final double[][] SHARMA_PAIRS = {
+		{50.0000,   2.6772, -79.7751,  50.0000,   0.0000, -82.7485,   2.0425},
+		{50.0000,   3.1571, -77.2803,  50.0000,   0.0000, -82.7485,   2.8615},
+		{50.0000,   2.8361, -74.0200,  50.0000,   0.0000, -82.7485,   3.4412},
+		{50.0000,  -1.3802, -84.2814,  50.0000,   0.0000, -82.7485,   1.0000},
+		{50.0000,  -1.1848, -84.8006,  50.0000,   0.0000, -82.7485,   1.0000},
+		{50.0000,  -0.9009, -85.5211,  50.0000,   0.0000, -82.7485,   1.0000},
+		{50.0000,   0.0000,   0.0000,  50.0000,  -1.0000,   2.0000,   2.3669},
+		{50.0000,  -1.0000,   2.0000,  50.0000,   0.0000,   0.0000,   2.3669},
+		{50.0000,   2.4900,  -0.0010,  50.0000,  -2.4900,   0.0009,   7.1792},
+		{50.0000,   2.4900,  -0.0010,  50.0000,  -2.4900,   0.0010,   7.1792},
+		{50.0000,   2.4900,  -0.0010,  50.0000,  -2.4900,   0.0011,   7.2195},
+		{50.0000,   2.4900,  -0.0010,  50.0000,  -2.4900,   0.0012,   7.2195},
+		{50.0000,  -0.0010,   2.4900,  50.0000,   0.0009,  -2.4900,   4.8045},
+		{50.0000,  -0.0010,   2.4900,  50.0000,   0.0010,  -2.4900,   4.8045},
+		{50.0000,  -0.0010,   2.4900,  50.0000,   0.0011,  -2.4900,   4.7461},
+		{50.0000,   2.5000,   0.0000,  50.0000,   0.0000,  -2.5000,   4.3065},
+		{50.0000,   2.5000,   0.0000,  73.0000,  25.0000, -18.0000,  27.1492},
+		{50.0000,   2.5000,   0.0000,  61.0000,  -5.0000,  29.0000,  22.8977},
+		{50.0000,   2.5000,   0.0000,  56.0000, -27.0000,  -3.0000,  31.9030},
+		{50.0000,   2.5000,   0.0000,  58.0000,  24.0000,  15.0000,  19.4535},
+		{50.0000,   2.5000,   0.0000,  50.0000,   3.1736,   0.5854,   1.0000},
+		{50.0000,   2.5000,   0.0000,  50.0000,   3.2972,   0.0000,   1.0000},
+		{50.0000,   2.5000,   0.0000,  50.0000,   1.8634,   0.5757,   1.0000},
+		{50.0000,   2.5000,   0.0000,  50.0000,   3.2592,   0.3350,   1.0000},
+		{60.2574, -34.0099,  36.2677,  60.4626, -34.1751,  39.4387,   1.2644},
+		{63.0109, -31.0961,  -5.8663,  62.8187, -29.7946,  -4.0864,   1.2630},
+		{61.2901,   3.7196,  -5.3901,  61.4292,   2.2480,  -4.9620,   1.8731},
+		{35.0831, -44.1164,   3.7933,  35.0232, -40.0716,   1.5901,   1.8645},
+		{22.7233,  20.0904, -46.6940,  23.0331,  14.9730, -42.5619,   2.0373},
+		{36.4612,  47.8580,  18.3852,  36.2715,  50.5065,  21.2231,   1.4146},
+		{90.8027,  -2.0831,   1.4410,  91.1528,  -1.6435,   0.0447,   1.4441},
+		{90.9257,  -0.5406,  -0.9208,  88.6381,  -0.8985,  -0.7239,   1.5381},
+		{ 6.7747,  -0.2908,  -2.4247,   5.8714,  -0.0985,  -2.2286,   0.6377},
+		{ 2.0776,   0.0795,  -1.1350,   0.9033,  -0.0636,  -0.5514,   0.9082},
+	};
+
+	@Test
+	public void testCiede2000MatchesSharmaPairs() {
+		for (int i = 0; i < SHARMA_PAIRS.length; i++) {
+			double[] p = SHARMA_PAIRS[i];
+			assertEquals("Pair " + (i + 1), p[6], Distances.CIEDE2000.get(p[0], p[1], p[2], p[3], p[4], p[5]), 1e-4);
+			assertEquals("Pair " + (i + 1) + " swapped", p[6], Distances.CIEDE2000.get(p[3], p[4], p[5], p[0], p[1], p[2]), 1e-4);
+		}
+	}
+
+	@Test
+	public void testCie76() {
+		assertEquals(0, Distances.CIE76.get(50d, 2.5d, 0d, 50d, 2.5d, 0d), 0);
+		assertEquals(13, Distances.CIE76.get(50d, 0d, 0d, 53d, 4d, -12d), 1e-12);
+	}
+
+	@Test
+	public void testLabTablesMatchExactConversion() {
+		double[] lab = new double[3];
+		for (int color = 0; color < 0x1000000; color += 0x010307) {
+			int r = color & 0xff, g = (color >> 8) & 0xff, b = (color >> 16) & 0xff;
+			LabDistance.toLab(r, g, b, lab, 0);
+
+			double[] expected = toLab(r, g, b);
+			assertEquals("L of " + Integer.toHexString(color), expected[0], lab[0], 0.005);
+			assertEquals("a of " + Integer.toHexString(color), expected[1], lab[1], 0.005);
+			assertEquals("b of " + Integer.toHexString(color), expected[2], lab[2], 0.005);
+		}
+	}
+
+	/**
+	 * sRGB to Lab under D65 with pow() and cbrt(), as the tables approximate it.
+	 */
+	private static double[] toLab(int r, int g, int b) {
+		double lr = linear(r), lg = linear(g), lb = linear(b);
+		double x = (0.4124564d * lr + 0.3575761d * lg + 0.1804375d * lb) / 0.95047d,
+			   y = 0.2126729d * lr + 0.7151522d * lg + 0.0721750d * lb,
+			   z = (0.0193339d * lr + 0.1191920d * lg + 0.9503041d * lb) / 1.08883d;
+
+		return new double[] {116d * f(y) - 16d, 500d * (f(x) - f(y)), 200d * (f(y) - f(z))};
+	}
+
+	private static double linear(int c) {
+		double v = c / 255d;
+		return v <= 0.04045d ? v / 12.92d : Math.pow((v + 0.055d) / 1.055d, 2.4d);
+	}
+
+	private static double f(double t) {
+		return t > 216d / 24389d ? Math.cbrt(t) : t * 24389d / 3132d + 4d / 29d;
+	}
+}
@@ -0,0 +1,131 @@
+package se.embargo.retroboy.color;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import se.embargo.core.graphic.color.IColorQuantizer;
+
+/**
+ * Checks the palettes selected by the histogram quantizers.
+ */
+public class QuantizerTest {
+	@Test
+	public void testFewColorsAreKept() {
+		// Colors on the 4 bit grid are left alone when snapped to the palette
+		int[] colors = {0x000000, 0xf0f0f0, 0x0050a0, 0xa05000};
+		int[] image = new int[64 * 64];
+		for (int i = 0; i < image.length; i++) {
+			image[i] = 0xff000000 | colors[(i / 7) % colors.length];
+		}
+
+		for (IColorQuantizer quantizer : createQuantizers()) {
+			quantizer.sample(new BitPalette(4), image, image.length, 1);
+			int[] palette = quantizer.getPalette();
+			for (int color : colors) {
+				assertTrue(quantizer.getClass().getSimpleName() + " lost " + Integer.toHexString(color), contains(palette, color));
+			}
+		}
+	}
+
+	@Test
+	public void testColorsAreSnappedToPalette() {
+		int[] image = createImage(new Random(0), 320, 240);
+		for (int bits = 1; bits <= 5; bits++) {
+			BitPalette bitpalette = new BitPalette(bits);
+			for (IColorQuantizer quantizer : createQuantizers()) {
+				quantizer.sample(bitpalette, image, image.length, 10);
+				int[] palette = quantizer.getPalette();
+				assertTrue(palette.length >= 1 && palette.length <= bitpalette.getColorCount());
+
+				for (int color : palette) {
+					assertEquals(color, bitpalette.getNearestColor(color & 0xff, (color >> 8) & 0xff, (color >> 16) & 0xff));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testResamplingKeepsError() {
+		// The warm start refines the previous palette, which shouldn't degrade while the image stays the same
+		int[] image = createImage(new Random(1), 320, 240);
+		for (IColorQuantizer quantizer : createQuantizers()) {
+			quantizer.sample(new BitPalette(5), image, image.length, 10);
+			double first = getError(image, quantizer.getPalette());
+
+			for (int i = 0; i < 4; i++) {
+				quantizer.sample(new BitPalette(5), image, image.length, 10);
+				assertEquals(quantizer.getClass().getSimpleName(), first, getError(image, quantizer.getPalette()), first * 0.02);
+			}
+		}
+	}
+
+	@Test
+	public void testMoreColorsReduceError() {
+		int[] image = createImage(new Random(2), 320, 240);
+		for (int i = 0; i < 2; i++) {
+			double previous = Double.MAX_VALUE;
+			for (int bits = 2; bits <= 5; bits++) {
+				IColorQuantizer quantizer = createQuantizers()[i];
+				quantizer.sample(new BitPalette(bits), image, image.length, 1);
+				double error = getError(image, quantizer.getPalette());
+				assertTrue(quantizer.getClass().getSimpleName() + " with " + (1 << bits) + " colors", error < previous);
+				previous = error;
+			}
+		}
+	}
+
+	@Test
+	public void testEmptyImage() {
+		for (IColorQuantizer quantizer : createQuantizers()) {
+			quantizer.sample(new BitPalette(4), new int[0], 0, 10);
+			assertEquals(1, quantizer.getPalette().length);
+		}
+	}
+
+	private static IColorQuantizer[] createQuantizers() {
+		return new IColorQuantizer[] {new MedianCutQuantizer(), new OctreeQuantizer()};
+	}
+
+	private static boolean contains(int[] palette, int color) {
+		int[] sorted = palette.clone();
+		Arrays.sort(sorted);
+		return Arrays.binarySearch(sorted, color) >= 0;
+	}
+
+	/**
+	 * @return	The mean YUV distance from each pixel to its nearest palette color.
+	 */
+	private static double getError(int[] image, int[] colors) {
+		DistancePalette palette = new DistancePalette(Distances.YUV, colors);
+		double sum = 0;
+		for (int pixel : image) {
+			int r = pixel & 0xff, g = (pixel >> 8) & 0xff, b = (pixel >> 16) & 0xff;
+			int color = palette.getNearestColor(r, g, b);
+			sum += Distances.YUV.get(r, g, b, color & 0xff, (color >> 8) & 0xff, (color >> 16) & 0xff);
+		}
+
+		return sum / image.length;
+	}
+
+	/**
+	 * @return	Gradients with some noise, like a camera frame.
+	 */
+	private static int[] createImage(Random random, int width, int height) {
+		int[] image = new int[width * height];
+		for (int y = 0, i = 0; y < height; y++) {
+			for (int x = 0; x < width; x++, i++) {
+				int r = Math.min(x * 255 / width + random.nextInt(16), 255),
+					g = Math.min(y * 255 / height + random.nextInt(16), 255),
+					b = Math.min((x + y) * 255 / (width + height) + random.nextInt(16), 255);
+				image[i] = 0xff000000 | (b << 16) | (g << 8) | r;
+			}
+		}
+
+		return image;
+	}
+}
@@ -0,0 +1,101 @@
+package se.embargo.retroboy.graphic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks the transforms against an image that's rotated, mirrored and scaled one step at a time.
+ */
+public class PixelTransformTest {
+	private static final int[] ROTATIONS = {0, 90, 180, 270, -90, 450};
+
+	@Test
+	public void testRotationsMirrorsAndScales() {
+		// Odd sizes that span several tiles once scaled
+		final int inputwidth = 37, inputheight = 23;
+		int[] input = new int[inputwidth * inputheight];
+		for (int i = 0; i < input.length; i++) {
+			input[i] = 0xff000000 | i;
+		}
+
+		for (int rotate : ROTATIONS) {
+			for (boolean mirror : new boolean[] {false, true}) {
+				for (int scale = 1; scale <= 4; scale++) {
+					int[] expected = transform(input, inputwidth, inputheight, rotate, mirror, scale);
+					boolean transpose = (rotate / 90) % 2 != 0;
+					int width = (transpose ? inputheight : inputwidth) * scale, height = (transpose ? inputwidth : inputheight) * scale;
+
+					PixelTransform transform = new PixelTransform(inputwidth, inputheight, width, height, rotate, mirror);
+					int[] output = new int[width * height];
+					transform.apply(input, output);
+					assertArrayEquals("rotate " + rotate + ", mirror " + mirror + ", scale " + scale, expected, output);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCreateFitsBounds() {
+		// Shrinks to fit, keeping the aspect ratio
+		PixelTransform transform = PixelTransform.create(640, 480, 320, 320, false, 0, false);
+		assertEquals(320, transform.width);
+		assertEquals(240, transform.height);
+
+		// Enlarges by whole multiples only
+		transform = PixelTransform.create(100, 50, 350, 350, true, 0, false);
+		assertEquals(300, transform.width);
+		assertEquals(150, transform.height);
+
+		transform = PixelTransform.create(100, 50, 350, 350, false, 0, false);
+		assertEquals(100, transform.width);
+		assertEquals(50, transform.height);
+
+		// Bounds apply before rotation
+		transform = PixelTransform.create(100, 50, 200, 200, true, 90, true);
+		assertEquals(100, transform.width);
+		assertEquals(200, transform.height);
+		assertEquals(90, transform.rotate);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsPartialRotation() {
+		new PixelTransform(10, 10, 10, 10, 45, false);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsSmallBuffers() {
+		new PixelTransform(10, 10, 20, 20, 0, false).apply(new int[100], new int[399]);
+	}
+
+	/**
+	 * Rotates clockwise a quarter turn at a time, then mirrors and scales by pixel replication.
+	 */
+	private static int[] transform(int[] input, int width, int height, int rotate, boolean mirror, int scale) {
+		int[] image = input.clone();
+		for (int turns = ((rotate % 360) + 360) % 360 / 90; turns > 0; turns--) {
+			int[] rotated = new int[image.length];
+			for (int y = 0; y < width; y++) {
+				for (int x = 0; x < height; x++) {
+					rotated[y * height + x] = image[(height - 1 - x) * width + y];
+				}
+			}
+
+			image = rotated;
+			int swap = width;
+			width = height;
+			height = swap;
+		}
+
+		int[] output = new int[width * height * scale * scale];
+		for (int y = 0; y < height * scale; y++) {
+			for (int x = 0; x < width * scale; x++) {
+				int sx = (mirror ? width * scale - 1 - x : x) / scale;
+				output[y * width * scale + x] = image[(y / scale) * width + sx];
+			}
+		}
+
+		return output;
+	}
+}
@@ -0,0 +1,46 @@
+package android.content;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+
+/**
+ * Stands in for the Android context on the desktop, keeping private files in a directory.
+ */
+public class Context {
+	public static final int MODE_PRIVATE = 0;
+
+	private final File _filesdir;
+
+	/**
+	 * @param	filesdir	Directory of private files, such as the cached lookup tables of the filters
+	 */
+	public Context(File filesdir) {
+		_filesdir = filesdir;
+	}
+
+	public Context getApplicationContext() {
+		return this;
+	}
+
+	public File getFilesDir() {
+		return _filesdir;
+	}
+
+	public File getFileStreamPath(String name) {
+		return new File(_filesdir, name);
+	}
+
+	public FileInputStream openFileInput(String name) throws FileNotFoundException {
+		return new FileInputStream(getFileStreamPath(name));
+	}
+
+	public FileOutputStream openFileOutput(String name, int mode) throws FileNotFoundException {
+		if (!_filesdir.isDirectory() && !_filesdir.mkdirs()) {
+			throw new FileNotFoundException("Failed to create " + _filesdir);
+		}
+
+		return new FileOutputStream(getFileStreamPath(name));
+	}
+}
@@ -0,0 +1,44 @@
+package android.graphics;
+
+import java.nio.Buffer;
+import java.nio.IntBuffer;
+
+/**
+ * Stands in for Android bitmaps on the desktop, holding pixels in the same ABGR layout.
+ */
+public class Bitmap {
+	public enum Config {
+		ARGB_8888
+	}
+
+	private final int _width, _height;
+	private final int[] _pixels;
+
+	private Bitmap(int width, int height) {
+		_width = width;
+		_height = height;
+		_pixels = new int[width * height];
+	}
+
+	public static Bitmap createBitmap(int width, int height, Config config) {
+		return new Bitmap(width, height);
+	}
+
+	public int getWidth() {
+		return _width;
+	}
+
+	public int getHeight() {
+		return _height;
+	}
+
+	public void copyPixelsToBuffer(Buffer dst) {
+		((IntBuffer)dst).put(_pixels).rewind();
+	}
+
+	public void copyPixelsFromBuffer(Buffer src) {
+		((IntBuffer)src).get(_pixels).rewind();
+	}
+
+	public void recycle() {}
+}
@@ -0,0 +1,29 @@
+package android.os;
+
+/**
+ * Stands in for the Android process on the desktop, where thread priorities are only recorded.
+ */
+public class Process {
+	public static final int THREAD_PRIORITY_DEFAULT = 0;
+	public static final int THREAD_PRIORITY_BACKGROUND = 10;
+	public static final int THREAD_PRIORITY_LOWEST = 19;
+
+	private static final ThreadLocal<Integer> _priority = new ThreadLocal<Integer>() {
+		@Override
+		protected Integer initialValue() {
+			return THREAD_PRIORITY_DEFAULT;
+		}
+	};
+
+	public static int myTid() {
+		return (int)Thread.currentThread().getId();
+	}
+
+	public static void setThreadPriority(int priority) {
+		_priority.set(priority);
+	}
+
+	public static int getThreadPriority(int tid) {
+		return _priority.get();
+	}
+}
@@ -0,0 +1,39 @@
+package android.util;
+
+/**
+ * Stands in for the Android log on the desktop, writing info and above to standard error.
+ */
+public class Log {
+	public static int d(String tag, String msg) {
+		return 0;
+	}
+
+	public static int i(String tag, String msg) {
+		return println("I", tag, msg, null);
+	}
+
+	public static int w(String tag, String msg) {
+		return println("W", tag, msg, null);
+	}
+
+	public static int w(String tag, String msg, Throwable tr) {
+		return println("W", tag, msg, tr);
+	}
+
+	public static int e(String tag, String msg) {
+		return println("E", tag, msg, null);
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return println("E", tag, msg, tr);
+	}
+
+	private static synchronized int println(String level, String tag, String msg, Throwable tr) {
+		System.err.println(level + "/" + tag + ": " + msg);
+		if (tr != null) {
+			tr.printStackTrace();
+		}
+
+		return 0;
+	}
+}
@@ -0,0 +1,286 @@
+package se.embargo.retroboy.desktop;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import se.embargo.retroboy.filter.IImageFilter;
+import se.embargo.retroboy.filter.MonochromeFilter;
+import se.embargo.retroboy.filter.RgbFilter;
+import android.util.Log;
+
+/**
+ * Applies an effect filter to a directory of images and writes the results as PNG files.
+ *
+ * Images are rendered concurrently on a fork-join pool and each worker keeps its own effect filter,
+ * like the batch renderer of the app. The image buffers in flight are bounded by a memory budget.
+ */
+public class DesktopRenderer {
+	private static final String TAG = "DesktopRenderer";
+
+	/**
+	 * Estimated number of bytes per pixel held while an image is processed, covering the
+	 * decoded image, the image buffer and the output image.
+	 */
+	private static final int BYTES_PER_PIXEL = 12;
+
+	private static final String USAGE =
+		"Usage: DesktopRenderer [options] <input directory> <output directory>\n" +
+		FilterOptions.USAGE + "\n" +
+		"  -threshold <value>    Fixed threshold of the monochrome filters instead of auto exposure\n" +
+		"  -memory <megabytes>   Max size of the image buffers in flight";
+
+	private final FilterOptions _options;
+	private final int _threshold;
+
+	/**
+	 * Kilobytes of image buffers that may be allocated.
+	 */
+	private final Semaphore _budget;
+	private final int _budgetsize;
+
+	/**
+	 * Effect filter of each worker thread.
+	 */
+	private final ThreadLocal<IImageFilter> _effect = new ThreadLocal<IImageFilter>() {
+		@Override
+		protected IImageFilter initialValue() {
+			return _options.createEffectFilter(false);
+		}
+	};
+
+	/**
+	 * @param	options		Effect filter to apply
+	 * @param	threshold	Fixed threshold of the monochrome filters, or -1 for auto exposure
+	 * @param	maxbytes	Max number of bytes of image buffers in flight
+	 */
+	public DesktopRenderer(FilterOptions options, int threshold, long maxbytes) {
+		_options = options;
+		_threshold = threshold;
+		_budgetsize = (int)Math.max(1, Math.min(maxbytes / 1024, Integer.MAX_VALUE));
+		_budget = new Semaphore(_budgetsize);
+	}
+
+	/**
+	 * Renders every readable image in a directory.
+	 * @param	inputdir	Directory of images to render
+	 * @param	outputdir	Directory to write the PNG files to
+	 * @return				Number of images that failed to render
+	 */
+	public int render(File inputdir, File outputdir) throws IOException, InterruptedException {
+		File[] files = inputdir.listFiles();
+		if (files == null) {
+			throw new IOException("Failed to list " + inputdir);
+		}
+
+		if (!outputdir.isDirectory() && !outputdir.mkdirs()) {
+			throw new IOException("Failed to create " + outputdir);
+		}
+
+		Arrays.sort(files);
+		ForkJoinPool pool = new ForkJoinPool();
+		List<Future<File>> results = new ArrayList<Future<File>>();
+		long ts = System.currentTimeMillis();
+		int failures = 0;
+
+		try {
+			for (File file : files) {
+				int[] size = file.isFile() ? getImageSize(file) : null;
+				if (size == null) {
+					continue;
+				}
+
+				// Wait until the image fits within the memory budget
+				int cost = (int)Math.min(_budgetsize, (long)size[0] * size[1] * BYTES_PER_PIXEL / 1024 + 1);
+				_budget.acquire(cost);
+				results.add(pool.submit(new RenderTask(file, new File(outputdir, getBaseName(file) + ".png"), cost)));
+			}
+
+			for (Future<File> result : results) {
+				try {
+					result.get();
+				}
+				catch (ExecutionException e) {
+					Log.e(TAG, "Failed to render image", e.getCause());
+					failures++;
+				}
+			}
+		}
+		finally {
+			pool.shutdownNow();
+		}
+
+		Log.i(TAG, "Rendered " + (results.size() - failures) + " of " + results.size() + " images in " + (System.currentTimeMillis() - ts) + " ms");
+		return failures;
+	}
+
+	/**
+	 * @return	The width and height of an image, or null if it's not an image.
+	 */
+	private static int[] getImageSize(File file) throws IOException {
+		ImageInputStream is = ImageIO.createImageInputStream(file);
+		if (is == null) {
+			return null;
+		}
+
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(is);
+			if (!readers.hasNext()) {
+				return null;
+			}
+
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(is);
+				return new int[] {reader.getWidth(0), reader.getHeight(0)};
+			}
+			finally {
+				reader.dispose();
+			}
+		}
+		finally {
+			is.close();
+		}
+	}
+
+	private static String getBaseName(File file) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		return dot > 0 ? name.substring(0, dot) : name;
+	}
+
+	private class RenderTask implements Callable<File> {
+		private final File _input, _output;
+		private final int _cost;
+
+		public RenderTask(File input, File output, int cost) {
+			_input = input;
+			_output = output;
+			_cost = cost;
+		}
+
+		@Override
+		public File call() throws Exception {
+			try {
+				long ts = System.currentTimeMillis();
+				BufferedImage input = ImageIO.read(_input);
+				if (input == null) {
+					throw new IOException("Failed to decode " + _input);
+				}
+
+				// Convert to the ABGR layout of Android bitmaps
+				int width = input.getWidth(), height = input.getHeight();
+				IImageFilter.ImageBuffer buffer = new IImageFilter.ImageBuffer(width, height);
+				buffer.imagewidth = width;
+				buffer.imageheight = height;
+				buffer.image = IntBuffer.wrap(new int[width * height + width * 4]);
+
+				int[] pixels = buffer.image.array();
+				input.getRGB(0, 0, width, height, pixels, 0, width);
+				input = null;
+
+				for (int i = 0, last = width * height; i < last; i++) {
+					pixels[i] = swapRedBlue(pixels[i]);
+				}
+
+				// Apply the filters, with a fresh effect filter if its state would carry over from other images
+				IImageFilter effect = _options.isStateful() ? _options.createEffectFilter(false) : _effect.get();
+				if (effect.isColorFilter()) {
+					new RgbFilter(_options.getContrast(), _threshold < 0).accept(buffer);
+				}
+				else {
+					new MonochromeFilter(_options.getContrast(), _threshold < 0).accept(buffer);
+				}
+
+				if (_threshold >= 0) {
+					buffer.threshold = _threshold;
+				}
+
+				effect.accept(buffer);
+
+				// Write the image to disk
+				BufferedImage output = new BufferedImage(buffer.imagewidth, buffer.imageheight, BufferedImage.TYPE_INT_RGB);
+				pixels = buffer.image.array();
+				for (int i = 0, last = buffer.imagewidth * buffer.imageheight; i < last; i++) {
+					pixels[i] = swapRedBlue(pixels[i]);
+				}
+
+				output.setRGB(0, 0, buffer.imagewidth, buffer.imageheight, pixels, 0, buffer.imagewidth);
+				if (!ImageIO.write(output, "png", _output)) {
+					throw new IOException("Failed to encode " + _output);
+				}
+
+				Log.i(TAG, "Rendered " + _input + " in " + (System.currentTimeMillis() - ts) + " ms to " + _output);
+				return _output;
+			}
+			finally {
+				_budget.release(_cost);
+			}
+		}
+	}
+
+	private static int swapRedBlue(int color) {
+		return (color & 0xff00ff00) | ((color >> 16) & 0xff) | ((color & 0xff) << 16);
+	}
+
+	public static void main(String[] args) throws Exception {
+		FilterOptions options = new FilterOptions();
+		int threshold = -1;
+		long maxbytes = Runtime.getRuntime().maxMemory() / 2;
+		List<String> paths = new ArrayList<String>();
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (!arg.startsWith("-")) {
+					paths.add(arg);
+				}
+				else if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value of " + arg);
+				}
+				else if (options.parse(arg, args[i + 1])) {
+					i++;
+				}
+				else if (arg.equals("-threshold")) {
+					threshold = Integer.parseInt(args[++i]);
+				}
+				else if (arg.equals("-memory")) {
+					maxbytes = Long.parseLong(args[++i]) * 1024 * 1024;
+				}
+				else {
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			}
+
+			if (paths.size() != 2) {
+				throw new IllegalArgumentException("Expected an input and an output directory");
+			}
+
+			options.validate();
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+			return;
+		}
+
+		DesktopRenderer renderer = new DesktopRenderer(options, threshold, maxbytes);
+		int failures = renderer.render(new File(paths.get(0)), new File(paths.get(1)));
+		System.exit(failures > 0 ? 1 : 0);
+	}
+}
@@ -0,0 +1,95 @@
+package se.embargo.retroboy.desktop;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import se.embargo.retroboy.filter.CompositeFilter;
+import se.embargo.retroboy.filter.FrameReplay;
+import se.embargo.retroboy.filter.IImageFilter;
+import se.embargo.retroboy.filter.YuvFilter;
+import se.embargo.retroboy.graphic.FrameLogReader;
+
+/**
+ * Replays a frame log recorded on a device through the preview filters, to profile the workload on the JVM.
+ */
+public class DesktopReplay {
+	private static final String USAGE =
+		"Usage: DesktopReplay [options] <frame log>...\n" +
+		FilterOptions.USAGE + "\n" +
+		"  -resolution <WxH>     Max size of the filtered image, like the preview resolution\n" +
+		"  -realtime             Deliver frames at their recorded intervals instead of at maximum speed";
+
+	public static void main(String[] args) throws Exception {
+		FilterOptions options = new FilterOptions();
+		int width = 320, height = 200;
+		boolean realtime = false;
+		int first = 0;
+
+		try {
+			for (; first < args.length && args[first].startsWith("-"); first++) {
+				String arg = args[first];
+				if (arg.equals("-realtime")) {
+					realtime = true;
+				}
+				else if (first + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value of " + arg);
+				}
+				else if (options.parse(arg, args[first + 1])) {
+					first++;
+				}
+				else if (arg.equals("-resolution")) {
+					String[] size = args[++first].split("x");
+					if (size.length != 2) {
+						throw new IllegalArgumentException("Malformed resolution " + args[first]);
+					}
+
+					width = Integer.parseInt(size[0]);
+					height = Integer.parseInt(size[1]);
+				}
+				else {
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			}
+
+			if (first >= args.length) {
+				throw new IllegalArgumentException("Expected a frame log");
+			}
+
+			options.validate();
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+			return;
+		}
+
+		int failures = 0;
+		for (int i = first; i < args.length; i++) {
+			// Filter the frames like the preview does, up to the conversion to bitmap
+			IImageFilter effect = options.createEffectFilter(true);
+			CompositeFilter filter = new CompositeFilter();
+			filter.add(new YuvFilter(width, height, options.getContrast(), effect.isColorFilter(), true));
+			filter.add(effect);
+
+			try {
+				FrameLogReader reader = new FrameLogReader(new FileInputStream(new File(args[i])));
+				try {
+					FrameReplay replay = new FrameReplay(reader);
+					replay.replay(filter, realtime);
+					System.out.println(args[i] + ": " + replay.getSummary());
+				}
+				finally {
+					reader.close();
+				}
+			}
+			catch (IOException e) {
+				System.err.println(args[i] + ": " + e.getMessage());
+				failures++;
+			}
+		}
+
+		System.exit(failures > 0 ? 1 : 0);
+	}
+}
@@ -0,0 +1,210 @@
+package se.embargo.retroboy.desktop;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import se.embargo.retroboy.filter.CompositeFilter;
+import se.embargo.retroboy.filter.IImageFilter;
+import se.embargo.retroboy.filter.VideoProcessor;
+import se.embargo.retroboy.filter.YuvFilter;
+import se.embargo.retroboy.graphic.Y4mReader;
+import se.embargo.retroboy.graphic.Y4mWriter;
+
+/**
+ * Filters YUV4MPEG2 video like the batch renderer of the app, or measures the throughput of the
+ * video pipeline by number of threads.
+ */
+public class DesktopVideo {
+	private static final String USAGE =
+		"Usage: DesktopVideo [options] <input video> [<output video>]\n" +
+		FilterOptions.USAGE + "\n" +
+		"  -resolution <WxH>     Max size of the filtered image\n" +
+		"  -threads <count>      Number of frames to filter concurrently\n" +
+		"  -benchmark            Measure frames/sec for each number of threads instead of writing a video";
+
+	/**
+	 * Number of frames read ahead of the workers.
+	 */
+	private static final int READAHEAD = 2;
+
+	private final FilterOptions _options;
+	private final int _width, _height;
+	private final boolean _color;
+
+	public DesktopVideo(FilterOptions options, int width, int height) {
+		_options = options;
+		_width = width;
+		_height = height;
+		_color = options.createEffectFilter(false).isColorFilter();
+	}
+
+	/**
+	 * Filters all frames of a video.
+	 * @param	input	Video to read
+	 * @param	writer	Receives the filtered frames in order
+	 * @param	threads	Number of frames to filter concurrently, filters that carry state between frames always use one
+	 * @return			Number of frames written
+	 */
+	public int process(File input, VideoProcessor.IFrameWriter writer, int threads) throws IOException, InterruptedException {
+		Y4mReader reader = new Y4mReader(new FileInputStream(input));
+
+		try {
+			VideoProcessor processor = new VideoProcessor(new VideoProcessor.IFilterFactory() {
+				@Override
+				public IImageFilter create() {
+					CompositeFilter filter = new CompositeFilter();
+					filter.add(new YuvFilter(_width, _height, _options.getContrast(), _color, true));
+					filter.add(_options.createEffectFilter(false));
+					return filter;
+				}
+			}, _options.isStateful() ? 1 : threads, READAHEAD);
+
+			return processor.process(reader, writer);
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Writes filtered frames as YUV4MPEG2, keeping the frame rate of the input.
+	 */
+	private static class Y4mFrameWriter implements VideoProcessor.IFrameWriter {
+		private final OutputStream _os;
+		private final int _ratenum, _rateden;
+		private Y4mWriter _writer = null;
+
+		public Y4mFrameWriter(OutputStream os, int ratenum, int rateden) {
+			_os = os;
+			_ratenum = ratenum;
+			_rateden = rateden;
+		}
+
+		@Override
+		public void write(IImageFilter.ImageBuffer buffer) throws IOException {
+			// The frame size is known once the first frame has been filtered
+			if (_writer == null) {
+				_writer = new Y4mWriter(_os, buffer.imagewidth, buffer.imageheight, _ratenum, _rateden);
+			}
+
+			_writer.write(buffer.image.array());
+		}
+
+		public void finish() throws IOException {
+			if (_writer == null) {
+				throw new IOException("Video has no frames");
+			}
+
+			_writer.finish();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		FilterOptions options = new FilterOptions();
+		int width = 320, height = 200, threads = Runtime.getRuntime().availableProcessors();
+		boolean benchmark = false;
+		File input = null, output = null;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (!arg.startsWith("-")) {
+					if (input == null) {
+						input = new File(arg);
+					}
+					else if (output == null) {
+						output = new File(arg);
+					}
+					else {
+						throw new IllegalArgumentException("Unexpected argument " + arg);
+					}
+				}
+				else if (arg.equals("-benchmark")) {
+					benchmark = true;
+				}
+				else if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value of " + arg);
+				}
+				else if (options.parse(arg, args[i + 1])) {
+					i++;
+				}
+				else if (arg.equals("-resolution")) {
+					String[] size = args[++i].split("x");
+					if (size.length != 2) {
+						throw new IllegalArgumentException("Malformed resolution " + args[i]);
+					}
+
+					width = Integer.parseInt(size[0]);
+					height = Integer.parseInt(size[1]);
+				}
+				else if (arg.equals("-threads")) {
+					threads = Math.max(Integer.parseInt(args[++i]), 1);
+				}
+				else {
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			}
+
+			if (input == null || (output == null && !benchmark)) {
+				throw new IllegalArgumentException("Expected an input and an output video");
+			}
+
+			options.validate();
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+			return;
+		}
+
+		DesktopVideo video = new DesktopVideo(options, width, height);
+
+		if (benchmark) {
+			// Discard the frames so only the reading and filtering is timed
+			VideoProcessor.IFrameWriter discard = new VideoProcessor.IFrameWriter() {
+				@Override
+				public void write(IImageFilter.ImageBuffer buffer) {}
+			};
+
+			// Warms up the JIT and fills the table cache
+			video.process(input, discard, threads);
+
+			int maxthreads = options.isStateful() ? 1 : threads;
+			System.out.println(String.format("%-8s %8s %8s %11s", "threads", "frames", "ms", "frames/sec"));
+			for (int count = 1; count <= maxthreads; count++) {
+				long ts = System.nanoTime();
+				int frames = video.process(input, discard, count);
+				double elapsed = Math.max((System.nanoTime() - ts) / 1000000d, 1);
+				System.out.println(String.format("%-8d %8d %8.0f %11.1f", count, frames, elapsed, frames * 1000d / elapsed));
+			}
+
+			return;
+		}
+
+		Y4mReader header = new Y4mReader(new FileInputStream(input));
+		int ratenum = header.getRateNumerator(), rateden = header.getRateDenominator();
+		header.close();
+
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(output));
+		boolean success = false;
+
+		try {
+			Y4mFrameWriter writer = new Y4mFrameWriter(os, ratenum, rateden);
+			video.process(input, writer, threads);
+			writer.finish();
+			success = true;
+		}
+		finally {
+			os.close();
+
+			if (!success) {
+				output.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package se.embargo.retroboy.desktop;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import se.embargo.retroboy.color.PaletteReader;
+import se.embargo.retroboy.filter.AbstractColorFilter;
+import se.embargo.retroboy.filter.EffectFilters;
+import se.embargo.retroboy.filter.IImageFilter;
+import android.content.Context;
+
+/**
+ * Effect filter settings of the desktop tools, given on the command line.
+ */
+public class FilterOptions {
+	public static final String USAGE =
+		"  -filter <type>        nintendo_gameboy_camera, atkinson, pxl-2000, amstrad_cpc464,\n" +
+		"                        commodore_64, amiga_500, halftone, custom or none\n" +
+		"  -palette <name>       Game Boy palette, gameboy_camera, gameboy_screen or binary\n" +
+		"  -custom <file>        Palette file of the custom filter, .gpl, .act or .hex\n" +
+		"  -matrix <size>        Dither matrix size, 2, 4 or 8\n" +
+		"  -raster <level>       Raster level of the palette filters\n" +
+		"  -contrast <value>     Contrast adjustment, -100 to 100\n" +
+		"  -cache <directory>    Directory of cached lookup tables";
+
+	private String _filtertype = EffectFilters.GAMEBOY_CAMERA, _palette = "gameboy_camera";
+	private int[] _custompalette = null;
+	private int _matrixsize = 4, _rasterlevel = 50, _contrast = 0;
+	private File _cachedir = new File(System.getProperty("user.home"), ".retroboy");
+	private Context _context = null;
+
+	/**
+	 * Reads a filter option.
+	 * @param	option	Name of the option
+	 * @param	value	Value of the option
+	 * @return			False if it's not a filter option
+	 */
+	public boolean parse(String option, String value) throws IOException {
+		if (option.equals("-filter")) {
+			_filtertype = value;
+		}
+		else if (option.equals("-palette")) {
+			_palette = value;
+		}
+		else if (option.equals("-custom")) {
+			File file = new File(value);
+			InputStream is = new FileInputStream(file);
+			try {
+				_custompalette = PaletteReader.read(is, file.getName());
+			}
+			finally {
+				is.close();
+			}
+
+			_filtertype = EffectFilters.CUSTOM;
+		}
+		else if (option.equals("-matrix")) {
+			_matrixsize = Integer.parseInt(value);
+		}
+		else if (option.equals("-raster")) {
+			_rasterlevel = Integer.parseInt(value);
+		}
+		else if (option.equals("-contrast")) {
+			_contrast = Integer.parseInt(value);
+		}
+		else if (option.equals("-cache")) {
+			_cachedir = new File(value);
+		}
+		else {
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Checks that the options fit together.
+	 */
+	public void validate() {
+		if (EffectFilters.CUSTOM.equals(_filtertype) && _custompalette == null) {
+			throw new IllegalArgumentException("The custom filter needs a palette file");
+		}
+	}
+
+	/**
+	 * Creates an effect filter from the options, for use by one thread at a time. Mixing plans are 
+	 * computed on all cores before returning, and cached so filters created later only read them.
+	 * @param	preview		True to adapt over several frames like the camera preview does
+	 */
+	public synchronized IImageFilter createEffectFilter(boolean preview) {
+		if (_context == null) {
+			_context = new Context(_cachedir);
+		}
+
+		return EffectFilters.create(_context, _filtertype, _matrixsize, _rasterlevel, _palette, _custompalette, preview, AbstractColorFilter.InitMode.Parallel);
+	}
+
+	/**
+	 * @return	True if the filter carries state between images and can't be reused for another image.
+	 */
+	public boolean isStateful() {
+		return EffectFilters.isStateful(_filtertype);
+	}
+
+	public int getContrast() {
+		return _contrast;
+	}
+}
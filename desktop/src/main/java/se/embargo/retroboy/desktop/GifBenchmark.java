@@ -0,0 +1,137 @@
+package se.embargo.retroboy.desktop;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import se.embargo.core.graphic.color.IPalette;
+import se.embargo.retroboy.filter.CompositeFilter;
+import se.embargo.retroboy.filter.IImageFilter;
+import se.embargo.retroboy.filter.YuvFilter;
+import se.embargo.retroboy.graphic.FrameLogReader;
+import se.embargo.retroboy.graphic.GifWriter;
+
+/**
+ * Measures the size and encode time of animated GIF frames with and without delta encoding, over
+ * a frame log recorded on a device and filtered like the preview.
+ */
+public class GifBenchmark {
+	private static final String USAGE =
+		"Usage: GifBenchmark [options] <frame log>\n" +
+		FilterOptions.USAGE + "\n" +
+		"  -resolution <WxH>     Max size of the filtered image, like the preview resolution";
+
+	/**
+	 * Delay between frames in milliseconds.
+	 */
+	private static final int FRAME_DELAY = 100;
+
+	public static void main(String[] args) throws Exception {
+		FilterOptions options = new FilterOptions();
+		int width = 320, height = 200;
+		String path = null;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (!arg.startsWith("-")) {
+					path = arg;
+				}
+				else if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value of " + arg);
+				}
+				else if (options.parse(arg, args[i + 1])) {
+					i++;
+				}
+				else if (arg.equals("-resolution")) {
+					String[] size = args[++i].split("x");
+					if (size.length != 2) {
+						throw new IllegalArgumentException("Malformed resolution " + args[i]);
+					}
+
+					width = Integer.parseInt(size[0]);
+					height = Integer.parseInt(size[1]);
+				}
+				else {
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			}
+
+			if (path == null) {
+				throw new IllegalArgumentException("Expected a frame log");
+			}
+
+			options.validate();
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+			return;
+		}
+
+		// Filter the frames up front so only the encoding is timed
+		IImageFilter effect = options.createEffectFilter(true);
+		CompositeFilter filter = new CompositeFilter();
+		filter.add(new YuvFilter(width, height, options.getContrast(), effect.isColorFilter(), true));
+		filter.add(effect);
+
+		List<IImageFilter.ImageBuffer> frames = new ArrayList<IImageFilter.ImageBuffer>();
+		FrameLogReader reader = new FrameLogReader(new FileInputStream(new File(path)));
+		try {
+			IImageFilter.ImageBuffer buffer = new IImageFilter.ImageBuffer(reader.getWidth(), reader.getHeight());
+			byte[] frame = new byte[reader.getFrameSize()];
+			while (reader.read(frame)) {
+				buffer.reset(frame);
+				filter.accept(buffer);
+				frames.add(buffer.copy());
+			}
+		}
+		finally {
+			reader.close();
+		}
+
+		if (frames.isEmpty()) {
+			System.err.println("No frames in " + path);
+			System.exit(1);
+			return;
+		}
+
+		IImageFilter.ImageBuffer first = frames.get(0);
+		System.out.println(frames.size() + " frames of " + first.imagewidth + "x" + first.imageheight);
+		System.out.println("mode\tbytes/frame\tms/frame");
+
+		for (boolean delta : new boolean[] {false, true, false, true}) {
+			encode(frames, effect.getPalette(), delta);
+		}
+	}
+
+	/**
+	 * Encodes the frames on one worker thread and prints the results, the first runs warm up the JIT.
+	 */
+	private static void encode(List<IImageFilter.ImageBuffer> frames, IPalette palette, boolean delta) throws IOException {
+		IImageFilter.ImageBuffer first = frames.get(0);
+		long ts = System.nanoTime();
+		GifWriter encoder = new GifWriter(new NullOutputStream(), first.imagewidth, first.imageheight, palette, 0, 1, delta);
+		for (IImageFilter.ImageBuffer frame : frames) {
+			encoder.addFrame(frame.image.array(), FRAME_DELAY);
+		}
+
+		encoder.finish();
+		long elapsed = System.nanoTime() - ts;
+		System.out.println((delta ? "delta" : "full") + "\t" +
+			(encoder.getOutputSize() / encoder.getFrameCount()) + "\t\t" +
+			String.format("%.2f", elapsed / 1000000d / encoder.getFrameCount()));
+	}
+
+	private static class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {}
+
+		@Override
+		public void write(byte[] b, int off, int len) {}
+	}
+}
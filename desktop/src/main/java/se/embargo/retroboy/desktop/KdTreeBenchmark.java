@@ -0,0 +1,72 @@
+package se.embargo.retroboy.desktop;
+
+import java.util.Random;
+
+import se.embargo.retroboy.color.DistancePalette;
+import se.embargo.retroboy.color.Distances;
+import se.embargo.retroboy.color.IColorMetric;
+import se.embargo.retroboy.color.KdTreePalette;
+
+/**
+ * Times nearest-color lookups of the linear scan and the k-d tree by palette size, to find the
+ * size from which {@link DistancePalette#create} picks the tree.
+ */
+public class KdTreeBenchmark {
+	private static final int[] SIZES = {8, 16, 32, 48, 64, 80, 96, 112, 128, 192, 256};
+	private static final int LOOKUPS = 1 << 19, RUNS = 5;
+
+	public static void main(String[] args) {
+		Random random = new Random(0);
+		int[] queries = new int[LOOKUPS];
+		for (int i = 0; i < queries.length; i++) {
+			queries[i] = random.nextInt(0x1000000);
+		}
+
+		for (IColorMetric metric : new IColorMetric[] {Distances.YUV, Distances.LUV}) {
+			System.out.println("Metric " + metric + ", ns per lookup");
+			System.out.println("colors\tscan\ttree");
+
+			for (int size : SIZES) {
+				int[] colors = new int[size];
+				for (int i = 0; i < colors.length; i++) {
+					colors[i] = 0xff000000 | random.nextInt(0x1000000);
+				}
+
+				double scan = time(new DistancePalette(metric, colors), queries),
+					   tree = time(new KdTreePalette(metric, colors), queries);
+				System.out.println(size + "\t" + format(scan) + "\t" + format(tree));
+			}
+
+			System.out.println();
+		}
+	}
+
+	/**
+	 * @return	The best time in nanoseconds per lookup over a few runs, after a warmup run.
+	 */
+	private static double time(DistancePalette palette, int[] queries) {
+		long best = Long.MAX_VALUE, sum = 0;
+		for (int run = 0; run <= RUNS; run++) {
+			long ts = System.nanoTime();
+			for (int color : queries) {
+				sum += palette.getNearestIndex(color & 0xff, (color >> 8) & 0xff, (color >> 16) & 0xff);
+			}
+
+			long elapsed = System.nanoTime() - ts;
+			if (run > 0) {
+				best = Math.min(best, elapsed);
+			}
+		}
+
+		// Keeps the lookups from being optimized away
+		if (sum == Long.MIN_VALUE) {
+			System.out.println(sum);
+		}
+
+		return (double)best / queries.length;
+	}
+
+	private static String format(double value) {
+		return String.format("%.1f", value);
+	}
+}
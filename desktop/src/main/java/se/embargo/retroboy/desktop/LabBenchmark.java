@@ -0,0 +1,75 @@
+package se.embargo.retroboy.desktop;
+
+import java.io.IOException;
+
+import se.embargo.retroboy.color.BucketPalette;
+import se.embargo.retroboy.color.DistancePalette;
+import se.embargo.retroboy.color.Distances;
+import se.embargo.retroboy.color.IColorDistance;
+import se.embargo.retroboy.color.Palettes;
+import se.embargo.retroboy.filter.AbstractColorFilter;
+import se.embargo.retroboy.filter.RasterFilter;
+import se.embargo.retroboy.filter.YliluomaFilter;
+import se.embargo.retroboy.graphic.DitherMatrixes;
+
+/**
+ * Compares the table build times of the CIELAB distances to LUV. Mixing plans are computed on the
+ * calling thread without a cache, like the prewarmer does on the first start.
+ */
+public class LabBenchmark {
+	private static final IColorDistance[] DISTANCES = {Distances.LUV, Distances.CIE76, Distances.CIEDE2000};
+	private static final int BITS = 4, RUNS = 3;
+
+	public static void main(String[] args) throws IOException {
+		// Warms up the JIT so the first distance is comparable to the others
+		for (IColorDistance distance : DISTANCES) {
+			buildPalette(distance, BITS);
+			buildRaster(distance, BITS);
+		}
+
+		System.out.println("Build ms with " + BITS + " bits per channel");
+		System.out.println(String.format("%-10s %8s %11s %12s", "distance", "palette", "CPC raster", "C64 duotone"));
+		for (IColorDistance distance : DISTANCES) {
+			double palette = Double.MAX_VALUE, raster = Double.MAX_VALUE, duotone = Double.MAX_VALUE;
+			for (int run = 0; run < RUNS; run++) {
+				palette = Math.min(palette, buildPalette(distance, BITS));
+				raster = Math.min(raster, buildRaster(distance, BITS));
+				duotone = Math.min(duotone, buildDuotone(distance, BITS));
+			}
+
+			System.out.println(String.format("%-10s %8.1f %11.1f %12.1f", distance, palette, raster, duotone));
+		}
+	}
+
+	/**
+	 * @return	Milliseconds to fill every bucket of a palette table of the C64 colors.
+	 */
+	private static double buildPalette(IColorDistance distance, int bits) {
+		long ts = System.nanoTime();
+		BucketPalette palette = new BucketPalette(DistancePalette.create(distance, Palettes.COMMODORE_64_GAMMA_ADJUSTED), bits);
+		for (int i = 0, step = 8 - bits, max = 1 << (bits * 3); i < max; i++) {
+			int r = (i & ((1 << bits) - 1)) << step, g = ((i >> bits) & ((1 << bits) - 1)) << step, b = (i >> (bits * 2)) << step;
+			palette.getIndex(r | (g << 8) | (b << 16));
+		}
+
+		return (System.nanoTime() - ts) / 1000000d;
+	}
+
+	/**
+	 * @return	Milliseconds to compute the mixing plans of the Amstrad CPC filter.
+	 */
+	private static double buildRaster(IColorDistance distance, int bits) throws IOException {
+		long ts = System.nanoTime();
+		new RasterFilter(new TempContext(), distance, Palettes.AMSTRAD_CPC464, DitherMatrixes.MATRIX_4x4, 50, bits, AbstractColorFilter.InitMode.Synchronous);
+		return (System.nanoTime() - ts) / 1000000d;
+	}
+
+	/**
+	 * @return	Milliseconds to compute the two-color mixing plans of the Commodore 64 colors.
+	 */
+	private static double buildDuotone(IColorDistance distance, int bits) throws IOException {
+		long ts = System.nanoTime();
+		new YliluomaFilter(new TempContext(), distance, Palettes.COMMODORE_64_GAMMA_ADJUSTED, bits, AbstractColorFilter.InitMode.Synchronous);
+		return (System.nanoTime() - ts) / 1000000d;
+	}
+}
@@ -0,0 +1,139 @@
+package se.embargo.retroboy.desktop;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+import se.embargo.retroboy.color.BucketPalette;
+import se.embargo.retroboy.color.DistancePalette;
+import se.embargo.retroboy.color.Distances;
+import se.embargo.retroboy.color.Palettes;
+import se.embargo.retroboy.filter.AbstractColorFilter;
+import se.embargo.retroboy.filter.IImageFilter;
+import se.embargo.retroboy.filter.RasterFilter;
+import se.embargo.retroboy.graphic.DitherMatrixes;
+import android.content.Context;
+
+/**
+ * Measures the memory, build time and lookup cost of the palette tables and mixing plans by number
+ * of bits per channel, to choose the precision of each device tier. Lookups are timed over random
+ * colors, which miss the cache on the larger tables, and over a smooth gradient like a camera frame.
+ */
+public class PrecisionBenchmark {
+	private static final int WIDTH = 640, HEIGHT = 480, RUNS = 5;
+
+	public static void main(String[] args) throws IOException {
+		int[] random = new int[WIDTH * HEIGHT], gradient = new int[WIDTH * HEIGHT];
+		Random rand = new Random(0);
+		for (int y = 0, i = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++, i++) {
+				random[i] = 0xff000000 | rand.nextInt(0x1000000);
+				gradient[i] = 0xff000000 | ((x + y) * 255 / (WIDTH + HEIGHT) << 16) | (y * 255 / HEIGHT << 8) | x * 255 / WIDTH;
+			}
+		}
+
+		int[] colors = new int[128];
+		for (int i = 0; i < colors.length; i++) {
+			colors[i] = 0xff000000 | rand.nextInt(0x1000000);
+		}
+
+		System.out.println("BucketPalette of " + colors.length + " colors, build ms and ns per lookup");
+		System.out.println("bits\tbytes\tbuild\trandom\tgradient");
+		for (int bits = BucketPalette.MIN_BITS; bits <= BucketPalette.MAX_BITS; bits++) {
+			DistancePalette inner = DistancePalette.create(Distances.LUV, colors);
+			BucketPalette palette = new BucketPalette(inner, bits);
+
+			// Fill every bucket once, like a sweep over the cube would
+			long ts = System.nanoTime();
+			for (int i = 0, step = 8 - bits, max = 1 << (bits * 3); i < max; i++) {
+				int r = (i & ((1 << bits) - 1)) << step, g = ((i >> bits) & ((1 << bits) - 1)) << step, b = (i >> (bits * 2)) << step;
+				palette.getIndex(r | (g << 8) | (b << 16));
+			}
+
+			double build = (System.nanoTime() - ts) / 1000000d;
+			System.out.println(bits + "\t" + palette.getMemoryUsage() + "\t" + format(build) + "\t" +
+				format(time(palette, random)) + "\t" + format(time(palette, gradient)));
+		}
+
+		System.out.println();
+		System.out.println("RasterFilter of " + Palettes.COMMODORE_64_GAMMA_ADJUSTED.length + " colors, build ms and ms per " + WIDTH + "x" + HEIGHT + " frame");
+		System.out.println("bits\tbytes\tserial\tparallel\trandom\tgradient");
+		// Warms up the JIT so the first row is comparable to the others
+		build(BucketPalette.MIN_BITS, AbstractColorFilter.InitMode.Synchronous);
+		for (int bits = BucketPalette.MIN_BITS; bits <= BucketPalette.MAX_BITS; bits++) {
+			double serial = build(bits, AbstractColorFilter.InitMode.Synchronous);
+			long ts = System.nanoTime();
+			AbstractColorFilter filter = create(new TempContext(), bits, AbstractColorFilter.InitMode.Parallel);
+			double parallel = (System.nanoTime() - ts) / 1000000d;
+
+			System.out.println(bits + "\t" + filter.getMemoryUsage() + "\t" + format(serial) + "\t" + format(parallel) + "\t" +
+				format(time(filter, random)) + "\t" + format(time(filter, gradient)));
+		}
+	}
+
+	/**
+	 * @return	Milliseconds to compute all mixing plans, without a cache to read them from.
+	 */
+	private static double build(int bits, AbstractColorFilter.InitMode initmode) throws IOException {
+		long ts = System.nanoTime();
+		create(new TempContext(), bits, initmode);
+		return (System.nanoTime() - ts) / 1000000d;
+	}
+
+	private static AbstractColorFilter create(Context context, int bits, AbstractColorFilter.InitMode initmode) {
+		return new RasterFilter(context, Distances.LUV, Palettes.COMMODORE_64_GAMMA_ADJUSTED, DitherMatrixes.MATRIX_4x4, 50, bits, initmode);
+	}
+
+	/**
+	 * @return	The best time in nanoseconds per lookup over a few runs, after a warmup run.
+	 */
+	private static double time(BucketPalette palette, int[] colors) {
+		long best = Long.MAX_VALUE, sum = 0;
+		for (int run = 0; run <= RUNS; run++) {
+			long ts = System.nanoTime();
+			for (int color : colors) {
+				sum += palette.getIndex(color);
+			}
+
+			long elapsed = System.nanoTime() - ts;
+			if (run > 0) {
+				best = Math.min(best, elapsed);
+			}
+		}
+
+		// Keeps the lookups from being optimized away
+		if (sum == Long.MIN_VALUE) {
+			System.out.println(sum);
+		}
+
+		return (double)best / colors.length;
+	}
+
+	/**
+	 * @return	The best time in milliseconds per frame over a few runs, after a warmup run.
+	 */
+	private static double time(AbstractColorFilter filter, int[] image) {
+		IImageFilter.ImageBuffer buffer = new IImageFilter.ImageBuffer(WIDTH, HEIGHT);
+		buffer.image = IntBuffer.wrap(new int[WIDTH * HEIGHT + WIDTH * 4]);
+		buffer.imagewidth = WIDTH;
+		buffer.imageheight = HEIGHT;
+
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run <= RUNS; run++) {
+			System.arraycopy(image, 0, buffer.image.array(), 0, image.length);
+			long ts = System.nanoTime();
+			filter.accept(buffer);
+
+			long elapsed = System.nanoTime() - ts;
+			if (run > 0) {
+				best = Math.min(best, elapsed);
+			}
+		}
+
+		return best / 1000000d;
+	}
+
+	private static String format(double value) {
+		return String.format("%.1f", value);
+	}
+}
@@ -0,0 +1,133 @@
+package se.embargo.retroboy.desktop;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import se.embargo.core.graphic.color.IColorQuantizer;
+import se.embargo.core.graphic.color.NeuQuant;
+import se.embargo.retroboy.color.BitPalette;
+import se.embargo.retroboy.color.DistancePalette;
+import se.embargo.retroboy.color.Distances;
+import se.embargo.retroboy.color.MedianCutQuantizer;
+import se.embargo.retroboy.color.OctreeQuantizer;
+
+/**
+ * Compares the quantizers of the adaptive palette filters against NeuQuant, by the mean YUV error
+ * per pixel of the selected palette and the time to sample an image like the QuantizeFilter does.
+ */
+public class QuantizerBenchmark {
+	private static final String[] NAMES = {"neuquant", "median cut", "octree"};
+	private static final int QUALITY = 10, RUNS = 5;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.out.println("No images given, measuring a synthetic 640x480 image");
+			run("synthetic", createImage(640, 480));
+			return;
+		}
+
+		for (String arg : args) {
+			BufferedImage input = ImageIO.read(new File(arg));
+			if (input == null) {
+				System.err.println("Failed to decode " + arg);
+				continue;
+			}
+
+			// Convert to the ABGR layout of Android bitmaps
+			int[] image = input.getRGB(0, 0, input.getWidth(), input.getHeight(), null, 0, input.getWidth());
+			for (int i = 0; i < image.length; i++) {
+				image[i] = (image[i] & 0xff00ff00) | ((image[i] >> 16) & 0xff) | ((image[i] & 0xff) << 16);
+			}
+
+			run(arg, image);
+		}
+	}
+
+	private static void run(String name, int[] image) {
+		System.out.println(name + ", mean YUV error per pixel and best ms per sample");
+		System.out.println(String.format("%-8s %-12s %8s %8s", "colors", "quantizer", "error", "ms"));
+
+		// The Amiga 500 filter selects 16 colors of 4 bits per channel
+		for (int bits = 4; bits <= 5; bits++) {
+			BitPalette palette = new BitPalette(bits);
+			for (int i = 0; i < NAMES.length; i++) {
+				double best = Double.MAX_VALUE;
+				int[] colors = null;
+
+				// Fresh quantizers so the warm start of the histogram quantizers isn't measured
+				for (int run = 0; run <= RUNS; run++) {
+					IColorQuantizer quantizer = create(i);
+					long ts = System.nanoTime();
+					quantizer.sample(palette, image, image.length, QUALITY);
+					colors = quantizer.getPalette();
+
+					double elapsed = (System.nanoTime() - ts) / 1000000d;
+					if (run > 0) {
+						best = Math.min(best, elapsed);
+					}
+				}
+
+				System.out.println(String.format("%-8d %-12s %8.2f %8.1f", palette.getColorCount(), NAMES[i], getError(image, colors), best));
+			}
+		}
+
+		System.out.println();
+	}
+
+	private static IColorQuantizer create(int index) {
+		switch (index) {
+			case 0:
+				return new NeuQuant();
+			case 1:
+				return new MedianCutQuantizer();
+			default:
+				return new OctreeQuantizer();
+		}
+	}
+
+	/**
+	 * @return	The mean YUV distance from each pixel to its nearest palette color.
+	 */
+	private static double getError(int[] image, int[] colors) {
+		DistancePalette palette = DistancePalette.create(Distances.YUV, colors);
+		double sum = 0;
+
+		for (int pixel : image) {
+			final int r = pixel & 0xff, g = (pixel >> 8) & 0xff, b = (pixel >> 16) & 0xff;
+			final int color = palette.getNearestColor(r, g, b);
+			sum += Distances.YUV.get(r, g, b, color & 0xff, (color >> 8) & 0xff, (color >> 16) & 0xff);
+		}
+
+		return sum / image.length;
+	}
+
+	/**
+	 * @return	Smooth gradients with a few flat patches and some noise, like a camera frame.
+	 */
+	private static int[] createImage(int width, int height) {
+		int[] image = new int[width * height];
+		Random rand = new Random(0);
+
+		for (int y = 0, i = 0; y < height; y++) {
+			for (int x = 0; x < width; x++, i++) {
+				int r = x * 255 / width, g = y * 255 / height, b = (x + y) * 255 / (width + height);
+				if ((x / 80 + y / 80) % 5 == 0) {
+					r = 200;
+					g = 40;
+					b = 60;
+				}
+
+				r = Math.max(0, Math.min(r + rand.nextInt(9) - 4, 255));
+				g = Math.max(0, Math.min(g + rand.nextInt(9) - 4, 255));
+				b = Math.max(0, Math.min(b + rand.nextInt(9) - 4, 255));
+				image[i] = 0xff000000 | (b << 16) | (g << 8) | r;
+			}
+		}
+
+		return image;
+	}
+}
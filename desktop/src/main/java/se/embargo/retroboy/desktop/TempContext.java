@@ -0,0 +1,34 @@
+package se.embargo.retroboy.desktop;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.content.Context;
+
+/**
+ * Context with an empty cache directory that is removed when the JVM exits, so benchmarks always
+ * build their tables instead of reading them.
+ */
+public class TempContext extends Context {
+	public TempContext() throws IOException {
+		super(createDirectory());
+	}
+
+	@Override
+	public FileOutputStream openFileOutput(String name, int mode) throws FileNotFoundException {
+		getFileStreamPath(name).deleteOnExit();
+		return super.openFileOutput(name, mode);
+	}
+
+	private static File createDirectory() throws IOException {
+		File dir = File.createTempFile("retroboy", "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Failed to create " + dir);
+		}
+
+		dir.deleteOnExit();
+		return dir;
+	}
+}